@@ -637,6 +637,11 @@ protected class IncomingBuffer
 
 				if( end > buf.capacity() )
 					compactBuffer();
+
+				// The message is larger than the buffer, it must grow.
+
+				while( end > buf.capacity() )
+					enlargeBuffer();
 			}
 		}
 	}
@@ -799,8 +804,7 @@ protected class IncomingBuffer
 	}
 
 	/**
-	 * Not used in the current implementation, we assumes that no message will
-	 * be larger than the size of the buffer.
+	 * Double the size of the buffer, when a message is larger than it.
 	 */
 	protected void
 	enlargeBuffer()
@@ -0,0 +1,436 @@
+package org.miv.pherd;
+
+import java.util.Arrays;
+
+/**
+ * A particle attribute stored as a typed array in a particle box.
+ *
+ * <p>
+ * A column is registered in a particle box under an attribute name (see
+ * {@link ParticleBox#registerAttribute(String, Type)}). Its values are
+ * stored in an array indexed by the particle slots, like the positions of a
+ * {@link PositionStore}, and move with the particles when the slots change.
+ * Reading or writing a value through the column is an array access, without
+ * hashing the attribute name nor boxing the value.
+ * </p>
+ *
+ * <p>
+ * A slot of a numeric column is unset until a value is stored in it, and
+ * again once the attribute is removed, a bitmap tells which slots are set.
+ * An unset slot reads as null through {@link #get(int)} and the string
+ * attribute API, and as zero through the typed getters. In an object column
+ * null means unset. Writing directly in the value arrays does not set the
+ * slots, only the setters do.
+ * </p>
+ *
+ * <p>
+ * The string attribute API of {@link Particle} still works for the
+ * registered attributes, and is used for the others. When a particle leaves
+ * the box its column values are copied in its attributes, and they are put
+ * back in the columns when it enters a box that registered them.
+ * </p>
+ */
+public class AttributeColumn
+{
+// Constant
+	
+	/**
+	 * The type of the values of a column.
+	 */
+	public static enum Type { DOUBLE, INT, LONG, OBJECT };
+
+// Attributes
+	
+	/**
+	 * The particle box.
+	 */
+	protected ParticleBox box;
+	
+	/**
+	 * The attribute name.
+	 */
+	protected String name;
+	
+	/**
+	 * The value type.
+	 */
+	protected Type type;
+	
+	/**
+	 * Values of each slot for a double column, else null.
+	 */
+	public double[] doubles;
+	
+	/**
+	 * Values of each slot for an integer column, else null.
+	 */
+	public int[] ints;
+	
+	/**
+	 * Values of each slot for a long column, else null.
+	 */
+	public long[] longs;
+	
+	/**
+	 * Values of each slot for an object column, else null.
+	 */
+	public Object[] objects;
+	
+	/**
+	 * One bit per slot, set if the slot has a value, for a numeric column,
+	 * else null.
+	 */
+	protected long[] present;
+
+// Constructors
+	
+	/**
+	 * New column for the given number of slots.
+	 * @param box The particle box.
+	 * @param name The attribute name.
+	 * @param type The value type.
+	 * @param capacity The initial number of slots.
+	 */
+	protected AttributeColumn( ParticleBox box, String name, Type type, int capacity )
+	{
+		this.box  = box;
+		this.name = name;
+		this.type = type;
+		
+		switch( type )
+		{
+			case DOUBLE: doubles = new double[capacity]; break;
+			case INT:    ints    = new int[capacity];    break;
+			case LONG:   longs   = new long[capacity];   break;
+			case OBJECT: objects = new Object[capacity]; break;
+		}
+		
+		if( type != Type.OBJECT )
+			present = new long[( capacity + 63 ) >> 6];
+	}
+
+// Access
+	
+	/**
+	 * The attribute name.
+	 * @return The name.
+	 */
+	public String getName()
+	{
+		return name;
+	}
+	
+	/**
+	 * The value type.
+	 * @return The type.
+	 */
+	public Type getType()
+	{
+		return type;
+	}
+	
+	/**
+	 * True if a particle has a value in this column.
+	 * @param particle The particle, in the box of the column.
+	 * @return False if the value was never set or was removed.
+	 */
+	public boolean isSet( Particle particle )
+	{
+		return isSet( slot( particle ) );
+	}
+	
+	/**
+	 * True if a slot has a value.
+	 * @param slot The slot.
+	 * @return False if the value was never set or was removed.
+	 */
+	public boolean isSet( int slot )
+	{
+		if( present == null )
+			return objects[slot] != null;
+		
+		return ( present[slot >> 6] & ( 1L << slot ) ) != 0;
+	}
+	
+	/**
+	 * The value of a particle in a double column.
+	 * @param particle The particle, in the box of the column.
+	 * @return The value, zero if unset.
+	 */
+	public double getDouble( Particle particle )
+	{
+		return doubles[slot( particle )];
+	}
+	
+	/**
+	 * The value of a particle in an integer column.
+	 * @param particle The particle, in the box of the column.
+	 * @return The value, zero if unset.
+	 */
+	public int getInt( Particle particle )
+	{
+		return ints[slot( particle )];
+	}
+	
+	/**
+	 * The value of a particle in a long column.
+	 * @param particle The particle, in the box of the column.
+	 * @return The value, zero if unset.
+	 */
+	public long getLong( Particle particle )
+	{
+		return longs[slot( particle )];
+	}
+	
+	/**
+	 * The value of a particle in an object column.
+	 * @param particle The particle, in the box of the column.
+	 * @return The value.
+	 */
+	public Object getObject( Particle particle )
+	{
+		return objects[slot( particle )];
+	}
+	
+	/**
+	 * The value of a slot, boxed, whatever the type of the column.
+	 * @param slot The slot.
+	 * @return The value, null if unset.
+	 */
+	public Object get( int slot )
+	{
+		if( present != null && ( present[slot >> 6] & ( 1L << slot ) ) == 0 )
+			return null;
+		
+		switch( type )
+		{
+			case DOUBLE: return doubles[slot];
+			case INT:    return ints[slot];
+			case LONG:   return longs[slot];
+			default:     return objects[slot];
+		}
+	}
+	
+	/**
+	 * The slot of a particle, checking it is in the box of this column.
+	 */
+	protected int slot( Particle particle )
+	{
+		if( particle.box != box )
+			throw new RuntimeException( "particle "+particle.getId()+" is not in the particle box of attribute "+name );
+		
+		return particle.slot;
+	}
+
+// Commands
+	
+	/**
+	 * Change the value of a particle in a double column.
+	 * @param particle The particle, in the box of the column.
+	 * @param value The new value.
+	 */
+	public void setDouble( Particle particle, double value )
+	{
+		int slot = slot( particle );
+		
+		doubles[slot] = value;
+		mark( slot );
+		
+		if( ! box.listeners.isEmpty() )
+			box.fireParticleAttributeChanged( particle, name, value, false );
+	}
+	
+	/**
+	 * Change the value of a particle in an integer column.
+	 * @param particle The particle, in the box of the column.
+	 * @param value The new value.
+	 */
+	public void setInt( Particle particle, int value )
+	{
+		int slot = slot( particle );
+		
+		ints[slot] = value;
+		mark( slot );
+		
+		if( ! box.listeners.isEmpty() )
+			box.fireParticleAttributeChanged( particle, name, value, false );
+	}
+	
+	/**
+	 * Change the value of a particle in a long column.
+	 * @param particle The particle, in the box of the column.
+	 * @param value The new value.
+	 */
+	public void setLong( Particle particle, long value )
+	{
+		int slot = slot( particle );
+		
+		longs[slot] = value;
+		mark( slot );
+		
+		if( ! box.listeners.isEmpty() )
+			box.fireParticleAttributeChanged( particle, name, value, false );
+	}
+	
+	/**
+	 * Change the value of a particle in an object column.
+	 * @param particle The particle, in the box of the column.
+	 * @param value The new value.
+	 */
+	public void setObject( Particle particle, Object value )
+	{
+		objects[slot( particle )] = value;
+		
+		if( ! box.listeners.isEmpty() )
+			box.fireParticleAttributeChanged( particle, name, value, false );
+	}
+	
+	/**
+	 * Change the value of a slot from a boxed value. A numeric column
+	 * accepts any number, converted to its type.
+	 * @param slot The slot.
+	 * @param value The new value, null to unset the slot.
+	 */
+	public void set( int slot, Object value )
+	{
+		if( type == Type.OBJECT )
+		{
+			objects[slot] = value;
+		}
+		else if( value == null )
+		{
+			clear( slot );
+		}
+		else if( value instanceof Number )
+		{
+			Number n = (Number) value;
+			
+			switch( type )
+			{
+				case DOUBLE: doubles[slot] = n.doubleValue(); break;
+				case INT:    ints[slot]    = n.intValue();    break;
+				case LONG:   longs[slot]   = n.longValue();   break;
+				default: break;
+			}
+			
+			mark( slot );
+		}
+		else
+		{
+			throw new RuntimeException( "attribute "+name+" is a column of "+type+", cannot store "+value );
+		}
+	}
+	
+	/**
+	 * Unset a slot, putting back zero or null in it.
+	 * @param slot The slot.
+	 */
+	public void clear( int slot )
+	{
+		if( present != null )
+			present[slot >> 6] &= ~( 1L << slot );
+		
+		switch( type )
+		{
+			case DOUBLE: doubles[slot] = 0;    break;
+			case INT:    ints[slot]    = 0;    break;
+			case LONG:   longs[slot]   = 0;    break;
+			case OBJECT: objects[slot] = null; break;
+		}
+	}
+	
+	/**
+	 * Mark a slot of a numeric column as set, once its value is stored.
+	 * @param slot The slot.
+	 */
+	protected void mark( int slot )
+	{
+		present[slot >> 6] |= 1L << slot;
+	}
+	
+	/**
+	 * Make sure the column has at least the given number of slots.
+	 * @param capacity The needed number of slots.
+	 */
+	protected void ensureCapacity( int capacity )
+	{
+		int length = capacity();
+		
+		if( capacity > length )
+		{
+			int n = Math.max( capacity, length * 2 );
+			
+			switch( type )
+			{
+				case DOUBLE: doubles = Arrays.copyOf( doubles, n ); break;
+				case INT:    ints    = Arrays.copyOf( ints,    n ); break;
+				case LONG:   longs   = Arrays.copyOf( longs,   n ); break;
+				case OBJECT: objects = Arrays.copyOf( objects, n ); break;
+			}
+			
+			if( present != null && ( ( n + 63 ) >> 6 ) > present.length )
+				present = Arrays.copyOf( present, ( n + 63 ) >> 6 );
+		}
+	}
+	
+	/**
+	 * The number of slots.
+	 */
+	protected int capacity()
+	{
+		switch( type )
+		{
+			case DOUBLE: return doubles.length;
+			case INT:    return ints.length;
+			case LONG:   return longs.length;
+			default:     return objects.length;
+		}
+	}
+	
+	/**
+	 * Copy the value of a slot into another slot, and clear the source slot.
+	 * @param from The source slot.
+	 * @param to The destination slot.
+	 */
+	protected void move( int from, int to )
+	{
+		switch( type )
+		{
+			case DOUBLE: doubles[to] = doubles[from]; break;
+			case INT:    ints[to]    = ints[from];    break;
+			case LONG:   longs[to]   = longs[from];   break;
+			case OBJECT: objects[to] = objects[from]; break;
+		}
+		
+		if( present != null )
+		{
+			if( ( present[from >> 6] & ( 1L << from ) ) != 0 )
+			     present[to >> 6] |=    1L << to;
+			else present[to >> 6] &= ~( 1L << to );
+		}
+		
+		clear( from );
+	}
+	
+	/**
+	 * Exchange the values of two slots.
+	 * @param i The first slot.
+	 * @param j The second slot.
+	 */
+	protected void swap( int i, int j )
+	{
+		switch( type )
+		{
+			case DOUBLE: { double t = doubles[i]; doubles[i] = doubles[j]; doubles[j] = t; break; }
+			case INT:    { int    t = ints[i];    ints[i]    = ints[j];    ints[j]    = t; break; }
+			case LONG:   { long   t = longs[i];   longs[i]   = longs[j];   longs[j]   = t; break; }
+			case OBJECT: { Object t = objects[i]; objects[i] = objects[j]; objects[j] = t; break; }
+		}
+		
+		if( present != null && isSet( i ) != isSet( j ) )
+		{
+			present[i >> 6] ^= 1L << i;
+			present[j >> 6] ^= 1L << j;
+		}
+	}
+}
@@ -0,0 +1,872 @@
+package org.miv.pherd;
+
+import java.io.*;
+import java.util.*;
+
+import org.miv.mbox.*;
+import org.miv.mbox.net.*;
+import org.miv.pherd.geom.*;
+import org.miv.pherd.ntree.*;
+
+/**
+ * Particle box split in spatial regions stepped by several processes.
+ *
+ * <p>
+ * Like a {@link PartitionedParticleBox}, the universe is cut in slabs of
+ * equal width along its longest axis, but each slab belongs to a node, a
+ * process maybe on another host, that only knows the particles of its slab.
+ * The nodes are given by the locators of their message receivers, the same
+ * list in the same order for all the nodes, a node being identified by its
+ * index in the list, which is also the index of its slab. The nodes
+ * exchange messages with the {@link Sender} and {@link Receiver} of the
+ * message box library.
+ * </p>
+ *
+ * <p>
+ * A step has two exchanges, each one being a barrier since a node waits the
+ * message of each other node before going on:
+ * <ol>
+ * 		<li>the node moves its particles and commits their positions, the
+ *          particles whose new position is in another slab leave the node
+ *          and are sent to the node of this slab, that adds them to its
+ *          box;</li>
+ * 		<li>the node sends to each other node a summary of its tree, the
+ *          barycenter and weight of its cells down to the summary depth
+ *          (see {@link #setSummaryDepth(int)}), and puts the summaries of
+ *          the other nodes in its tree as ghosts (see
+ *          {@link GhostParticle}), then checks the cell divisions.</li>
+ * </ol>
+ * The particles therefore see the other slabs through the remote cells in
+ * the tree, which is enough for a Barnes-Hut like approximation of the far
+ * interactions. The weight of the cells counts all the particles of the
+ * simulation, but a remote cell counts as one position in the barycenter of
+ * the cells that contain it. Short range interactions across a slab
+ * boundary are only approximated, more or less depending on the summary
+ * depth. The ghosts are removed from the tree before it is summarised, so
+ * that a node only sends its own particles.
+ * </p>
+ *
+ * <p>
+ * The tree must use {@link BarycenterCellData}. The box of a node (see
+ * {@link #getBox()}) uses the {@link NTree.OutOfUniverseMode#GROW} mode, so
+ * that the remote cells can be put in the tree, and must stay in the
+ * {@link ParticleBox.TreeMode#INCREMENTAL} tree mode. It moves and commits
+ * its particles like any particle box, in its own step pool if it has one.
+ * Its listeners receive the
+ * events of the particles of the node only: a particle leaving the slab is
+ * removed from the node, and added to the node of its new slab. A migrating
+ * particle is created again by the particle factory of its new node, with
+ * its identifier, position, weight and serializable attributes, which must
+ * hold all the state of a particle that has to survive a migration. The
+ * identifiers must also be serializable.
+ * </p>
+ *
+ * <p>
+ * Each node must step the same number of times, a node waiting at most the
+ * barrier timeout for the others (see {@link #setBarrierTimeout(long)}). The
+ * node must be shut down at the end, to stop its receiver thread.
+ * </p>
+ */
+public class DistributedParticleBox implements MBoxListener
+{
+// Constant
+	
+	/**
+	 * Message carrying the particles migrating toward a node.
+	 */
+	protected static final String PARTICLES = "P";
+	
+	/**
+	 * Message carrying the summary of the tree of a node.
+	 */
+	protected static final String SUMMARY = "S";
+
+// Attributes
+	
+	/**
+	 * Index of this node, and of its slab.
+	 */
+	protected int index;
+	
+	/**
+	 * The receiver locators of all the nodes, in slab order.
+	 */
+	protected MBoxLocator[] nodes;
+	
+	/**
+	 * The particles and tree of this node.
+	 */
+	protected ParticleBox box;
+	
+	/**
+	 * Creates the particles migrating to this node.
+	 */
+	protected ParticleFactory factory;
+	
+	/**
+	 * The axis cut in slabs, 0 for x, 1 for y, 2 for z.
+	 */
+	protected int axis;
+	
+	/**
+	 * Low bound of the universe along the axis.
+	 */
+	protected double lo;
+	
+	/**
+	 * Width of a slab.
+	 */
+	protected double width;
+	
+	/**
+	 * Listens at the messages of the other nodes, in its own thread.
+	 */
+	protected Receiver receiver;
+	
+	/**
+	 * The messages of the other nodes, processed during the exchanges.
+	 */
+	protected MBoxStandalone inbox;
+	
+	/**
+	 * Connections to the other nodes.
+	 */
+	protected SenderPool senders = new SenderPool();
+	
+	/**
+	 * True once connected to all the other nodes.
+	 */
+	protected boolean connected = false;
+	
+	/**
+	 * The cells sent to the other nodes are at most the slab width divided
+	 * by two to this power.
+	 */
+	protected int summaryDepth = 3;
+	
+	/**
+	 * Maximum time in milliseconds to wait for the other nodes.
+	 */
+	protected long barrierTimeout = 60000;
+	
+	/**
+	 * The exchange currently awaited, {@link #PARTICLES} or
+	 * {@link #SUMMARY}, null outside of the exchanges.
+	 */
+	protected String awaited = null;
+	
+	/**
+	 * Number of nodes whose message for the awaited exchange was received.
+	 */
+	protected int received = 0;
+	
+	/**
+	 * Messages that came before the exchange they belong to.
+	 */
+	protected ArrayList<Object[]> early = new ArrayList<Object[]>();
+	
+	/**
+	 * The particles leaving this node during the current step.
+	 */
+	protected ArrayList<Particle> leaving = new ArrayList<Particle>();
+	
+	/**
+	 * The ghosts of the remote cells, the first ones being in the tree.
+	 */
+	protected ArrayList<GhostParticle> ghosts = new ArrayList<GhostParticle>();
+	
+	/**
+	 * Number of ghosts in the tree.
+	 */
+	protected int ghostCount = 0;
+	
+	/**
+	 * Number of particles of each node, as sent in their last summary.
+	 */
+	protected int[] particleCounts;
+
+// Constructors
+	
+	/**
+	 * New node, listening at its locator and owning the slab of the same
+	 * index. The other nodes are connected at the first step, or by
+	 * {@link #connect()}.
+	 * @param index The index of this node in the locators.
+	 * @param nodes The receiver locators of all the nodes, in slab order,
+	 * the same for all the nodes. A locator name is the name of the message
+	 * box of the node in its receiver.
+	 * @param pmax The maximum number of particles per cell before a
+	 * subdivision occurs.
+	 * @param universe The space split between the nodes, each node having a
+	 * space of the same kind.
+	 * @param rootData The data of the root cell.
+	 * @param factory Creates the particles that migrate to this node.
+	 * @throws IOException If the receiver cannot listen at the locator.
+	 */
+	public DistributedParticleBox( int index, MBoxLocator[] nodes, int pmax, CellSpace universe,
+			BarycenterCellData rootData, ParticleFactory factory )
+		throws IOException
+	{
+		if( index < 0 || index >= nodes.length )
+			throw new RuntimeException( "node index "+index+" not in the "+nodes.length+" nodes" );
+		
+		this.index          = index;
+		this.nodes          = nodes;
+		this.factory        = factory;
+		this.particleCounts = new int[nodes.length];
+		
+		Anchor low  = universe.getLoAnchor();
+		Anchor high = universe.getHiAnchor();
+		
+		double dx = high.x - low.x;
+		double dy = high.y - low.y;
+		double dz = high.z - low.z;
+		
+		if( dz > dx && dz > dy ) { axis = 2; lo = low.z; width = dz / nodes.length; }
+		else if( dy > dx )       { axis = 1; lo = low.y; width = dy / nodes.length; }
+		else                     { axis = 0; lo = low.x; width = dx / nodes.length; }
+		
+		Point3 min = new Point3( low.x, low.y, low.z );
+		Point3 max = new Point3( high.x, high.y, high.z );
+		
+		setCoordinate( min, lo + index * width );
+		setCoordinate( max, index == nodes.length - 1 ? getCoordinate( max ) : lo + ( index + 1 ) * width );
+		
+		CellSpace space = universe.newSubCellSpace( 0 );
+		space.resize( min, max );
+		
+		box = new ParticleBox( pmax, space, rootData ) {
+			@Override
+			protected boolean leaves( Particle particle )
+			{
+				return leave( particle );
+			}
+		};
+		
+		box.getNTree().setOutOfUniverseMode( NTree.OutOfUniverseMode.GROW );
+		
+		inbox    = new MBoxStandalone( this );
+		receiver = new Receiver( nodes[index] );
+		
+		inbox.setNotifyOnPost( true );
+		
+		try
+		{
+			receiver.register( nodes[index].getName(), (MBox) inbox );
+		}
+		catch( org.miv.mbox.net.IdAlreadyInUseException e )
+		{
+			throw new RuntimeException( "cannot register node "+index, e );
+		}
+	}
+
+// Access
+	
+	/**
+	 * Index of this node, and of its slab.
+	 * @return The node index.
+	 */
+	public int getNodeIndex()
+	{
+		return index;
+	}
+	
+	/**
+	 * Number of nodes.
+	 * @return The node count.
+	 */
+	public int getNodeCount()
+	{
+		return nodes.length;
+	}
+	
+	/**
+	 * The particles of this node, to configure the box, walk the particles
+	 * or listen at them. The particles must be added with
+	 * {@link #addParticle(Particle)}, and the out of universe mode must not
+	 * be changed.
+	 * @return The particle box of the node.
+	 */
+	public ParticleBox getBox()
+	{
+		return box;
+	}
+	
+	/**
+	 * Index of the node whose slab contains the given coordinates. The
+	 * first and last slabs extend to infinity.
+	 * @param x The abscissa.
+	 * @param y The ordinate.
+	 * @param z The depth.
+	 * @return The node index.
+	 */
+	public int getOwnerIndex( double x, double y, double z )
+	{
+		return nodeIndex( axis == 0 ? x : axis == 1 ? y : z );
+	}
+	
+	/**
+	 * Number of particles of this node.
+	 * @return The particle count.
+	 */
+	public int getParticleCount()
+	{
+		return box.getParticleCount();
+	}
+	
+	/**
+	 * Number of particles of all the nodes at the end of the last step.
+	 * @return The particle count of the simulation.
+	 */
+	public int getTotalParticleCount()
+	{
+		int n = 0;
+		
+		for( int i=0; i<nodes.length; ++i )
+			n += i == index ? box.getParticleCount() : particleCounts[i];
+		
+		return n;
+	}
+	
+	/**
+	 * Number of ghosts of remote cells in the tree.
+	 * @return The ghost count.
+	 */
+	public int getGhostCount()
+	{
+		return ghostCount;
+	}
+	
+	/**
+	 * Fineness of the cells sent to the other nodes.
+	 * @return The summary depth.
+	 * @see #setSummaryDepth(int)
+	 */
+	public int getSummaryDepth()
+	{
+		return summaryDepth;
+	}
+	
+	/**
+	 * Maximum time to wait for the other nodes.
+	 * @return The timeout in milliseconds.
+	 */
+	public long getBarrierTimeout()
+	{
+		return barrierTimeout;
+	}
+
+// Commands
+	
+	/**
+	 * Add a particle in this node. Its position must be in the slab of the
+	 * node.
+	 * @param particle The new particle.
+	 * @throws IdAlreadyInUseException If a particle with the same identifier
+	 *         is already in this node.
+	 */
+	public void addParticle( Particle particle )
+		throws IdAlreadyInUseException
+	{
+		int owner = getOwnerIndex( particle.getX(), particle.getY(), particle.getZ() );
+		
+		if( owner != index )
+			throw new RuntimeException( "particle "+particle.getId()+" is in the slab of node "+owner+", not "+index );
+		
+		box.addParticle( particle );
+	}
+	
+	/**
+	 * Remove the particle of this node identified by the given identifier.
+	 * @param id The particle unique identifier.
+	 * @return The removed particle (or null if not found).
+	 */
+	public Particle removeParticle( Object id )
+	{
+		return box.removeParticle( id );
+	}
+	
+	/**
+	 * Send to the other nodes the leaf cells of the tree, and the cells at
+	 * most as wide as the slab width divided by two to this power, whose
+	 * subcells are not sent. A larger depth gives more precise remote cells
+	 * for larger messages and more ghosts.
+	 * @param depth The summary depth, zero for cells as wide as the slab.
+	 */
+	public void setSummaryDepth( int depth )
+	{
+		if( depth < 0 )
+			throw new RuntimeException( "negative summary depth" );
+		
+		summaryDepth = depth;
+	}
+	
+	/**
+	 * Maximum time to wait for the other nodes at each exchange, and when
+	 * connecting to them.
+	 * @param timeout The timeout in milliseconds.
+	 */
+	public void setBarrierTimeout( long timeout )
+	{
+		barrierTimeout = timeout;
+	}
+	
+	/**
+	 * Connect to all the other nodes, retrying until they listen or the
+	 * barrier timeout expires. This is done by the first step if not
+	 * called before.
+	 */
+	public void connect()
+	{
+		long end = System.currentTimeMillis() + barrierTimeout;
+		
+		for( int i=0; i<nodes.length; ++i )
+		{
+			while( i != index && ! senders.hasSender( nodes[i] ) )
+			{
+				try
+				{
+					senders.connect( nodes[i] );
+				}
+				catch( IOException e )
+				{
+					if( System.currentTimeMillis() > end )
+						throw new RuntimeException( "cannot connect to node "+i+" at "+nodes[i], e );
+					
+					pause( 100 );
+				}
+			}
+		}
+		
+		connected = true;
+	}
+	
+	/**
+	 * Stop the receiver of this node. The node must not be stepped anymore.
+	 */
+	public void shutdown()
+	{
+		receiver.quit();
+	}
+	
+	/**
+	 * One step of the particles of this node, see the class description.
+	 * All the nodes must step together.
+	 */
+	public void step()
+	{
+		if( ! connected )
+			connect();
+		
+		if( box.treeMode != ParticleBox.TreeMode.INCREMENTAL )
+			throw new RuntimeException( "node "+index+" is in "+box.treeMode+" tree mode, a node must maintain its n-tree" );
+		
+		box.stepping = true;
+		
+		try
+		{
+			box.moveParticles();
+		}
+		finally
+		{
+			box.stepping = false;
+		}
+		
+		sendParticles();
+		await( PARTICLES );
+		
+		removeGhosts();
+		box.getNTree().checkDivisions();
+		sendSummary();
+		await( SUMMARY );
+		
+		box.applySleepChanges();
+		box.getNTree().checkDivisions();
+		
+		// Tell to the listeners.
+		
+		if( box.movedCount > 0 )
+			box.fireParticlesMoved();
+		
+		if( ! box.changedParticles.isEmpty() )
+			box.flushAttributeChanges();
+		
+		for( ParticleBoxListener listener: box.listeners )
+			listener.stepFinished( box.time );
+		
+		box.time++;
+	}
+
+// Utility
+	
+	/**
+	 * Remove from the box a particle that moved in another slab, when the
+	 * box commits the moves. It is sent to the node of this slab.
+	 * @param particle The particle, that moved.
+	 * @return True if the particle left the node.
+	 */
+	protected boolean leave( Particle particle )
+	{
+		if( nodeIndex( getNextCoordinate( particle ) ) == index )
+			return false;
+		
+		box.removeParticle( particle.getId() );
+		particle.moved = false;
+		leaving.add( particle );
+		
+		return true;
+	}
+	
+	/**
+	 * Send to each other node the particles that came in its slab, maybe
+	 * none, which tells the node this one moved.
+	 */
+	protected void sendParticles()
+	{
+		for( int n=0; n<nodes.length; ++n )
+		{
+			if( n == index )
+				continue;
+			
+			int count = 0;
+			
+			for( Particle particle: leaving )
+			{
+				if( nodeIndex( getCoordinate( particle.nextPos ) ) == n )
+					count++;
+			}
+			
+			// The arrays are new at each message since the sender would
+			// send a reference to an already sent array.
+			
+			Object[] ids        = new Object[count];
+			double[] x          = new double[count];
+			double[] y          = new double[count];
+			double[] z          = new double[count];
+			double[] w          = new double[count];
+			Object[] attributes = new Object[count];
+			
+			int i = 0;
+			
+			for( Particle particle: leaving )
+			{
+				if( nodeIndex( getCoordinate( particle.nextPos ) ) == n )
+				{
+					ids[i]        = particle.getId();
+					x[i]          = particle.nextPos.x;
+					y[i]          = particle.nextPos.y;
+					z[i]          = particle.nextPos.z;
+					w[i]          = particle.getWeight();
+					attributes[i] = serializableAttributes( particle );
+					i++;
+				}
+			}
+			
+			send( n, PARTICLES, box.time, index, ids, x, y, z, w, attributes );
+		}
+		
+		leaving.clear();
+	}
+	
+	/**
+	 * Send to each other node the barycenter and weight of the cells of the
+	 * tree down to the summary depth, and the particle count.
+	 */
+	protected void sendSummary()
+	{
+		ArrayList<Cell> cells = new ArrayList<Cell>();
+		
+		// The root grew to contain the remote cells, the cells are chosen by
+		// size rather than by depth.
+		
+		summarise( box.getNTree().getRootCell(), width / ( 1 << summaryDepth ), cells );
+		
+		int      count = cells.size();
+		double[] x     = new double[count];
+		double[] y     = new double[count];
+		double[] z     = new double[count];
+		double[] w     = new double[count];
+		
+		for( int i=0; i<count; ++i )
+		{
+			BarycenterCellData data = (BarycenterCellData) cells.get( i ).getData();
+			
+			x[i] = data.center.x;
+			y[i] = data.center.y;
+			z[i] = data.center.z;
+			w[i] = data.weight;
+		}
+		
+		for( int n=0; n<nodes.length; ++n )
+		{
+			if( n != index )
+				send( n, SUMMARY, box.time, index, box.getParticleCount(), x, y, z, w );
+		}
+	}
+	
+	/**
+	 * Collect the populated cells to send under a cell, down to the cells
+	 * whose side along the axis is at most the given size.
+	 */
+	protected void summarise( Cell cell, double size, ArrayList<Cell> cells )
+	{
+		if( cell.getPopulation() == 0 )
+			return;
+		
+		CellSpace space = cell.getSpace();
+		Anchor    low   = space.getLoAnchor();
+		Anchor    high  = space.getHiAnchor();
+		double    side  = axis == 0 ? high.x - low.x : axis == 1 ? high.y - low.y : high.z - low.z;
+		
+		if( cell.isLeaf() || side <= size )
+		{
+			cells.add( cell );
+		}
+		else
+		{
+			int n = space.getDivisions();
+			
+			for( int i=0; i<n; ++i )
+				summarise( cell.getSub( i ), size, cells );
+		}
+	}
+	
+	/**
+	 * Send a message to a node.
+	 */
+	protected void send( int node, Object... data )
+	{
+		try
+		{
+			senders.send( nodes[index].getName(), nodes[node], data );
+		}
+		catch( IOException e )
+		{
+			throw new RuntimeException( "cannot send to node "+node+" at "+nodes[node], e );
+		}
+	}
+	
+	/**
+	 * Wait the message of each other node for an exchange of the current
+	 * step, processing the messages as they come.
+	 */
+	protected void await( String exchange )
+	{
+		long end = System.currentTimeMillis() + barrierTimeout;
+		
+		awaited  = exchange;
+		received = 0;
+		
+		// Handle the messages of this exchange that came during the
+		// previous one, keeping the others.
+		
+		if( ! early.isEmpty() )
+		{
+			ArrayList<Object[]> messages = new ArrayList<Object[]>( early );
+			
+			early.clear();
+			
+			for( Object[] data: messages )
+				processMessage( null, data );
+		}
+		
+		while( received < nodes.length - 1 )
+		{
+			inbox.processMessages();
+			
+			if( received < nodes.length - 1 )
+			{
+				long left = end - System.currentTimeMillis();
+				
+				if( left <= 0 )
+					throw new RuntimeException( "node "+index+" waited more than "+barrierTimeout+" ms for the other nodes at step "+box.time );
+				
+				synchronized( inbox )
+				{
+					if( inbox.isMBoxEmpty() )
+					{
+						try
+						{
+							inbox.wait( left );
+						}
+						catch( InterruptedException e )
+						{
+							Thread.currentThread().interrupt();
+							throw new RuntimeException( "interrupted while waiting for the other nodes", e );
+						}
+					}
+				}
+			}
+		}
+		
+		awaited = null;
+	}
+	
+	/**
+	 * Add the particles that came in the slab of this node.
+	 */
+	protected void addParticles( Object[] ids, double[] x, double[] y, double[] z, double[] w, Object[] attributes )
+	{
+		for( int i=0; i<ids.length; ++i )
+		{
+			Particle particle = factory.newParticle( ids[i], x[i], y[i], z[i] );
+			
+			particle.setWeight( w[i] );
+			
+			if( attributes[i] != null )
+			{
+				@SuppressWarnings("unchecked")
+				HashMap<String,Object> map = (HashMap<String,Object>) attributes[i];
+				
+				if( particle.attributes == null )
+				     particle.attributes = map;
+				else particle.attributes.putAll( map );
+			}
+			
+			box.addParticle( particle );
+		}
+	}
+	
+	/**
+	 * Put the cells of another node in the tree as ghosts.
+	 */
+	protected void addGhosts( double[] x, double[] y, double[] z, double[] w )
+	{
+		NTree tree = box.getNTree();
+		
+		for( int i=0; i<x.length; ++i )
+		{
+			if( ghostCount == ghosts.size() )
+				ghosts.add( new GhostParticle( "ghost-"+index+"-"+ghostCount ) );
+			
+			GhostParticle ghost = ghosts.get( ghostCount++ );
+			
+			ghost.set( x[i], y[i], z[i], w[i] );
+			tree.addParticle( ghost );
+		}
+	}
+	
+	protected void removeGhosts()
+	{
+		NTree tree = box.getNTree();
+		
+		for( int i=0; i<ghostCount; ++i )
+			tree.removeParticle( ghosts.get( i ) );
+		
+		ghostCount = 0;
+	}
+	
+	/**
+	 * The attributes of a particle that can be sent, in a new map, or null
+	 * if there are none.
+	 */
+	protected HashMap<String,Object> serializableAttributes( Particle particle )
+	{
+		HashMap<String,Object> map = null;
+		
+		if( particle.attributes != null )
+		{
+			for( Map.Entry<String,Object> entry: particle.attributes.entrySet() )
+			{
+				if( entry.getValue() instanceof Serializable )
+				{
+					if( map == null )
+						map = new HashMap<String,Object>();
+					
+					map.put( entry.getKey(), entry.getValue() );
+				}
+			}
+		}
+		
+		return map;
+	}
+	
+	/**
+	 * Index of the slab containing a coordinate along the axis.
+	 */
+	protected int nodeIndex( double c )
+	{
+		int i = (int) Math.floor( ( c - lo ) / width );
+		
+		if( i < 0 )
+			return 0;
+		
+		if( i >= nodes.length )
+			return nodes.length - 1;
+		
+		return i;
+	}
+	
+	/**
+	 * The next coordinate of a particle along the axis, as set by its move.
+	 */
+	protected double getNextCoordinate( Particle particle )
+	{
+		if( particle.positions != null )
+		{
+			PositionStore positions = particle.positions;
+			int           s         = particle.slot;
+			
+			return axis == 0 ? positions.nx[s] : axis == 1 ? positions.ny[s] : positions.nz[s];
+		}
+		
+		return getCoordinate( particle.nextPos );
+	}
+	
+	protected double getCoordinate( Point3 p )
+	{
+		return axis == 0 ? p.x : axis == 1 ? p.y : p.z;
+	}
+	
+	protected void setCoordinate( Point3 p, double c )
+	{
+		if( axis == 0 )      p.x = c;
+		else if( axis == 1 ) p.y = c;
+		else                 p.z = c;
+	}
+	
+	protected void pause( long ms )
+	{
+		try
+		{
+			Thread.sleep( ms );
+		}
+		catch( InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException( "interrupted while connecting to the other nodes", e );
+		}
+	}
+
+// MBoxListener -- messages of the other nodes.
+	
+	public void processMessage( String from, Object[] data )
+	{
+		int time = ((Number)data[1]).intValue();
+		
+		if( time != box.time || ! data[0].equals( awaited ) )
+		{
+			if( time < box.time )
+				throw new RuntimeException( "node "+index+" received a message of step "+time+" at step "+box.time );
+			
+			early.add( data );
+			return;
+		}
+		
+		int node = ((Number)data[2]).intValue();
+		
+		if( data[0].equals( PARTICLES ) )
+		{
+			addParticles( (Object[]) data[3], (double[]) data[4], (double[]) data[5],
+					(double[]) data[6], (double[]) data[7], (Object[]) data[8] );
+		}
+		else
+		{
+			particleCounts[node] = ((Number)data[3]).intValue();
+			
+			addGhosts( (double[]) data[4], (double[]) data[5], (double[]) data[6], (double[]) data[7] );
+		}
+		
+		received++;
+	}
+}
@@ -0,0 +1,340 @@
+package org.miv.pherd;
+
+import java.io.*;
+import java.util.*;
+
+import org.miv.mbox.net.*;
+import org.miv.pherd.ntree.*;
+
+/**
+ * Check of the {@link DistributedParticleBox} with several processes on
+ * localhost.
+ *
+ * <p>
+ * The launcher starts one Java process per node, with the same class path,
+ * their receivers listening on consecutive ports from the base port. Each
+ * node creates the particles of its slab, taken from the same random set of
+ * particles, and steps its box. The particles drift along the longest axis,
+ * half of them in each direction, therefore they keep migrating between the
+ * nodes. At each step a node checks that its particles are in its slab and
+ * kept their attributes, that the total number of particles of all the nodes
+ * did not change, and that the weight of its root cell counts all of them.
+ * At the end each node prints its number of particles and the sum of their
+ * identifiers, and the launcher checks that no particle was lost or
+ * duplicated.
+ * </p>
+ *
+ * <p>
+ * Usage: DistributedParticleBoxTest [nodes [basePort [steps [particles]]]],
+ * by default 3 nodes from port 9000, 60 steps and 3000 particles. The
+ * program throws an exception if a check fails.
+ * </p>
+ */
+public class DistributedParticleBoxTest
+{
+// Attributes
+	
+	/**
+	 * Number of nodes.
+	 */
+	protected int nodeCount;
+	
+	/**
+	 * Port of the first node.
+	 */
+	protected int basePort;
+	
+	/**
+	 * Number of steps.
+	 */
+	protected int steps;
+	
+	/**
+	 * Number of particles of all the nodes.
+	 */
+	protected int particles;
+
+// Constructors
+	
+	public static void main( String args[] )
+	{
+		try
+		{
+			if( args.length > 0 && args[0].equals( "-node" ) )
+			{
+				DistributedParticleBoxTest test = new DistributedParticleBoxTest( Integer.parseInt( args[2] ),
+					Integer.parseInt( args[3] ), Integer.parseInt( args[4] ), Integer.parseInt( args[5] ) );
+				
+				test.node( Integer.parseInt( args[1] ) );
+			}
+			else
+			{
+				DistributedParticleBoxTest test = new DistributedParticleBoxTest(
+					args.length > 0 ? Integer.parseInt( args[0] ) : 3,
+					args.length > 1 ? Integer.parseInt( args[1] ) : 9000,
+					args.length > 2 ? Integer.parseInt( args[2] ) : 60,
+					args.length > 3 ? Integer.parseInt( args[3] ) : 3000 );
+				
+				test.launch();
+			}
+		}
+		catch( Exception e )
+		{
+			e.printStackTrace();
+			System.exit( 1 );
+		}
+	}
+	
+	public DistributedParticleBoxTest( int nodeCount, int basePort, int steps, int particles )
+	{
+		this.nodeCount = nodeCount;
+		this.basePort  = basePort;
+		this.steps     = steps;
+		this.particles = particles;
+	}
+
+// Commands
+	
+	/**
+	 * Start one process per node, wait for them and check the particles
+	 * they end with.
+	 */
+	public void launch() throws IOException, InterruptedException
+	{
+		String        java      = System.getProperty( "java.home" ) + File.separator + "bin" + File.separator + "java";
+		String        classPath = System.getProperty( "java.class.path" );
+		Process       nodes[]   = new Process[nodeCount];
+		BufferedReader output[] = new BufferedReader[nodeCount];
+		
+		for( int i=0; i<nodeCount; ++i )
+		{
+			ProcessBuilder builder = new ProcessBuilder( java, "-cp", classPath, getClass().getName(), "-node",
+				Integer.toString( i ), Integer.toString( nodeCount ), Integer.toString( basePort ),
+				Integer.toString( steps ), Integer.toString( particles ) );
+			
+			builder.redirectErrorStream( true );
+			
+			nodes[i]  = builder.start();
+			output[i] = new BufferedReader( new InputStreamReader( nodes[i].getInputStream() ) );
+		}
+		
+		// The outputs are read in parallel, a node blocked on a full pipe
+		// would block the others at the next barrier.
+		
+		final int  count[] = new int[nodeCount];
+		final long sum[]   = new long[nodeCount];
+		final int  moved[] = new int[nodeCount];
+		Thread     readers[] = new Thread[nodeCount];
+		
+		for( int i=0; i<nodeCount; ++i )
+		{
+			final int            node   = i;
+			final BufferedReader reader = output[i];
+			
+			readers[i] = new Thread() {
+				@Override
+				public void run()
+				{
+					try
+					{
+						String line;
+						
+						while( ( line = reader.readLine() ) != null )
+						{
+							System.out.printf( "[node %d] %s%n", node, line );
+							
+							if( line.startsWith( "RESULT " ) )
+							{
+								String values[] = line.split( " " );
+								
+								count[node] = Integer.parseInt( values[1] );
+								sum[node]   = Long.parseLong( values[2] );
+								moved[node] = Integer.parseInt( values[3] );
+							}
+						}
+					}
+					catch( IOException e )
+					{
+						e.printStackTrace();
+					}
+				}
+			};
+			
+			readers[i].start();
+		}
+		
+		int failed = 0;
+		
+		for( int i=0; i<nodeCount; ++i )
+		{
+			if( nodes[i].waitFor() != 0 )
+				failed++;
+			
+			readers[i].join();
+		}
+		
+		if( failed > 0 )
+			throw new RuntimeException( failed+" node(s) failed" );
+		
+		int  totalCount = 0;
+		long totalSum   = 0;
+		int  totalMoved = 0;
+		
+		for( int i=0; i<nodeCount; ++i )
+		{
+			totalCount += count[i];
+			totalSum   += sum[i];
+			totalMoved += moved[i];
+		}
+		
+		if( totalCount != particles || totalSum != (long) particles * ( particles - 1 ) / 2 )
+			throw new RuntimeException( "particles lost or duplicated: "+totalCount+" particles instead of "+particles );
+		
+		if( nodeCount > 1 && totalMoved == 0 )
+			throw new RuntimeException( "no particle migrated" );
+		
+		System.out.printf( "Distributed particle box OK, %d nodes, %d particles, %d in another node than at start%n", nodeCount, totalCount, totalMoved );
+		System.out.flush();
+	}
+	
+	/**
+	 * Run one node.
+	 * @param index The node index.
+	 */
+	public void node( int index ) throws IOException
+	{
+		MBoxLocator locators[] = new MBoxLocator[nodeCount];
+		
+		for( int i=0; i<nodeCount; ++i )
+			locators[i] = new MBoxLocator( "localhost", basePort + i, "pherd" );
+		
+		ParticleFactory factory = new ParticleFactory()
+		{
+			public Particle newParticle( Object id, double x, double y, double z )
+			{
+				return new TestParticle( id, x, y, z );
+			}
+		};
+		
+		CellSpace              universe = new OctreeCellSpace( new Anchor( -2, -1, -1 ), new Anchor( 2, 1, 1 ) );
+		DistributedParticleBox box      = new DistributedParticleBox( index, locators, 8, universe, new BarycenterCellData(), factory );
+		Random                 random   = new Random( 1 );
+		
+		box.setBarrierTimeout( 30000 );
+		
+		try
+		{
+			for( int i=0; i<particles; ++i )
+			{
+				double x = random.nextDouble() * 3.6 - 1.8;
+				double y = random.nextDouble() * 1.8 - 0.9;
+				double z = random.nextDouble() * 1.8 - 0.9;
+				
+				if( box.getOwnerIndex( x, y, z ) == index )
+				{
+					Particle particle = new TestParticle( i, x, y, z );
+					
+					particle.setAttribute( "origin", index );
+					box.addParticle( particle );
+				}
+			}
+			
+			int moved = 0;
+			
+			for( int s=0; s<steps; ++s )
+			{
+				box.step();
+				
+				moved = check( box, index );
+			}
+			
+			ParticleBox local = box.getBox();
+			long        sum   = 0;
+			
+			for( int i=0; i<local.getParticleCount(); ++i )
+				sum += (Integer) local.getParticleAt( i ).getId();
+			
+			System.out.printf( "RESULT %d %d %d%n", local.getParticleCount(), sum, moved );
+			System.out.flush();
+		}
+		finally
+		{
+			box.shutdown();
+		}
+	}
+	
+	/**
+	 * Check the state of a node after a step.
+	 * @return The number of particles of the node that started in another
+	 * node.
+	 */
+	protected int check( DistributedParticleBox box, int index )
+	{
+		ParticleBox local = box.getBox();
+		int         moved = 0;
+		
+		for( int i=0; i<local.getParticleCount(); ++i )
+		{
+			Particle particle = local.getParticleAt( i );
+			Object   origin   = particle.getAttribute( "origin" );
+			
+			if( box.getOwnerIndex( particle.getX(), particle.getY(), particle.getZ() ) != index )
+				throw new RuntimeException( "particle "+particle.getId()+" is out of the slab of node "+index );
+			
+			if( origin == null )
+				throw new RuntimeException( "particle "+particle.getId()+" lost its attributes" );
+			
+			if( (Integer) origin != index )
+				moved++;
+		}
+		
+		if( box.getTotalParticleCount() != particles )
+			throw new RuntimeException( "the nodes have "+box.getTotalParticleCount()+" particles instead of "+particles );
+		
+		double weight = ((BarycenterCellData) local.getNTree().getRootCell().getData()).getWeight();
+		
+		if( Math.abs( weight - particles ) > 1e-6 )
+			throw new RuntimeException( "the root cell weight is "+weight+" instead of "+particles );
+		
+		return moved;
+	}
+
+// Nested classes
+	
+	/**
+	 * Particle drifting along the abscissa, toward the high bound for even
+	 * identifiers and toward the low bound for odd ones, going back at the
+	 * bounds of the universe.
+	 */
+	protected static class TestParticle extends Particle
+	{
+		public TestParticle( Object id, double x, double y, double z )
+		{
+			super( id, x, y, z );
+		}
+		
+		@Override
+		public void move( int time )
+		{
+			int    id     = (Integer) getId();
+			Random random = new Random( time * 131L + id );
+			double x      = getX() + ( id % 2 == 0 ? 0.03 : -0.03 ) + ( random.nextDouble() - 0.5 ) * 0.05;
+			
+			if( x > 1.9 || x < -1.9 )
+				x = -x * 0.9;
+			
+			setNextPosition( x, getY() + ( random.nextDouble() - 0.5 ) * 0.05, getZ() + ( random.nextDouble() - 0.5 ) * 0.05 );
+			moved = true;
+		}
+		
+		@Override
+		public void inserted()
+		{
+		}
+		
+		@Override
+		public void removed()
+		{
+		}
+	}
+}
@@ -0,0 +1,123 @@
+package org.miv.pherd;
+
+/**
+ * Read-only copy of a particle of a neighbour region.
+ *
+ * <p>
+ * A {@link PartitionedParticleBox} inserts in the n-tree of each region a
+ * ghost of each particle of the neighbour regions that lies near their
+ * common boundary, so that the neighbourhood queries and the cell data of
+ * the region see these particles. A ghost has the position and weight of
+ * its original at the end of the previous step, it does not move and is not
+ * in the particle set of the region. Interaction code that must tell ghosts
+ * apart can use {@link #getOriginal()}, but should not read the state of
+ * the original during the move phase, since it belongs to another thread.
+ * </p>
+ *
+ * <p>
+ * A {@link DistributedParticleBox} also uses ghosts for the cells of the
+ * other nodes, with the barycenter and weight of the cell. These ghosts
+ * have no original.
+ * </p>
+ */
+public class GhostParticle extends Particle
+{
+// Attributes
+	
+	/**
+	 * The particle this is the copy of.
+	 */
+	protected Particle original;
+
+// Constructors
+	
+	/**
+	 * New ghost, set by {@link #copy(Particle)}.
+	 */
+	public GhostParticle()
+	{
+		super( null );
+	}
+	
+	/**
+	 * New ghost with a fixed identifier, set by
+	 * {@link #set(double, double, double, double)}.
+	 * @param id The ghost identifier.
+	 */
+	protected GhostParticle( Object id )
+	{
+		super( id );
+	}
+
+// Access
+	
+	/**
+	 * The particle of the neighbour region this ghost copies.
+	 * @return The original particle, null for the ghost of a remote cell.
+	 */
+	public Particle getOriginal()
+	{
+		return original;
+	}
+
+// Commands
+	
+	/**
+	 * Take the identifier, position and weight of a particle. The ghost must
+	 * not be in a tree.
+	 * @param particle The original particle.
+	 */
+	protected void copy( Particle particle )
+	{
+		assert cell == null : "changing a ghost still in a tree";
+		
+		original = particle;
+		id       = particle.getId();
+		
+		set( particle.getX(), particle.getY(), particle.getZ(), particle.getWeight() );
+	}
+	
+	/**
+	 * Take a position and weight. The ghost must not be in a tree.
+	 * @param x The abscissa.
+	 * @param y The ordinate.
+	 * @param z The depth.
+	 * @param weight The weight.
+	 */
+	protected void set( double x, double y, double z, double weight )
+	{
+		assert cell == null : "changing a ghost still in a tree";
+		
+		this.weight = weight;
+		
+		pos.set( x, y, z );
+		nextPos.copy( pos );
+	}
+	
+	/**
+	 * Forget the original.
+	 */
+	protected void clear()
+	{
+		original = null;
+		id       = null;
+	}
+	
+	/**
+	 * A ghost does not move.
+	 */
+	@Override
+	public void move( int time )
+	{
+	}
+	
+	@Override
+	public void inserted()
+	{
+	}
+	
+	@Override
+	public void removed()
+	{
+	}
+}
@@ -0,0 +1,217 @@
+package org.miv.pherd;
+
+/**
+ * Map from integer identifiers to particles.
+ * 
+ * <p>
+ * This is an open addressing hash table with linear probing, storing the keys
+ * in a primitive array. Unlike a HashMap there is no boxed key and no entry
+ * object per particle. Removal shifts back the following entries, therefore
+ * the table never contains tombstones.
+ * </p>
+ */
+public class IntParticleMap
+{
+// Attributes
+	
+	/**
+	 * The keys.
+	 */
+	protected int[] keys;
+	
+	/**
+	 * The particles, null for free entries.
+	 */
+	protected Particle[] values;
+	
+	/**
+	 * Number of particles in the map.
+	 */
+	protected int size;
+	
+	/**
+	 * Table length minus one, the length being a power of two.
+	 */
+	protected int mask;
+
+// Constructors
+	
+	/**
+	 * New empty map.
+	 */
+	public IntParticleMap()
+	{
+		this( 16 );
+	}
+	
+	/**
+	 * New empty map sized for the given number of particles.
+	 * @param capacity The expected number of particles.
+	 */
+	public IntParticleMap( int capacity )
+	{
+		int n = 16;
+		
+		while( n < capacity * 2 )
+			n *= 2;
+		
+		keys   = new int[n];
+		values = new Particle[n];
+		mask   = n - 1;
+	}
+
+// Access
+	
+	/**
+	 * Number of particles in the map.
+	 * @return The particle count.
+	 */
+	public int size()
+	{
+		return size;
+	}
+	
+	/**
+	 * The particle with the given identifier.
+	 * @param key The identifier.
+	 * @return The particle or null if not found.
+	 */
+	public Particle get( int key )
+	{
+		for( int i=hash(key)&mask; ; i=(i+1)&mask )
+		{
+			Particle value = values[i];
+			
+			if( value == null )
+				return null;
+			
+			if( keys[i] == key )
+				return value;
+		}
+	}
+
+// Commands
+	
+	/**
+	 * Put a particle in the map.
+	 * @param key The particle identifier.
+	 * @param value The particle, not null.
+	 * @return The particle previously stored with this identifier or null.
+	 */
+	public Particle put( int key, Particle value )
+	{
+		if( value == null )
+			throw new NullPointerException( "cannot put a null particle" );
+		
+		if( ( size + 1 ) * 4 > values.length * 3 )
+			grow();
+		
+		int i = hash(key)&mask;
+		
+		while( values[i] != null )
+		{
+			if( keys[i] == key )
+			{
+				Particle old = values[i];
+				values[i] = value;
+				return old;
+			}
+			
+			i = (i+1)&mask;
+		}
+		
+		keys[i]   = key;
+		values[i] = value;
+		size++;
+		
+		return null;
+	}
+	
+	/**
+	 * Remove a particle from the map.
+	 * @param key The particle identifier.
+	 * @return The removed particle or null if not found.
+	 */
+	public Particle remove( int key )
+	{
+		int i = hash(key)&mask;
+		
+		while( values[i] != null && keys[i] != key )
+			i = (i+1)&mask;
+		
+		Particle old = values[i];
+		
+		if( old == null )
+			return null;
+		
+		// Shift back the entries that follow and would not be found
+		// anymore with a hole before them.
+		
+		int j = i;
+		
+		values[i] = null;
+		
+		while( true )
+		{
+			j = (j+1)&mask;
+			
+			if( values[j] == null )
+				break;
+			
+			int k = hash(keys[j])&mask;
+			
+			if( i <= j ? ( i < k && k <= j ) : ( i < k || k <= j ) )
+				continue;
+			
+			keys[i]   = keys[j];
+			values[i] = values[j];
+			values[j] = null;
+			i         = j;
+		}
+		
+		size--;
+		
+		return old;
+	}
+	
+	/**
+	 * Remove all the particles.
+	 */
+	public void clear()
+	{
+		java.util.Arrays.fill( values, null );
+		size = 0;
+	}
+
+// Utility
+	
+	/**
+	 * Double the table size.
+	 */
+	protected void grow()
+	{
+		int[]      k = keys;
+		Particle[] v = values;
+		
+		keys   = new int[k.length*2];
+		values = new Particle[v.length*2];
+		mask   = values.length - 1;
+		size   = 0;
+		
+		for( int i=0; i<v.length; ++i )
+		{
+			if( v[i] != null )
+				put( k[i], v[i] );
+		}
+	}
+	
+	/**
+	 * Spread the bits of the key, since identifiers are often consecutive.
+	 */
+	protected static int hash( int key )
+	{
+		int h = key * 0x9E3779B9;
+		
+		return h ^ ( h >>> 16 );
+	}
+}
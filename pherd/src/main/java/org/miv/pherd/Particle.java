@@ -1,7 +1,9 @@
 package org.miv.pherd;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 
 import org.miv.pherd.geom.*;
 import org.miv.pherd.ntree.*;
@@ -19,6 +21,15 @@ import org.miv.pherd.ntree.*;
  * method. This method must store in the {@link #nextPos} field the position of the particle
  * at the next time step. The current time step is given as argument.
  * </p>
+ * 
+ * <p>
+ * When the particle box stores the positions in arrays (see
+ * {@link ParticleBox#setPositionStore(boolean)}), the {@link #pos} and
+ * {@link #nextPos} fields are not used anymore. The {@link #move(int)} method must then
+ * use {@link #setNextPosition(double, double, double)} and read positions with
+ * {@link #getX()}, {@link #getY()} and {@link #getZ()}. This works in both modes and is
+ * therefore the preferred way.
+ * </p>
  *
  * @author Antoine Dutot
  * @since 2007
@@ -52,16 +63,52 @@ public abstract class Particle
 	 */
 	protected Cell cell;
 	
+	/**
+	 * Index of this particle in the bucket of its cell.
+	 */
+	protected int cellIndex = -1;
+	
+	/**
+	 * Code of the node of the linear n-tree that held this particle at its
+	 * last build, zero if none.
+	 * @see LinearNTree#getLeafChanges()
+	 */
+	protected long leafCode = 0;
+	
 	/**
 	 * The particle box containing this particle.
 	 */
 	protected ParticleBox box = null;
+	
+	/**
+	 * Index of this particle in the particle box array, -1 if not in a box.
+	 */
+	protected int slot = -1;
+	
+	/**
+	 * The position arrays of the particle box, or null if the position is
+	 * stored in {@link #pos} and {@link #nextPos}.
+	 */
+	protected PositionStore positions = null;
 
 	/**
 	 * The particle attributes.
 	 */
 	protected HashMap<String,Object> attributes;
 	
+	/**
+	 * The last value of each attribute changed since the last flush of the
+	 * attribute events of the particle box, or null if never used.
+	 * @see ParticleBox#setDeferredAttributeEvents(boolean)
+	 */
+	protected LinkedHashMap<String,Object> changedAttributes;
+	
+	/**
+	 * The particle box whose list of changed particles holds this particle,
+	 * that is the box that will send its attribute changes, or null.
+	 */
+	protected ParticleBox changesBox;
+	
 	/**
 	 * Flag used to avoid doing work on a particle that did not moved.
 	 * This flag is set to false in {@link #nextStep(int)}, and should be set
@@ -69,6 +116,23 @@ public abstract class Particle
 	 */
 	protected boolean moved;
 	
+	/**
+	 * True if the particle box does not move this particle anymore.
+	 * @see #sleep()
+	 */
+	protected boolean asleep = false;
+	
+	/**
+	 * The particle asked to sleep during the current step.
+	 */
+	protected boolean sleepAsked = false;
+	
+	/**
+	 * The particle was woken during the current step, this wins over
+	 * {@link #sleepAsked}.
+	 */
+	protected boolean wakeAsked = false;
+	
 // Constructors
 	
 	/**
@@ -120,14 +184,45 @@ public abstract class Particle
 	}
 	
 	/**
-	 * Particle position.
+	 * Particle position. When the positions are stored in arrays by the
+	 * particle box, the returned point is a copy refreshed at each call.
 	 * @return The three particle coordinates.
 	 */
 	public Point3 getPosition()
 	{
+		if( positions != null )
+			pos.set( positions.x[slot], positions.y[slot], positions.z[slot] );
+		
 		return pos;
 	}
 	
+	/**
+	 * Particle abscissa.
+	 * @return The X coordinate.
+	 */
+	public double getX()
+	{
+		return positions != null ? positions.x[slot] : pos.x;
+	}
+	
+	/**
+	 * Particle ordinate.
+	 * @return The Y coordinate.
+	 */
+	public double getY()
+	{
+		return positions != null ? positions.y[slot] : pos.y;
+	}
+	
+	/**
+	 * Particle depth.
+	 * @return The Z coordinate.
+	 */
+	public double getZ()
+	{
+		return positions != null ? positions.z[slot] : pos.z;
+	}
+	
 	/**
 	 * The cell actually responsible for this particle.
 	 * @return The particle cell.
@@ -137,6 +232,26 @@ public abstract class Particle
 		return cell;
 	}
 	
+	/**
+	 * Index of this particle in the particles of its cell.
+	 * @return The index, or -1 if the particle has no cell.
+	 * @see Cell#getParticle(int)
+	 */
+	public int getCellIndex()
+	{
+		return cellIndex;
+	}
+	
+	/**
+	 * Code of the leaf of the linear n-tree that held this particle at its
+	 * last build.
+	 * @return The code, or zero if the particle was never in a linear n-tree.
+	 */
+	public long getLeafCode()
+	{
+		return leafCode;
+	}
+	
 	/**
 	 * Like {@link #closeTo(Particle, double)} with a delta of 0.001f.
 	 * @param other The other particle to test.
@@ -156,7 +271,10 @@ public abstract class Particle
 	 */
 	public boolean closeTo( Particle other, double delta )
 	{
-		double d = pos.distance( other.pos );
+		double dx = getX() - other.getX();
+		double dy = getY() - other.getY();
+		double dz = getZ() - other.getZ();
+		double d  = Math.sqrt( dx*dx + dy*dy + dz*dz );
 		
 		return( d <= delta );
 	}
@@ -171,12 +289,24 @@ public abstract class Particle
 	}
 	
 	/**
-	 * The value associated with one of the particle attributes.
+	 * The value associated with one of the particle attributes. The value of
+	 * an attribute stored in a column of the particle box is boxed, prefer
+	 * the column accessors for frequent reads.
 	 * @param attribute The attribute.
-	 * @return The attribute value or null if not found (or the attribute value is null).
+	 * @return The attribute value or null if not found (or the attribute value is null,
+	 * or its column is unset for this particle).
+	 * @see ParticleBox#registerAttribute(String, AttributeColumn.Type)
 	 */
 	public Object getAttribute( String attribute )
 	{
+		if( box != null && ! box.columns.isEmpty() )
+		{
+			AttributeColumn column = box.columns.get( attribute );
+			
+			if( column != null )
+				return column.get( slot );
+		}
+		
 		if( attributes != null )
 			return attributes.get( attribute );
 	
@@ -184,11 +314,28 @@ public abstract class Particle
 	}
 	
 	/**
-	 * Iterator on the set of attribute keys. Null if there are no attributes.
+	 * Iterator on the set of attribute keys, including the attributes stored
+	 * in the columns of the particle box. Null if there are no attributes.
 	 * @return An iterator on strings.
 	 */
 	public Iterator<String> getAttributeKeyIterator()
 	{
+		if( box != null && ! box.columnList.isEmpty() )
+		{
+			ArrayList<String> keys = new ArrayList<String>();
+			
+			for( AttributeColumn column: box.columnList )
+			{
+				if( column.isSet( slot ) )
+					keys.add( column.name );
+			}
+			
+			if( attributes != null )
+				keys.addAll( attributes.keySet() );
+			
+			return keys.iterator();
+		}
+		
 		if( attributes != null )
 			return attributes.keySet().iterator();
 		
@@ -206,18 +353,59 @@ public abstract class Particle
 		this.cell = responsible;
 	}
 	
+	/**
+	 * Cell of the n-tree that handles this particle and index of the particle
+	 * in this cell.
+	 * @param responsible The cell that is now responsible for this particle.
+	 * @param index The index of the particle in the cell.
+	 */
+	public void setCell( Cell responsible, int index )
+	{
+		this.cell      = responsible;
+		this.cellIndex = index;
+	}
+	
+	/**
+	 * Leaf of the linear n-tree that holds this particle.
+	 * @param code The locational code of the leaf.
+	 */
+	public void setLeafCode( long code )
+	{
+		this.leafCode = code;
+	}
+	
+	/**
+	 * Set the position the particle will have at the next step. This is to
+	 * be called by {@link #move(int)}, with the {@link #moved} flag set to
+	 * true.
+	 * @param x The next abscissa.
+	 * @param y The next ordinate.
+	 * @param z The next depth.
+	 */
+	public void setNextPosition( double x, double y, double z )
+	{
+		if( positions != null )
+		     positions.setNext( slot, x, y, z );
+		else nextPos.set( x, y, z );
+	}
+	
 	/**
 	 * The importance (weight, mass, etc.) of the particle.
 	 * @param newWeight The new value.
 	 */
 	public void setWeight( double newWeight )
 	{
+		double delta = newWeight - weight;
+		
 		weight = newWeight;
 		
 		// The data may take the weight into account.
 		
 		if( cell != null )
+		{
+			cell.particleWeightChanged( this, delta );
 			cell.getData().recompute();
+		}
 	}
 	
 	/**
@@ -233,25 +421,44 @@ public abstract class Particle
 		     v = values[0];
 		else v = values;
 		
-		if( attributes == null )
-			attributes = new HashMap<String,Object>();
+		AttributeColumn column = box != null ? box.columns.get( attribute ) : null;
 		
-		attributes.put( attribute, v );
+		if( column != null )
+		{
+			column.set( slot, v );
+		}
+		else
+		{
+			if( attributes == null )
+				attributes = new HashMap<String,Object>();
+			
+			attributes.put( attribute, v );
+		}
 		
-		if( box != null && box.listeners != null )
-			for( ParticleBoxListener listener: box.listeners )
-				listener.particleAttributeChanged( id, attribute, v, false );
+		if( box != null )
+			box.fireParticleAttributeChanged( this, attribute, v, false );
 	}
 	
+	/**
+	 * Remove an attribute. An attribute stored in a column of the particle
+	 * box is unset.
+	 * @param attribute The attribute name.
+	 */
 	public void removeAttribute( String attribute )
 	{
-		if( attributes != null )
+		AttributeColumn column = box != null ? box.columns.get( attribute ) : null;
+		
+		if( column != null )
+		{
+			column.clear( slot );
+			box.fireParticleAttributeChanged( this, attribute, null, true );
+		}
+		else if( attributes != null )
 		{
 			attributes.remove( attribute );
 	
-			if( box != null && box.listeners != null )
-				for( ParticleBoxListener listener: box.listeners )
-					listener.particleAttributeChanged( id, attribute, null, true );
+			if( box != null )
+				box.fireParticleAttributeChanged( this, attribute, null, true );
 		}
 	}
 	
@@ -283,19 +490,81 @@ public abstract class Particle
 	{
 		if( moved )
 		{
-			pos.copy( nextPos );
+			double ox = getX(), oy = getY(), oz = getZ();
+			double x, y, z;
+			
+			if( positions != null )
+			{
+				positions.commit( slot );
+				x = positions.x[slot];
+				y = positions.y[slot];
+				z = positions.z[slot];
+			}
+			else
+			{
+				pos.copy( nextPos );
+				x = pos.x;
+				y = pos.y;
+				z = pos.z;
+			}
 
-			assert cell != null : "No responsible cell ?";
+			// The tree may be rebuilt at each step instead of following the
+			// particles.
+			
+			assert cell != null || box.getNTree().isDetached() : "No responsible cell ?";
 		
-			cell.particleMoved( this );
+			if( cell != null )
+				cell.particleMoved( this, x - ox, y - oy, z - oz );
 
-			for( ParticleBoxListener listener: box.listeners )
-				listener.particleMoved( id, pos.x, pos.y, pos.z );
+			// The particle may have been deleted for leaving the universe.
+			
+			if( box != null )
+				box.fireParticleMoved( this, x, y, z );
 			
 			moved = false;
 		}
 	}
 
+	/**
+	 * True if the particle box does not move this particle.
+	 * @return True if asleep.
+	 * @see #sleep()
+	 */
+	public boolean isAsleep()
+	{
+		return asleep;
+	}
+	
+	/**
+	 * Stop moving this particle, its {@link #move(int)} and
+	 * {@link #nextStep(int)} methods are not called anymore until it is
+	 * woken, and a step costs nothing for it. A particle at rest typically
+	 * calls this from {@link #move(int)}. During a step, the particle falls
+	 * asleep at the end of the step, after its last move was committed, and
+	 * only if no other particle woke it in the same step. This has no effect
+	 * outside a particle box.
+	 * @see #wake()
+	 */
+	public void sleep()
+	{
+		if( box != null )
+			box.requestSleep( this, true );
+	}
+	
+	/**
+	 * Move this particle again if it was asleep. A moving particle
+	 * typically wakes its neighbours from its {@link #move(int)} method,
+	 * which may run in parallel with the moves of other particles. During a
+	 * step the particle wakes at the end of the step, and moves at the next
+	 * one.
+	 * @see #sleep()
+	 */
+	public void wake()
+	{
+		if( box != null )
+			box.requestSleep( this, false );
+	}
+	
 	/**
 	 * Called by the particle box when this particle is inserted in it.
 	 * @param box The particle box that now contains this particle.
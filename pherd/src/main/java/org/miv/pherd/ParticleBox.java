@@ -1,6 +1,8 @@
 package org.miv.pherd;
 
 import java.util.*;
+import java.util.concurrent.*;
+
 import org.miv.pherd.ntree.*;
 
 /**
@@ -11,28 +13,227 @@ import org.miv.pherd.ntree.*;
  */
 public class ParticleBox
 {
+// Constant
+	
+	/**
+	 * How the n-tree follows the particles.
+	 */
+	public static enum TreeMode {
+		/**
+		 * The cells of the n-tree follow the particles that move, only the
+		 * cells that changed are updated.
+		 */
+		INCREMENTAL,
+		/**
+		 * The n-tree is not maintained, a {@link LinearNTree} is built from
+		 * scratch at the end of each step by sorting the particles by Morton
+		 * code. This is faster when most of the particles change of cell at
+		 * each step.
+		 */
+		REBUILD,
+		/**
+		 * Switch between the two other modes according to the fraction of the
+		 * particles that changed of leaf during the last step. The n-tree is
+		 * empty while the tree is rebuilt, the switches are told to the
+		 * {@link ParticleBoxTreeListener} listeners.
+		 * @see ParticleBox#setAutoTreeThresholds(double, double)
+		 */
+		AUTO
+	};
+	
+	/**
+	 * Value recorded in the change set of a particle for a removed attribute.
+	 * @see #setDeferredAttributeEvents(boolean)
+	 */
+	protected static final Object REMOVED_ATTRIBUTE = new Object();
+	
 // Attributes
 
 	/**
-	 * The list of particles.
+	 * The list of particles. This is empty in integer identifiers mode.
+	 * @see #setIntegerIds(boolean)
 	 */
 	protected HashMap<Object,Particle> particles = new HashMap<Object,Particle>();
+	
+	/**
+	 * The particles indexed by integer identifiers, or null if the
+	 * identifiers are arbitrary objects.
+	 * @see #setIntegerIds(boolean)
+	 */
+	protected IntParticleMap intParticles = null;
+	
+	/**
+	 * The same particles packed in an array, each particle knowing its index (its slot) in
+	 * it. Used to iterate on particles during the steps and to split the move phase between
+	 * several threads.
+	 */
+	protected Particle[] slots = new Particle[16];
+	
+	/**
+	 * Number of used cells in {@link #slots}.
+	 */
+	protected int slotCount = 0;
+	
+	/**
+	 * The attribute columns by attribute name.
+	 * @see #registerAttribute(String, AttributeColumn.Type)
+	 */
+	protected HashMap<String,AttributeColumn> columns = new HashMap<String,AttributeColumn>();
+	
+	/**
+	 * The same attribute columns, in registration order.
+	 */
+	protected ArrayList<AttributeColumn> columnList = new ArrayList<AttributeColumn>();
+	
+	/**
+	 * Number of particles awake. These particles occupy the first slots, the
+	 * sleeping particles come after them.
+	 * @see Particle#sleep()
+	 */
+	protected int activeCount = 0;
+	
+	/**
+	 * True during {@link #step()}, while the sleep and wake requests are
+	 * deferred.
+	 */
+	protected boolean stepping = false;
+	
+	/**
+	 * Particles that asked to sleep or were woken during the current step.
+	 * The move phase may run in parallel, hence the concurrent queue.
+	 */
+	protected ConcurrentLinkedQueue<Particle> sleepChanges = new ConcurrentLinkedQueue<Particle>();
+	
+	/**
+	 * The particle positions stored in arrays indexed by slot, or null if each
+	 * particle stores its position.
+	 * @see #setPositionStore(boolean)
+	 */
+	protected PositionStore positions = null;
 
 	/**
 	 * The n-tree.
 	 */
 	protected NTree tree;
 	
+	/**
+	 * How the tree follows the particles.
+	 */
+	protected TreeMode treeMode = TreeMode.INCREMENTAL;
+	
+	/**
+	 * The tree built at each step when the n-tree is not maintained, null
+	 * until needed.
+	 */
+	protected LinearNTree linearTree = null;
+	
+	/**
+	 * True if the linear tree is rebuilt at each step instead of maintaining
+	 * the n-tree.
+	 */
+	protected boolean rebuilding = false;
+	
+	/**
+	 * In automatic tree mode, fraction of the particles that change of leaf
+	 * above which the tree is rebuilt at each step.
+	 */
+	protected double rebuildAbove = 0.3;
+	
+	/**
+	 * In automatic tree mode, fraction of the particles that change of leaf
+	 * under which the n-tree is maintained again.
+	 */
+	protected double maintainBelow = 0.1;
+	
 	/**
 	 * Set of listeners.
 	 */
 	protected ArrayList<ParticleBoxListener> listeners = new ArrayList<ParticleBoxListener>();
 	
+	/**
+	 * The listeners that receive the moves one particle at a time.
+	 */
+	protected ArrayList<ParticleBoxListener> moveListeners = new ArrayList<ParticleBoxListener>();
+	
+	/**
+	 * The listeners that receive the moves of a step at once.
+	 */
+	protected ArrayList<ParticleBoxBatchListener> batchListeners = new ArrayList<ParticleBoxBatchListener>();
+	
+	/**
+	 * The listeners told when the box switches trees.
+	 */
+	protected ArrayList<ParticleBoxTreeListener> treeListeners = new ArrayList<ParticleBoxTreeListener>();
+	
+	/**
+	 * The particles that moved during the current step, only filled if there are batch
+	 * listeners.
+	 */
+	protected Particle[] movedParticles = new Particle[16];
+	
+	/**
+	 * The positions of the moved particles, three coordinates per particle.
+	 */
+	protected double[] movedPositions = new double[48];
+	
+	/**
+	 * Number of particles in {@link #movedParticles}.
+	 */
+	protected int movedCount = 0;
+	
+	/**
+	 * The arrays given to the batch listeners, reused at each step.
+	 */
+	protected Object[] batchIds = new Object[16];
+	
+	protected double[] batchX = new double[16], batchY = new double[16], batchZ = new double[16];
+	
+	/**
+	 * True if the attribute changes are sent once per step.
+	 * @see #setDeferredAttributeEvents(boolean)
+	 */
+	protected boolean deferAttributeEvents = false;
+	
+	/**
+	 * The particles whose attributes changed since the last flush, in the
+	 * order of their first change. Each particle holds its own change set.
+	 */
+	protected ArrayList<Particle> changedParticles = new ArrayList<Particle>();
+	
 	/**
 	 * Current step.
 	 */
 	protected int time = 0;
 	
+	/**
+	 * The thread pool used to run the move phase of each step, or null if
+	 * the step is sequential.
+	 * @see #setParallelStep(ExecutorService, int)
+	 */
+	protected ExecutorService stepPool = null;
+	
+	/**
+	 * True if the step pool has been created by this box and must be shut
+	 * down by it.
+	 */
+	protected boolean ownStepPool = false;
+	
+	/**
+	 * Number of tasks the move phase is split into when parallel.
+	 */
+	protected int stepTasks = 1;
+	
+	/**
+	 * Under this number of particles per task, the move phase is run
+	 * sequentially even if a pool is set.
+	 */
+	protected int minParticlesPerTask = 512;
+	
+	/**
+	 * The move tasks, reused at each step.
+	 */
+	protected ArrayList<MoveTask> moveTasks = new ArrayList<MoveTask>();
+	
 // Constructors
 
 	/**
@@ -50,30 +251,158 @@ public class ParticleBox
 // Access
 
 	/**
-	 * Access to a particle.
+	 * Access to a particle. In integer identifiers mode, only an Integer
+	 * identifier can match a particle.
 	 * @param id The particle unique identifier.
 	 */
 	public Particle getParticle( Object id )
 	{
+		if( intParticles != null )
+			return ( id instanceof Integer ) ? intParticles.get( (Integer) id ) : null;
+		
+		return particles.get( id );
+	}
+	
+	/**
+	 * Access to a particle by its integer identifier, without boxing. This
+	 * works only in integer identifiers mode.
+	 * @param id The particle unique identifier.
+	 * @see #setIntegerIds(boolean)
+	 */
+	public Particle getParticle( int id )
+	{
+		if( intParticles != null )
+			return intParticles.get( id );
+		
 		return particles.get( id );
 	}
 	
 	/**
-	 * The internal space representation, a n-tree.
+	 * The internal space representation, a n-tree. While the box rebuilds
+	 * its tree at each step, in {@link TreeMode#REBUILD} mode or after the
+	 * {@link TreeMode#AUTO} mode switched to it, this n-tree is detached and
+	 * empty, the tree to use is {@link #getLinearNTree()}. The listeners of
+	 * the n-tree then receive the events of the linear tree.
 	 * @return The n-tree.
+	 * @see #isRebuildingTree()
+	 * @see ParticleBoxTreeListener
 	 */
 	public NTree getNTree()
 	{
 		return tree;
 	}
 	
+	/**
+	 * How the tree follows the particles.
+	 * @return The tree mode.
+	 * @see #setTreeMode(TreeMode)
+	 */
+	public TreeMode getTreeMode()
+	{
+		return treeMode;
+	}
+	
+	/**
+	 * True if the tree is rebuilt at each step instead of maintained. This
+	 * is always the case in {@link TreeMode#REBUILD} mode, and changes with
+	 * the particle moves in {@link TreeMode#AUTO} mode.
+	 * @return True if the tree to use is {@link #getLinearNTree()}, false if
+	 * it is {@link #getNTree()}.
+	 */
+	public boolean isRebuildingTree()
+	{
+		return rebuilding;
+	}
+	
+	/**
+	 * The tree built at each step when the tree is rebuilt. It reflects the
+	 * particle positions at the end of the last step, the particles added or
+	 * removed since are taken into account at the next step.
+	 * @return The linear tree, or null if the tree never was rebuilt.
+	 * @see #isRebuildingTree()
+	 */
+	public LinearNTree getLinearNTree()
+	{
+		return linearTree;
+	}
+	
 	/**
 	 * Number of particles in the box.
 	 * @return The particle count.
 	 */
 	public int getParticleCount()
 	{
-		return particles.size();
+		return slotCount;
+	}
+	
+	/**
+	 * True if the attribute change events are coalesced and sent once per
+	 * step.
+	 * @return True in deferred attribute events mode.
+	 * @see #setDeferredAttributeEvents(boolean)
+	 */
+	public boolean isDeferredAttributeEvents()
+	{
+		return deferAttributeEvents;
+	}
+	
+	/**
+	 * Number of particles moved at each step, the others are asleep. The
+	 * particles awake are those of indices 0 to this count excluded, see
+	 * {@link #getParticleAt(int)}.
+	 * @return The active particle count.
+	 * @see Particle#sleep()
+	 */
+	public int getActiveParticleCount()
+	{
+		return activeCount;
+	}
+	
+	/**
+	 * Access to a particle by its index in the box, between 0 included and
+	 * {@link #getParticleCount()} excluded. The indices change when particles
+	 * are removed, fall asleep or wake, this is only meant to walk all the
+	 * particles without an iterator. The particles awake come first.
+	 * @param index The particle index.
+	 * @return The particle.
+	 */
+	public Particle getParticleAt( int index )
+	{
+		if( index < 0 || index >= slotCount )
+			throw new IndexOutOfBoundsException( "no particle at index "+index );
+		
+		return slots[index];
+	}
+	
+	/**
+	 * The attribute column registered under the given name.
+	 * @param name The attribute name.
+	 * @return The column, or null if the attribute is not stored in a column.
+	 * @see #registerAttribute(String, AttributeColumn.Type)
+	 */
+	public AttributeColumn getAttributeColumn( String name )
+	{
+		return columns.get( name );
+	}
+	
+	/**
+	 * Number of registered attribute columns.
+	 * @return The column count.
+	 */
+	public int getAttributeColumnCount()
+	{
+		return columnList.size();
+	}
+	
+	/**
+	 * Access to an attribute column by its registration index.
+	 * @param index The column index, between 0 included and
+	 * {@link #getAttributeColumnCount()} excluded.
+	 * @return The column.
+	 */
+	public AttributeColumn getAttributeColumn( int index )
+	{
+		return columnList.get( index );
 	}
 	
 	/**
@@ -82,9 +411,55 @@ public class ParticleBox
 	 */
 	public Iterator<Object> getParticleIdIterator()
 	{
+		if( intParticles != null )
+		{
+			return new Iterator<Object>() {
+				protected int i = 0;
+				public boolean hasNext() { return i < slotCount; }
+				public Object next()
+				{
+					if( i >= slotCount )
+						throw new NoSuchElementException();
+					
+					return slots[i++].getId();
+				}
+				public void remove() { throw new UnsupportedOperationException(); }
+			};
+		}
+		
 		return particles.keySet().iterator();
 	}
 	
+	/**
+	 * True if the particles identifiers are integers indexed without boxing.
+	 * @return True in integer identifiers mode.
+	 * @see #setIntegerIds(boolean)
+	 */
+	public boolean hasIntegerIds()
+	{
+		return( intParticles != null );
+	}
+	
+	/**
+	 * The position arrays, or null if the particles store their own positions.
+	 * @return The position store or null.
+	 * @see #setPositionStore(boolean)
+	 */
+	public PositionStore getPositionStore()
+	{
+		return positions;
+	}
+	
+	/**
+	 * True if the move phase of each step is split between several threads.
+	 * @return True if the step is parallel.
+	 * @see #setParallelStep(ExecutorService, int)
+	 */
+	public boolean isParallelStep()
+	{
+		return( stepPool != null );
+	}
+	
 // Commands
 
 	/**
@@ -96,28 +471,47 @@ public class ParticleBox
 	public void addParticle( Particle particle )
 		throws IdAlreadyInUseException
 	{
-		tree.addParticle( particle );
-		Particle p = particles.put( particle.getId(), particle );
+		Particle p;
+		
+		if( intParticles != null )
+		{
+			if( ! ( particle.getId() instanceof Integer ) )
+				throw new RuntimeException( "integer identifiers mode, cannot add particle "+particle.getId() );
+			
+			tree.addParticle( particle );
+			p = intParticles.put( (Integer) particle.getId(), particle );
+		}
+		else
+		{
+			tree.addParticle( particle );
+			p = particles.put( particle.getId(), particle );
+		}
 		
 		if( p != null && p != particle )
 			throw new IdAlreadyInUseException( "a particle with the same identifier already exists ("+particle.getId()+")" );
 
 		particle.setBox( this );
+		addSlot( particle );
 		
 		for( ParticleBoxListener listener: listeners )
-			listener.particleAdded( particle.getId(), particle.pos.x, particle.pos.y, particle.pos.z );
+			listener.particleAdded( particle.getId(), particle.getX(), particle.getY(), particle.getZ() );
 		
 		particle.inserted();
 	}
 
 	/**
-	 * Remove the particle identifier by the given identifier.
+	 * Remove the particle identifier by the given identifier. In integer
+	 * identifiers mode, only an Integer identifier can match a particle.
 	 * @param id The particle unique identifier.
 	 * @return The removed particle (or null if not found).
 	 */
 	public Particle removeParticle( Object id )
 	{
-		Particle particle = particles.remove( id );
+		Particle particle;
+		
+		if( intParticles != null )
+		     particle = ( id instanceof Integer ) ? intParticles.remove( (Integer) id ) : null;
+		else particle = particles.remove( id );
 		
 		// Remove it from the tree.
 		
@@ -129,6 +523,7 @@ public class ParticleBox
 				listener.particleRemoved( particle.getId() );
 
 			tree.removeParticle( particle );
+			removeSlot( particle );
 			particle.setBox( null );
 		}
 		
@@ -140,33 +535,56 @@ public class ParticleBox
 	 */
 	public void removeAllParticles()
 	{
-		for( Particle particle: particles.values() )
+		for( int i=0; i<slotCount; ++i )
 		{
+			Particle particle = slots[i];
+			
 			for( ParticleBoxListener listener: listeners )
 				listener.particleRemoved( particle.getId() );
+			
+			detachAttributes( particle );
 		
 			Cell cell = particle.getCell();
 			
 //			if( cell != null )
 //			{
 				tree.removeParticle( particle );
-				assert cell != null : "removing a particle ("+particle.getId()+") that is not in the tree, it has no cell";
-				assert ! cell.hasParticle( particle ) : "the cell from which the particle was removed still contains the particle";
+				assert cell != null || tree.isDetached() : "removing a particle ("+particle.getId()+") that is not in the tree, it has no cell";
+				assert cell == null || ! cell.hasParticle( particle ) : "the cell from which the particle was removed still contains the particle";
 //			}
 	
+			detachPosition( particle );
+			clearSleep( particle );
+			particle.slot = -1;
 			particle.setBox( null );
 		}
 		
 		particles.clear();
 		
+		if( intParticles != null )
+			intParticles.clear();
+		
+		for( AttributeColumn column: columnList )
+		{
+			for( int i=0; i<slotCount; ++i )
+				column.clear( i );
+		}
+		
+		Arrays.fill( slots, 0, slotCount, null );
+		slotCount   = 0;
+		activeCount = 0;
+		sleepChanges.clear();
+		
 		assert tree.getRootCell().getPopulation() == 0 : "after remove all particles, the mama cell strill contains "+tree.getRootCell().getPopulation()+" particles";
 	}
 	
 	/**
 	 * One step of the particle simulation. This method:
 	 * <ol>
-	 * 		<li>move all particles according to their old positions;</li>
+	 * 		<li>move all particles awake according to their old positions;</li>
 	 * 		<li>commit the newly computed position into the particles;</li>
+	 * 		<li>put asleep or wake the particles that asked it during the
+	 *          step;</li>
 	 * 		<li>appropriately subdivide or fusion the n-tree cells for the next
 	 *          computation;</li>
 	 * 		<li>tell what it did to the listeners.</li>
@@ -176,22 +594,47 @@ public class ParticleBox
 	{
 //		System.err.printf( "ITERATION n°%d%n", time );
 
-		// First make all particles move.
+		// First make all particles awake move, then commit their moves.
+		
+		stepping = true;
+		
+		try
+		{
+			moveParticles();
+		}
+		finally
+		{
+			stepping = false;
+		}
 		
-		for( Particle particle: particles.values() )
-			particle.move( time );
+		// The sleeping particles still are in the tree, only the active set
+		// changes.
 		
-		// Next make all particle switch to their next position.
+		applySleepChanges();
 		
-		for( Particle particle: particles.values() )
-			particle.nextStep( time );
+		// Next we check the tree, or rebuild it.
 		
-		// Next we check the tree.
+		if( rebuilding )
+		{
+			linearTree.setParallelBuild( stepPool, stepTasks );
+			linearTree.build( this );
+		}
+		else
+		{
+			tree.checkDivisions();
+		}
 		
-		tree.checkDivisions();
+		if( treeMode == TreeMode.AUTO )
+			checkTreeMode();
 		
 		// Tell to the listeners.
 		
+		if( movedCount > 0 )
+			fireParticlesMoved();
+		
+		if( ! changedParticles.isEmpty() )
+			flushAttributeChanges();
+		
 		for( ParticleBoxListener listener: listeners )
 			listener.stepFinished( time );
 		
@@ -199,26 +642,897 @@ public class ParticleBox
 	}
 	
 	/**
-	 * Add a listener for all events coming from the particle box: when a
-	 * particle is added, removed or moved and for each time step.
-	 * @param listener The listener to add.
+	 * Choose how the tree follows the particles. In {@link TreeMode#REBUILD}
+	 * mode the n-tree is emptied, its cells are removed, and a
+	 * {@link LinearNTree} sharing its listeners is built at each step. Going
+	 * back to {@link TreeMode#INCREMENTAL} mode removes the nodes of the
+	 * linear tree and puts the particles back in the n-tree. The listeners
+	 * therefore always see the cells of the tree in use. In
+	 * {@link TreeMode#AUTO} mode the box switches between the two trees
+	 * after each step.
+	 * @param mode The tree mode.
 	 */
-	public void addParticleBoxListener( ParticleBoxListener listener )
+	public void setTreeMode( TreeMode mode )
 	{
-		listeners.add( listener );
+		treeMode = mode;
+		
+		if( mode == TreeMode.REBUILD )
+			useLinearTree( true );
+		else if( mode == TreeMode.INCREMENTAL )
+			useLinearTree( false );
 	}
 	
 	/**
-	 * Remove a listener from the particle box.
-	 * @param listener The listener to remove.
+	 * The fractions of particles changing of leaf at each step that make the
+	 * {@link TreeMode#AUTO} mode switch trees. The lower threshold avoids
+	 * switching at each step around a single value.
+	 * @param rebuildAbove The tree is rebuilt at each step when more
+	 * particles than this fraction changed of leaf during a step.
+	 * @param maintainBelow The n-tree is maintained again when less particles
+	 * than this fraction changed of leaf during a step.
 	 */
-	public void removeParticleBoxListener( ParticleBoxListener listener )
+	public void setAutoTreeThresholds( double rebuildAbove, double maintainBelow )
 	{
-		int i = listeners.indexOf( listener );
+		if( maintainBelow > rebuildAbove )
+			throw new RuntimeException( "the maintain threshold cannot be above the rebuild threshold" );
 		
-		if( i >= 0 )
+		this.rebuildAbove  = rebuildAbove;
+		this.maintainBelow = maintainBelow;
+	}
+	
+	/**
+	 * Store the positions of all the particles of this box in arrays indexed
+	 * by slot, instead of a point object per particle. The step and the
+	 * n-tree then read the positions linearly in memory, which matters for
+	 * large numbers of particles. In this mode the particles must use
+	 * {@link Particle#setNextPosition(double, double, double)} in their
+	 * move() method. This can be changed at any time, the positions are
+	 * copied.
+	 * @param on True to store positions in arrays.
+	 */
+	public void setPositionStore( boolean on )
+	{
+		if( on && positions == null )
 		{
-			listeners.remove( i );
+			positions = new PositionStore( slots.length );
+			
+			for( int i=0; i<slotCount; ++i )
+				attachPosition( slots[i] );
+		}
+		else if( ! on && positions != null )
+		{
+			for( int i=0; i<slotCount; ++i )
+				detachPosition( slots[i] );
+			
+			positions = null;
+		}
+	}
+	
+	/**
+	 * Index the particles by integer identifiers. In this mode the particle
+	 * identifiers must be Integer instances, and the box stores them in a
+	 * primitive map instead of a HashMap, which saves the hash entries. This
+	 * can only be changed when the box is empty.
+	 * @param on True to use integer identifiers.
+	 */
+	public void setIntegerIds( boolean on )
+	{
+		if( slotCount > 0 )
+			throw new RuntimeException( "cannot change the identifiers mode of a non-empty particle box" );
+		
+		intParticles = on ? new IntParticleMap() : null;
+	}
+	
+	/**
+	 * Switch between the maintained n-tree and the linear tree rebuilt at
+	 * each step, and tell the tree listeners.
+	 * @param on True to rebuild the tree at each step.
+	 */
+	protected void useLinearTree( boolean on )
+	{
+		if( on == rebuilding )
+			return;
+		
+		if( on )
+		{
+			tree.detach();
+			
+			if( linearTree == null )
+				linearTree = new LinearNTree( tree );
+			
+			rebuilding = true;
+			
+			linearTree.setParallelBuild( stepPool, stepTasks );
+			linearTree.build( this );
+		}
+		else
+		{
+			linearTree.clear();
+			
+			rebuilding = false;
+			
+			tree.attach();
+		}
+		
+		for( ParticleBoxTreeListener listener: treeListeners )
+			listener.treeSwitched( rebuilding );
+	}
+	
+	/**
+	 * In automatic tree mode, switch trees if needed according to the number
+	 * of particles that changed of leaf during the last step.
+	 */
+	protected void checkTreeMode()
+	{
+		if( slotCount == 0 )
+			return;
+		
+		int    changes  = rebuilding ? linearTree.getLeafChanges() : tree.getLeafChanges();
+		double fraction = changes / (double) slotCount;
+		
+		if( ! rebuilding && fraction > rebuildAbove )
+			useLinearTree( true );
+		else if( rebuilding && fraction < maintainBelow )
+			useLinearTree( false );
+	}
+	
+	/**
+	 * Split the move phase of each step in several tasks run in the given
+	 * thread pool. Only the {@link Particle#move(int)} calls are run in
+	 * parallel, the commit of positions, the tree update and the events
+	 * remain sequential and occur in the same order as in a sequential step.
+	 * Therefore the move() methods can read the n-tree and the other
+	 * particles, but must only write in their own particle (its next position
+	 * and the {@link Particle#moved} flag).
+	 * @param pool The thread pool, not shut down by this box.
+	 * @param tasks The number of tasks the particles are split into, usually
+	 * the number of threads of the pool.
+	 */
+	public void setParallelStep( ExecutorService pool, int tasks )
+	{
+		if( pool == null || tasks < 1 )
+			throw new RuntimeException( "invalid parallel step pool or task count ("+tasks+")" );
+		
+		setSequentialStep();
+		
+		stepPool  = pool;
+		stepTasks = tasks;
+	}
+	
+	/**
+	 * Like {@link #setParallelStep(ExecutorService, int)} but create a pool of the
+	 * given number of daemon threads owned by this box.
+	 * @param threads The number of threads.
+	 */
+	public void setParallelStep( int threads )
+	{
+		setParallelStep( Executors.newFixedThreadPool( threads, new ThreadFactory() {
+			protected int n = 0;
+			public Thread newThread( Runnable r )
+			{
+				Thread t = new Thread( r, "pherd-step-"+(n++) );
+				t.setDaemon( true );
+				return t;
+			}
+		} ), threads );
+		
+		ownStepPool = true;
+	}
+	
+	/**
+	 * Go back to a sequential step. If the thread pool was created by this box it is shut
+	 * down.
+	 */
+	public void setSequentialStep()
+	{
+		if( stepPool != null && ownStepPool )
+			stepPool.shutdown();
+		
+		stepPool    = null;
+		ownStepPool = false;
+		stepTasks   = 1;
+	}
+	
+	/**
+	 * Store an attribute of the particles of this box in a typed column
+	 * instead of their attribute maps. The values the particles already have
+	 * for this attribute are moved in the column.
+	 * @param name The attribute name.
+	 * @param type The type of the values.
+	 * @return The column, to read and write the values without looking up
+	 * the name.
+	 * @throws RuntimeException If the attribute is already registered with
+	 * another type, or a value cannot be stored in the column, the values
+	 * being then left in the particles.
+	 */
+	public AttributeColumn registerAttribute( String name, AttributeColumn.Type type )
+	{
+		AttributeColumn column = columns.get( name );
+		
+		if( column != null )
+		{
+			if( column.type != type )
+				throw new RuntimeException( "attribute "+name+" already registered as "+column.type );
+			
+			return column;
+		}
+		
+		column = new AttributeColumn( this, name, type, slots.length );
+		
+		// Copy all the values before removing them from the particles, so
+		// that nothing is lost if one of them does not fit in the column.
+		
+		for( int i=0; i<slotCount; ++i )
+		{
+			HashMap<String,Object> attributes = slots[i].attributes;
+			
+			if( attributes != null && attributes.containsKey( name ) )
+				column.set( i, attributes.get( name ) );
+		}
+		
+		for( int i=0; i<slotCount; ++i )
+		{
+			HashMap<String,Object> attributes = slots[i].attributes;
+			
+			if( attributes != null )
+				attributes.remove( name );
+		}
+		
+		columns.put( name, column );
+		columnList.add( column );
+		
+		return column;
+	}
+	
+	/**
+	 * Record the attribute changes instead of sending them immediately to
+	 * the listeners. Only the last value of each attribute of each particle
+	 * is kept, and the changes are sent at the end of each step, after the
+	 * moves and before {@link ParticleBoxListener#stepFinished(int)}. An
+	 * attribute set then removed during the step is sent as removed. This
+	 * avoids flooding the listeners, often proxies or network senders, with
+	 * intermediate values when the particles update their attributes at
+	 * each step. The changes made between two steps are sent at the end of
+	 * the next step, or by {@link #flushAttributeChanges()}. Leaving this
+	 * mode sends the pending changes.
+	 * @param on True to coalesce the attribute changes.
+	 */
+	public void setDeferredAttributeEvents( boolean on )
+	{
+		if( ! on && deferAttributeEvents )
+			flushAttributeChanges();
+		
+		deferAttributeEvents = on;
+	}
+	
+	/**
+	 * Send the recorded attribute changes to the listeners, in the order of
+	 * the first change of each particle, then of each of its attributes. The
+	 * changes of the particles removed from the box since are dropped, unless
+	 * a partitioned box handed the particle to another region, which then
+	 * sends them.
+	 * @see #setDeferredAttributeEvents(boolean)
+	 */
+	public void flushAttributeChanges()
+	{
+		for( int i=0; i<changedParticles.size(); ++i )
+		{
+			Particle particle = changedParticles.get( i );
+			
+			// Another box sends its changes, or they were already sent.
+			
+			if( particle.changesBox != this )
+				continue;
+			
+			if( particle.box == this )
+			{
+				Object id = particle.getId();
+				
+				for( Map.Entry<String,Object> change: particle.changedAttributes.entrySet() )
+				{
+					Object  value   = change.getValue();
+					boolean removed = value == REMOVED_ATTRIBUTE;
+					
+					for( ParticleBoxListener listener: listeners )
+						listener.particleAttributeChanged( id, change.getKey(), removed ? null : value, removed );
+				}
+			}
+			
+			particle.changedAttributes.clear();
+			particle.changesBox = null;
+		}
+		
+		changedParticles.clear();
+	}
+	
+	/**
+	 * Wake all the sleeping particles.
+	 * @see Particle#wake()
+	 */
+	public void wakeAllParticles()
+	{
+		// Outside of a step each particle woken takes the first sleeping slot.
+		
+		for( int i=activeCount; i<slotCount; ++i )
+			slots[i].wake();
+	}
+	
+	/**
+	 * Under this number of particles per task, the move phase is kept sequential, the cost of
+	 * dispatching the tasks being larger than the gain.
+	 * @param n The minimum number of particles per task, at least one.
+	 */
+	public void setMinParticlesPerTask( int n )
+	{
+		if( n < 1 )
+			throw new RuntimeException( "invalid minimum number of particles per task ("+n+")" );
+		
+		minParticlesPerTask = n;
+	}
+	
+	/**
+	 * Add a listener for all events coming from the particle box: when a
+	 * particle is added, removed or moved and for each time step. A
+	 * {@link ParticleBoxTreeListener} is also told when the box switches
+	 * trees.
+	 * @param listener The listener to add.
+	 */
+	public void addParticleBoxListener( ParticleBoxListener listener )
+	{
+		listeners.add( listener );
+		
+		if( listener instanceof ParticleBoxBatchListener )
+		     batchListeners.add( (ParticleBoxBatchListener) listener );
+		else moveListeners.add( listener );
+		
+		if( listener instanceof ParticleBoxTreeListener )
+			treeListeners.add( (ParticleBoxTreeListener) listener );
+	}
+	
+	/**
+	 * Remove a listener from the particle box.
+	 * @param listener The listener to remove.
+	 */
+	public void removeParticleBoxListener( ParticleBoxListener listener )
+	{
+		int i = listeners.indexOf( listener );
+		
+		if( i >= 0 )
+		{
+			listeners.remove( i );
+			
+			if( listener instanceof ParticleBoxBatchListener )
+			     batchListeners.remove( listener );
+			else moveListeners.remove( listener );
+			
+			if( listener instanceof ParticleBoxTreeListener )
+				treeListeners.remove( listener );
+		}
+	}
+	
+// Utility
+	
+	/**
+	 * Put a new particle at the end of the slot array. The particle is awake,
+	 * it is then swapped with the first sleeping particle.
+	 * @param particle The particle to insert.
+	 */
+	protected void addSlot( Particle particle )
+	{
+		if( slotCount == slots.length )
+			slots = Arrays.copyOf( slots, slotCount * 2 );
+		
+		particle.slot       = slotCount;
+		slots[slotCount++] = particle;
+		
+		if( positions != null )
+		{
+			positions.ensureCapacity( slots.length );
+			attachPosition( particle );
+		}
+		
+		attachAttributes( particle );
+		swapSlots( particle.slot, activeCount++ );
+	}
+	
+	/**
+	 * Remove a particle from the slot array, the last particle takes its
+	 * slot. An active particle is first swapped with the last active one, so
+	 * that the active particles stay first.
+	 * @param particle The particle to remove.
+	 */
+	protected void removeSlot( Particle particle )
+	{
+		int i = particle.slot;
+		
+		assert slots[i] == particle : "particle "+particle.getId()+" not in its slot";
+		
+		if( i < activeCount )
+		{
+			swapSlots( i, --activeCount );
+			i = activeCount;
+		}
+		
+		detachPosition( particle );
+		detachAttributes( particle );
+		clearSleep( particle );
+		
+		Particle last = slots[--slotCount];
+		slots[i]         = last;
+		slots[slotCount] = null;
+		last.slot        = i;
+		particle.slot    = -1;
+		
+		if( positions != null && last != particle )
+			positions.move( slotCount, i );
+		
+		for( AttributeColumn column: columnList )
+		{
+			if( last != particle )
+			     column.move( slotCount, i );
+			else column.clear( i );
+		}
+	}
+	
+	/**
+	 * Insert a particle coming from another box, without signalling it to
+	 * the listeners nor to the particle. The identifier must be free.
+	 * @param particle The particle, not in a box.
+	 * @see PartitionedParticleBox
+	 */
+	protected void putIn( Particle particle )
+	{
+		tree.addParticle( particle );
+		
+		if( intParticles != null )
+		     intParticles.put( (Integer) particle.getId(), particle );
+		else particles.put( particle.getId(), particle );
+		
+		particle.setBox( this );
+		addSlot( particle );
+		
+		// Its sleep or wake request of the step is applied by this box.
+		
+		if( particle.sleepAsked || particle.wakeAsked )
+			sleepChanges.add( particle );
+		
+		// Its attribute changes not yet sent are now sent by this box.
+		
+		if( particle.changedAttributes != null && ! particle.changedAttributes.isEmpty() )
+		{
+			synchronized( changedParticles )
+			{
+				changedParticles.add( particle );
+				particle.changesBox = this;
+			}
+		}
+	}
+	
+	/**
+	 * Remove a particle that goes to another box, without signalling it to
+	 * the listeners nor to the particle. This can be done while the box
+	 * walks its active slots backward, like a removal. The sleep or wake
+	 * request the particle got during the step is kept for the box that
+	 * puts it in.
+	 * @param particle The particle, in this box.
+	 * @see PartitionedParticleBox
+	 */
+	protected void takeOut( Particle particle )
+	{
+		boolean sleepAsked = particle.sleepAsked;
+		boolean wakeAsked  = particle.wakeAsked;
+		
+		if( intParticles != null )
+		     intParticles.remove( ((Integer)particle.getId()).intValue() );
+		else particles.remove( particle.getId() );
+		
+		tree.removeParticle( particle );
+		removeSlot( particle );
+		particle.setBox( null );
+		
+		particle.sleepAsked = sleepAsked;
+		particle.wakeAsked  = wakeAsked;
+	}
+	
+	/**
+	 * Exchange the particles of two slots, with their positions.
+	 * @param i The first slot.
+	 * @param j The second slot.
+	 */
+	protected void swapSlots( int i, int j )
+	{
+		if( i != j )
+		{
+			Particle a = slots[i];
+			Particle b = slots[j];
+			
+			slots[i] = b;
+			slots[j] = a;
+			a.slot   = j;
+			b.slot   = i;
+			
+			if( positions != null )
+				positions.swap( i, j );
+			
+			for( AttributeColumn column: columnList )
+				column.swap( i, j );
+		}
+	}
+	
+	/**
+	 * Move the values of the registered attributes of a new particle from
+	 * its attribute map to the columns.
+	 * @param particle The particle, already in its slot.
+	 */
+	protected void attachAttributes( Particle particle )
+	{
+		int s = particle.slot;
+		
+		for( AttributeColumn column: columnList )
+		{
+			column.ensureCapacity( slots.length );
+			
+			if( particle.attributes != null && particle.attributes.containsKey( column.name ) )
+			     column.set( s, particle.attributes.remove( column.name ) );
+			else column.clear( s );
+		}
+	}
+	
+	/**
+	 * Copy back the values of the registered attributes of a particle in its
+	 * attribute map, the unset values are not copied.
+	 * @param particle The particle, still in its slot.
+	 */
+	protected void detachAttributes( Particle particle )
+	{
+		int s = particle.slot;
+		
+		for( AttributeColumn column: columnList )
+		{
+			if( column.isSet( s ) )
+			{
+				Object value = column.get( s );
+				
+				if( particle.attributes == null )
+					particle.attributes = new HashMap<String,Object>();
+				
+				particle.attributes.put( column.name, value );
+			}
+		}
+	}
+	
+	/**
+	 * Ask a particle to sleep or wake. Outside of a step this is done
+	 * immediately, else the request waits the end of the step.
+	 * @param particle The particle, in this box.
+	 * @param asleep True to put the particle asleep, false to wake it.
+	 * @see Particle#sleep()
+	 */
+	protected void requestSleep( Particle particle, boolean asleep )
+	{
+		if( ! stepping )
+		{
+			setAsleep( particle, asleep );
+		}
+		else if( asleep != particle.asleep || particle.sleepAsked || particle.wakeAsked )
+		{
+			boolean first = ! particle.sleepAsked && ! particle.wakeAsked;
+			
+			if( asleep )
+			     particle.sleepAsked = true;
+			else particle.wakeAsked  = true;
+			
+			// Several threads may wake the same particle, the queue may
+			// hold it more than once.
+			
+			if( first )
+				sleepChanges.add( particle );
+		}
+	}
+	
+	/**
+	 * Apply the sleep and wake requests made during the step. A particle
+	 * woken during the step stays awake even if it also asked to sleep. The
+	 * requests of a particle that went in another box are left to this box.
+	 */
+	protected void applySleepChanges()
+	{
+		Particle particle;
+		
+		while( ( particle = sleepChanges.poll() ) != null )
+		{
+			if( particle.box == this )
+			{
+				if( particle.sleepAsked || particle.wakeAsked )
+					setAsleep( particle, ! particle.wakeAsked );
+				
+				particle.sleepAsked = false;
+				particle.wakeAsked  = false;
+			}
+		}
+	}
+	
+	/**
+	 * Move a particle at the end of the active slots or at the start of the
+	 * sleeping slots.
+	 * @param particle The particle, in this box.
+	 * @param asleep The new state of the particle.
+	 */
+	protected void setAsleep( Particle particle, boolean asleep )
+	{
+		if( asleep == particle.asleep )
+			return;
+		
+		if( asleep )
+		     swapSlots( particle.slot, --activeCount );
+		else swapSlots( particle.slot, activeCount++ );
+		
+		particle.asleep = asleep;
+	}
+	
+	/**
+	 * Forget the sleep state of a particle leaving the box.
+	 * @param particle The particle.
+	 */
+	protected void clearSleep( Particle particle )
+	{
+		particle.asleep     = false;
+		particle.sleepAsked = false;
+		particle.wakeAsked  = false;
+	}
+	
+	/**
+	 * Copy the position of a particle in the position store and make the particle use it.
+	 * @param particle The particle, already in its slot.
+	 */
+	protected void attachPosition( Particle particle )
+	{
+		int s = particle.slot;
+		
+		positions.set( s, particle.pos.x, particle.pos.y, particle.pos.z );
+		positions.setNext( s, particle.nextPos.x, particle.nextPos.y, particle.nextPos.z );
+		particle.positions = positions;
+	}
+	
+	/**
+	 * Copy back the position of a particle from the position store in the particle, and make
+	 * the particle use its own position again.
+	 * @param particle The particle, still in its slot.
+	 */
+	protected void detachPosition( Particle particle )
+	{
+		if( particle.positions != null )
+		{
+			int s = particle.slot;
+			
+			particle.pos.set( positions.x[s], positions.y[s], positions.z[s] );
+			particle.nextPos.set( positions.nx[s], positions.ny[s], positions.nz[s] );
+			particle.positions = null;
+		}
+	}
+	
+	/**
+	 * Tell the listeners a particle moved. The listeners that receive the moves one at a time
+	 * are called immediately, the move is stored for the others.
+	 * @param particle The particle.
+	 * @param x The new abscissa.
+	 * @param y The new ordinate.
+	 * @param z The new depth.
+	 */
+	protected void fireParticleMoved( Particle particle, double x, double y, double z )
+	{
+		Object id = particle.getId();
+		
+		for( int i=0; i<moveListeners.size(); ++i )
+			moveListeners.get( i ).particleMoved( id, x, y, z );
+		
+		if( ! batchListeners.isEmpty() )
+		{
+			if( movedCount == movedParticles.length )
+			{
+				movedParticles = Arrays.copyOf( movedParticles, movedCount * 2 );
+				movedPositions = Arrays.copyOf( movedPositions, movedCount * 6 );
+			}
+			
+			int j = movedCount * 3;
+			
+			movedParticles[movedCount++] = particle;
+			movedPositions[j]   = x;
+			movedPositions[j+1] = y;
+			movedPositions[j+2] = z;
+		}
+	}
+	
+	/**
+	 * Tell the listeners an attribute of a particle changed.
+	 * @param particle The particle.
+	 * @param attribute The attribute name.
+	 * @param value The new value, null if removed.
+	 * @param removed True if the attribute was removed.
+	 */
+	protected void fireParticleAttributeChanged( Particle particle, String attribute, Object value, boolean removed )
+	{
+		if( deferAttributeEvents )
+		{
+			recordAttributeChange( particle, attribute, removed ? REMOVED_ATTRIBUTE : value );
+		}
+		else
+		{
+			Object id = particle.getId();
+			
+			for( ParticleBoxListener listener: listeners )
+				listener.particleAttributeChanged( id, attribute, value, removed );
+		}
+	}
+	
+	/**
+	 * Put an attribute change in the change set of a particle, replacing a
+	 * previous change of the same attribute. The move phase may run in
+	 * parallel, hence the lock.
+	 * @param particle The particle.
+	 * @param attribute The attribute name.
+	 * @param value The new value, or {@link #REMOVED_ATTRIBUTE}.
+	 */
+	protected void recordAttributeChange( Particle particle, String attribute, Object value )
+	{
+		synchronized( changedParticles )
+		{
+			if( particle.changedAttributes == null )
+				particle.changedAttributes = new LinkedHashMap<String,Object>();
+			
+			if( particle.changesBox != this )
+			{
+				// The changes recorded by a box the particle left are dropped.
+				
+				particle.changedAttributes.clear();
+				changedParticles.add( particle );
+				particle.changesBox = this;
+			}
+			
+			particle.changedAttributes.put( attribute, value );
+		}
+	}
+	
+	/**
+	 * Send the moves stored during the step to the batch listeners. The particles removed
+	 * from the box since their move are skipped.
+	 */
+	protected void fireParticlesMoved()
+	{
+		if( batchIds.length < movedCount )
+		{
+			batchIds = new Object[movedParticles.length];
+			batchX   = new double[movedParticles.length];
+			batchY   = new double[movedParticles.length];
+			batchZ   = new double[movedParticles.length];
+		}
+		
+		int n = 0;
+		
+		for( int i=0; i<movedCount; ++i )
+		{
+			Particle particle = movedParticles[i];
+			
+			if( particle.box == this )
+			{
+				batchIds[n] = particle.getId();
+				batchX[n]   = movedPositions[i*3];
+				batchY[n]   = movedPositions[i*3+1];
+				batchZ[n]   = movedPositions[i*3+2];
+				n++;
+			}
+			
+			movedParticles[i] = null;
+		}
+		
+		movedCount = 0;
+		
+		if( n > 0 )
+		{
+			for( ParticleBoxBatchListener listener: batchListeners )
+				listener.particlesMoved( batchIds, batchX, batchY, batchZ, n, time );
+		}
+		
+		Arrays.fill( batchIds, 0, n, null );
+	}
+	
+	/**
+	 * Move the particles awake, in the step pool if there is one, then
+	 * commit their moves. The particles that leave the box (see
+	 * {@link #leaves(Particle)}) are not committed.
+	 */
+	protected void moveParticles()
+	{
+		if( stepPool != null && activeCount >= minParticlesPerTask * 2 )
+		{
+			parallelMove();
+		}
+		else
+		{
+			for( int i=0; i<activeCount; ++i )
+				slots[i].move( time );
+		}
+		
+		// Next make all particle switch to their next position. This is
+		// always sequential since it modifies the tree. We go backward
+		// since a particle may be removed (and replaced in its slot by the
+		// last active one) if it leaves the universe or the box.
+		
+		for( int i=activeCount-1; i>=0; --i )
+		{
+			Particle particle = slots[i];
+			
+			if( ! particle.moved || ! leaves( particle ) )
+				particle.nextStep( time );
+		}
+	}
+	
+	/**
+	 * Called when the moves are committed for each particle that moved,
+	 * before its move is committed. A box that is a part of a larger
+	 * simulation takes out or removes here the particles going in another
+	 * part. By default no particle leaves.
+	 * @param particle The particle, that moved.
+	 * @return True if the particle left the box, its move is then not
+	 * committed.
+	 */
+	protected boolean leaves( Particle particle )
+	{
+		return false;
+	}
+	
+	/**
+	 * Run the move phase in the step pool, each task moving a contiguous range of active slots.
+	 */
+	protected void parallelMove()
+	{
+		int tasks = Math.min( stepTasks, activeCount / minParticlesPerTask );
+		int chunk = ( activeCount + tasks - 1 ) / tasks;
+		
+		while( moveTasks.size() < tasks )
+			moveTasks.add( new MoveTask() );
+		
+		for( int i=0; i<tasks; ++i )
+		{
+			MoveTask task = moveTasks.get( i );
+			task.from = i * chunk;
+			task.to   = Math.min( activeCount, task.from + chunk );
+		}
+		
+		try
+		{
+			for( Future<Object> f: stepPool.invokeAll( moveTasks.subList( 0, tasks ) ) )
+				f.get();
+		}
+		catch( ExecutionException e )
+		{
+			if( e.getCause() instanceof RuntimeException )
+				throw (RuntimeException) e.getCause();
+			
+			throw new RuntimeException( "particle move failed", e.getCause() );
+		}
+		catch( InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException( "interrupted during the particle move phase", e );
+		}
+	}
+	
+	/**
+	 * Move the particles of a range of slots.
+	 */
+	protected class MoveTask implements Callable<Object>
+	{
+		protected int from;
+		
+		protected int to;
+		
+		public Object call()
+		{
+			for( int i=from; i<to; ++i )
+				slots[i].move( time );
+			
+			return null;
 		}
 	}
 }
\ No newline at end of file
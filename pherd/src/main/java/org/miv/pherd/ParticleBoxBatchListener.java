@@ -0,0 +1,29 @@
+package org.miv.pherd;
+
+/**
+ * Listener for particle events that receives the moves of a whole step at once.
+ * 
+ * <p>
+ * A listener implementing this interface does not receive the
+ * {@link #particleMoved(Object, double, double, double)} events from the
+ * particle box. Instead all the moves of a step are given in one call to
+ * {@link #particlesMoved(Object[], double[], double[], double[], int, int)}
+ * just before {@link #stepFinished(int)}. The other events are unchanged.
+ * </p>
+ */
+public interface ParticleBoxBatchListener extends ParticleBoxListener
+{
+	/**
+	 * Several particles moved during the given step. Only the first
+	 * <code>count</code> cells of the arrays are valid. The arrays belong to
+	 * the sender and are reused for the next step, they must be copied if
+	 * needed after this call.
+	 * @param ids The particles unique identifiers.
+	 * @param x The new abscissas.
+	 * @param y The new ordinates.
+	 * @param z The new depths.
+	 * @param count The number of particles that moved.
+	 * @param time The step time.
+	 */
+	void particlesMoved( Object[] ids, double[] x, double[] y, double[] z, int count, int time );
+}
@@ -0,0 +1,617 @@
+package org.miv.pherd;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+import org.miv.pherd.geom.*;
+import org.miv.pherd.ntree.*;
+
+/**
+ * Saves the particles of a particle box in a binary file and restores them.
+ *
+ * <p>
+ * A checkpoint holds the step number, the space of the root cell of the
+ * n-tree, the registered attribute columns, and for each particle its
+ * identifier, position, weight, sleep state, set column values and
+ * attributes.
+ * The file is written and read through a file channel and a buffer, a few
+ * tens of bytes per particle without attributes.
+ * </p>
+ *
+ * <p>
+ * The restore is done in an empty particle box, without adding the
+ * particles one by one: the n-tree is detached, its root cell gets the
+ * saved space, the particles are put in the box, and the tree is attached
+ * again which subdivides it once for all the particles (or the linear tree
+ * is built if the box rebuilds its tree at each step). The same particles
+ * in the same root cell give the same cells. The listeners of the box are
+ * not told, they can be added after the restore or replay the box (see
+ * {@link ParticleBoxListenerProxy}). The particles are created by a
+ * particle factory and are told they were inserted before the tree is
+ * attached, as when they are added to the box.
+ * </p>
+ *
+ * <p>
+ * The identifiers and attribute values that are integers, longs, doubles,
+ * strings or booleans are written directly, the others are serialised. The
+ * attribute values that are not serializable are skipped, but the save fails
+ * on an identifier that is not serializable, the particle could not be
+ * restored. The state of a particle that is
+ * not in its attributes is not saved. A checkpoint object reuses its buffer
+ * and must not be used by several threads at once.
+ * </p>
+ */
+public class ParticleBoxCheckpoint
+{
+// Constant
+	
+	/**
+	 * First bytes of a checkpoint file, "PHRD".
+	 */
+	protected static final int MAGIC = 0x50485244;
+	
+	/**
+	 * Version of the file format.
+	 */
+	protected static final int VERSION = 1;
+	
+	/**
+	 * The identifiers are integers.
+	 */
+	protected static final int INTEGER_IDS = 1;
+	
+	// Value tags.
+	
+	protected static final byte NULL = 0, INT = 1, LONG = 2, DOUBLE = 3, STRING = 4, BOOLEAN = 5, OBJECT = 6;
+
+// Attributes
+	
+	/**
+	 * The buffer between the file and the values.
+	 */
+	protected ByteBuffer buffer;
+	
+	/**
+	 * The file being written or read.
+	 */
+	protected FileChannel channel;
+	
+	/**
+	 * True while saving, false while restoring.
+	 */
+	protected boolean writing;
+
+// Constructors
+	
+	/**
+	 * New checkpoint with a buffer of one megabyte.
+	 */
+	public ParticleBoxCheckpoint()
+	{
+		this( 1 << 20 );
+	}
+	
+	/**
+	 * New checkpoint with a buffer of the given size.
+	 * @param bufferSize The buffer size in bytes.
+	 */
+	public ParticleBoxCheckpoint( int bufferSize )
+	{
+		buffer = ByteBuffer.allocateDirect( Math.max( bufferSize, 1024 ) );
+	}
+
+// Commands
+	
+	/**
+	 * Write the state of a particle box in a file, replacing it.
+	 * @param box The particle box, not stepping.
+	 * @param file The file.
+	 * @throws IOException If the file cannot be written, or the identifier
+	 * of a particle cannot be saved.
+	 */
+	public void save( ParticleBox box, File file )
+		throws IOException
+	{
+		FileOutputStream out = new FileOutputStream( file );
+		
+		try
+		{
+			channel = out.getChannel();
+			writing = true;
+			buffer.clear();
+			
+			writeBox( box );
+			flush();
+		}
+		finally
+		{
+			channel = null;
+			out.close();
+		}
+	}
+	
+	/**
+	 * Put the particles saved in a file in an empty particle box. The box
+	 * takes the step number, the identifiers mode and the attribute columns
+	 * of the saved box, its other settings are kept.
+	 * @param box The particle box, empty.
+	 * @param file The file.
+	 * @param factory Creates the particles.
+	 * @throws IOException If the file cannot be read or is not a checkpoint.
+	 */
+	public void restore( ParticleBox box, File file, ParticleFactory factory )
+		throws IOException
+	{
+		if( box.getParticleCount() > 0 )
+			throw new RuntimeException( "cannot restore a checkpoint in a non-empty particle box" );
+		
+		FileInputStream in = new FileInputStream( file );
+		
+		try
+		{
+			channel = in.getChannel();
+			writing = false;
+			buffer.clear();
+			buffer.limit( 0 );
+			
+			readBox( box, factory );
+		}
+		finally
+		{
+			channel = null;
+			in.close();
+		}
+	}
+
+// Utility
+	
+	protected void writeBox( ParticleBox box )
+		throws IOException
+	{
+		CellSpace space = box.getNTree().getRootCell().getSpace();
+		Anchor    low   = space.getLoAnchor();
+		Anchor    high  = space.getHiAnchor();
+		int       count = box.slotCount;
+		
+		need( 20 + 48 + 4 );
+		buffer.putInt( MAGIC );
+		buffer.putInt( VERSION );
+		buffer.putInt( box.intParticles != null ? INTEGER_IDS : 0 );
+		buffer.putInt( box.time );
+		buffer.putInt( count );
+		buffer.putDouble( low.x ).putDouble( low.y ).putDouble( low.z );
+		buffer.putDouble( high.x ).putDouble( high.y ).putDouble( high.z );
+		buffer.putInt( box.columnList.size() );
+		
+		for( AttributeColumn column: box.columnList )
+		{
+			writeString( column.name );
+			need( 1 );
+			buffer.put( (byte) column.type.ordinal() );
+		}
+		
+		for( int i=0; i<count; ++i )
+		{
+			Particle particle = box.slots[i];
+			
+			if( box.intParticles != null )
+			{
+				need( 4 );
+				buffer.putInt( (Integer) particle.getId() );
+			}
+			else
+			{
+				writeId( particle.getId() );
+			}
+			
+			need( 33 );
+			buffer.putDouble( particle.getX() );
+			buffer.putDouble( particle.getY() );
+			buffer.putDouble( particle.getZ() );
+			buffer.putDouble( particle.getWeight() );
+			buffer.put( (byte) ( particle.asleep ? 1 : 0 ) );
+			
+			for( AttributeColumn column: box.columnList )
+			{
+				if( column.type != AttributeColumn.Type.OBJECT )
+				{
+					need( 1 );
+					
+					if( ! column.isSet( i ) )
+					{
+						buffer.put( (byte) 0 );
+						continue;
+					}
+					
+					buffer.put( (byte) 1 );
+				}
+				
+				switch( column.type )
+				{
+					case DOUBLE: need( 8 ); buffer.putDouble( column.doubles[i] ); break;
+					case INT:    need( 4 ); buffer.putInt( column.ints[i] );       break;
+					case LONG:   need( 8 ); buffer.putLong( column.longs[i] );     break;
+					case OBJECT: writeValue( column.objects[i] );                  break;
+				}
+			}
+			
+			writeAttributes( particle.attributes );
+		}
+	}
+	
+	protected void readBox( ParticleBox box, ParticleFactory factory )
+		throws IOException
+	{
+		need( 20 + 48 + 4 );
+		
+		if( buffer.getInt() != MAGIC )
+			throw new IOException( "not a particle box checkpoint" );
+		
+		int version = buffer.getInt();
+		
+		if( version != VERSION )
+			throw new IOException( "unknown particle box checkpoint version "+version );
+		
+		boolean intIds = ( buffer.getInt() & INTEGER_IDS ) != 0;
+		int     time   = buffer.getInt();
+		int     count  = buffer.getInt();
+		Point3  min    = new Point3( buffer.getDouble(), buffer.getDouble(), buffer.getDouble() );
+		Point3  max    = new Point3( buffer.getDouble(), buffer.getDouble(), buffer.getDouble() );
+		int     n      = buffer.getInt();
+		
+		AttributeColumn[] columns = new AttributeColumn[n];
+		
+		for( int c=0; c<n; ++c )
+		{
+			String name = readString();
+			
+			need( 1 );
+			columns[c] = box.registerAttribute( name, AttributeColumn.Type.values()[buffer.get()] );
+		}
+		
+		// The box is filled directly, sized for all the particles, while
+		// its tree ignores them.
+		
+		NTree tree = box.getNTree();
+		
+		if( ! box.rebuilding )
+		{
+			tree.detach();
+			tree.resizeRoot( min, max );
+		}
+		
+		box.setIntegerIds( intIds );
+		
+		if( intIds )
+		     box.intParticles = new IntParticleMap( count );
+		else box.particles    = new HashMap<Object,Particle>( Math.max( 16, (int) ( count / 0.75f ) + 1 ) );
+		
+		if( box.slots.length < count )
+			box.slots = Arrays.copyOf( box.slots, count );
+		
+		box.time = time;
+		
+		ArrayList<Particle> asleep = new ArrayList<Particle>();
+		
+		for( int i=0; i<count; ++i )
+		{
+			Object id;
+			
+			if( intIds )
+			{
+				need( 4 );
+				id = buffer.getInt();
+			}
+			else
+			{
+				id = readValue();
+			}
+			
+			need( 33 );
+			
+			double x = buffer.getDouble();
+			double y = buffer.getDouble();
+			double z = buffer.getDouble();
+			
+			Particle particle = factory.newParticle( id, x, y, z );
+			
+			particle.weight = buffer.getDouble();
+			
+			if( buffer.get() != 0 )
+				asleep.add( particle );
+			
+			Particle p = intIds ? box.intParticles.put( (Integer) id, particle ) : box.particles.put( id, particle );
+			
+			if( p != null )
+				throw new IdAlreadyInUseException( "the checkpoint has several particles with the identifier "+id );
+			
+			particle.setBox( box );
+			box.addSlot( particle );
+			
+			int s = particle.slot;
+			
+			for( AttributeColumn column: columns )
+			{
+				if( column.type != AttributeColumn.Type.OBJECT )
+				{
+					need( 1 );
+					
+					if( buffer.get() == 0 )
+						continue;
+				}
+				
+				switch( column.type )
+				{
+					case DOUBLE: need( 8 ); column.doubles[s] = buffer.getDouble(); break;
+					case INT:    need( 4 ); column.ints[s]    = buffer.getInt();    break;
+					case LONG:   need( 8 ); column.longs[s]   = buffer.getLong();   break;
+					case OBJECT: column.objects[s] = readValue();                   break;
+				}
+				
+				if( column.type != AttributeColumn.Type.OBJECT )
+					column.mark( s );
+			}
+			
+			readAttributes( particle );
+		}
+		
+		// The particles are told they are inserted before the tree sees
+		// them, attaching it may remove some of them in DELETE mode.
+		
+		for( int i=0; i<box.slotCount; ++i )
+			box.slots[i].inserted();
+		
+		for( Particle particle: asleep )
+			box.setAsleep( particle, true );
+		
+		if( box.rebuilding )
+			box.linearTree.build( box );
+		else tree.attach();
+	}
+	
+	protected void writeAttributes( HashMap<String,Object> attributes )
+		throws IOException
+	{
+		int n = 0;
+		
+		if( attributes != null )
+		{
+			for( Object value: attributes.values() )
+			{
+				if( isWritable( value ) )
+					n++;
+			}
+		}
+		
+		need( 4 );
+		buffer.putInt( n );
+		
+		if( n > 0 )
+		{
+			for( Map.Entry<String,Object> entry: attributes.entrySet() )
+			{
+				if( isWritable( entry.getValue() ) )
+				{
+					writeString( entry.getKey() );
+					writeValue( entry.getValue() );
+				}
+			}
+		}
+	}
+	
+	protected void readAttributes( Particle particle )
+		throws IOException
+	{
+		need( 4 );
+		
+		int n = buffer.getInt();
+		
+		if( n > 0 )
+		{
+			if( particle.attributes == null )
+				particle.attributes = new HashMap<String,Object>();
+			
+			for( int i=0; i<n; ++i )
+			{
+				String key = readString();
+				
+				particle.attributes.put( key, readValue() );
+			}
+		}
+	}
+	
+	/**
+	 * Write a particle identifier, that unlike the values cannot be skipped.
+	 */
+	protected void writeId( Object id )
+		throws IOException
+	{
+		if( ! ( id instanceof Serializable ) )
+			throw new NotSerializableException( "cannot save particle "+id+", its identifier is not serializable" );
+		
+		writeValue( id );
+	}
+	
+	protected boolean isWritable( Object value )
+	{
+		return value == null || value instanceof Serializable;
+	}
+	
+	/**
+	 * Write a tagged value, a non serializable object being written as null.
+	 */
+	protected void writeValue( Object value )
+		throws IOException
+	{
+		need( 9 );
+		
+		if( value == null || ! ( value instanceof Serializable ) )
+		{
+			buffer.put( NULL );
+		}
+		else if( value instanceof Integer )
+		{
+			buffer.put( INT ).putInt( (Integer) value );
+		}
+		else if( value instanceof Long )
+		{
+			buffer.put( LONG ).putLong( (Long) value );
+		}
+		else if( value instanceof Double )
+		{
+			buffer.put( DOUBLE ).putDouble( (Double) value );
+		}
+		else if( value instanceof Boolean )
+		{
+			buffer.put( BOOLEAN ).put( (byte) ( ((Boolean) value) ? 1 : 0 ) );
+		}
+		else if( value instanceof String )
+		{
+			buffer.put( STRING );
+			writeString( (String) value );
+		}
+		else
+		{
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			ObjectOutputStream    out   = new ObjectOutputStream( bytes );
+			
+			out.writeObject( value );
+			out.close();
+			
+			buffer.put( OBJECT );
+			writeBytes( bytes.toByteArray() );
+		}
+	}
+	
+	protected Object readValue()
+		throws IOException
+	{
+		need( 1 );
+		
+		byte tag = buffer.get();
+		
+		switch( tag )
+		{
+			case NULL:    return null;
+			case INT:     need( 4 ); return buffer.getInt();
+			case LONG:    need( 8 ); return buffer.getLong();
+			case DOUBLE:  need( 8 ); return buffer.getDouble();
+			case BOOLEAN: need( 1 ); return buffer.get() != 0;
+			case STRING:  return readString();
+			case OBJECT:
+				try
+				{
+					return new ObjectInputStream( new ByteArrayInputStream( readBytes() ) ).readObject();
+				}
+				catch( ClassNotFoundException e )
+				{
+					throw new IOException( "cannot restore a value: "+e.getMessage() );
+				}
+			default:
+				throw new IOException( "corrupted particle box checkpoint, unknown value tag "+tag );
+		}
+	}
+	
+	protected void writeString( String s )
+		throws IOException
+	{
+		writeBytes( s.getBytes( "UTF-8" ) );
+	}
+	
+	protected String readString()
+		throws IOException
+	{
+		return new String( readBytes(), "UTF-8" );
+	}
+	
+	protected void writeBytes( byte[] bytes )
+		throws IOException
+	{
+		need( 4 );
+		buffer.putInt( bytes.length );
+		
+		if( bytes.length <= buffer.capacity() )
+		{
+			need( bytes.length );
+			buffer.put( bytes );
+		}
+		else
+		{
+			flush();
+			write( ByteBuffer.wrap( bytes ) );
+		}
+	}
+	
+	protected byte[] readBytes()
+		throws IOException
+	{
+		need( 4 );
+		
+		byte[] bytes = new byte[buffer.getInt()];
+		
+		if( bytes.length <= buffer.capacity() )
+		{
+			need( bytes.length );
+			buffer.get( bytes );
+		}
+		else
+		{
+			ByteBuffer rest = ByteBuffer.wrap( bytes );
+			
+			rest.put( buffer );
+			
+			while( rest.hasRemaining() )
+			{
+				if( channel.read( rest ) < 0 )
+					throw new IOException( "truncated particle box checkpoint" );
+			}
+		}
+		
+		return bytes;
+	}
+	
+	/**
+	 * Make room for the given number of bytes when writing, or make them
+	 * available when reading.
+	 */
+	protected void need( int n )
+		throws IOException
+	{
+		if( buffer.remaining() >= n )
+			return;
+		
+		if( writing )
+		{
+			flush();
+		}
+		else
+		{
+			buffer.compact();
+			
+			while( buffer.position() < n )
+			{
+				if( channel.read( buffer ) < 0 )
+					throw new IOException( "truncated particle box checkpoint" );
+			}
+			
+			buffer.flip();
+		}
+	}
+	
+	protected void flush()
+		throws IOException
+	{
+		buffer.flip();
+		write( buffer );
+		buffer.clear();
+	}
+	
+	protected void write( ByteBuffer bytes )
+		throws IOException
+	{
+		while( bytes.hasRemaining() )
+			channel.write( bytes );
+	}
+}
@@ -0,0 +1,343 @@
+package org.miv.pherd;
+
+import java.io.*;
+import java.util.*;
+
+import org.miv.pherd.geom.*;
+import org.miv.pherd.ntree.*;
+
+/**
+ * Check of the {@link ParticleBoxCheckpoint}.
+ *
+ * <p>
+ * The program fills a particle box with random particles, with string
+ * identifiers then with integer identifiers, and steps it. The particles
+ * have double, integer, long and object columns, some values being set and
+ * others not, attributes of all the written kinds, an attribute that is not
+ * serializable, and a few values larger than the buffer of the checkpoint.
+ * Some particles sleep. The box is saved and restored in a new box, and the
+ * program checks that the restored box has the same step, the same root
+ * cell space, and the same particles with the same positions, weights,
+ * sleep states, column values, unset columns and attributes, the
+ * non-serializable attribute excepted, and that its root cell counts all
+ * of them. At last it checks that the save fails on a particle whose
+ * identifier is not serializable.
+ * </p>
+ *
+ * <p>
+ * Usage: ParticleBoxCheckpointTest [particles [bufferSize]], by default
+ * 3000 particles and a buffer of 1024 bytes. The program throws an
+ * exception if a check fails.
+ * </p>
+ */
+public class ParticleBoxCheckpointTest
+{
+// Attributes
+	
+	/**
+	 * Number of particles.
+	 */
+	protected int particles;
+	
+	/**
+	 * Size of the buffer of the checkpoint.
+	 */
+	protected int bufferSize;
+	
+	/**
+	 * Creates the restored particles.
+	 */
+	protected ParticleFactory factory = new ParticleFactory()
+	{
+		public Particle newParticle( Object id, double x, double y, double z )
+		{
+			return new TestParticle( id, x, y, z );
+		}
+	};
+
+// Constructors
+	
+	public static void main( String args[] )
+	{
+		try
+		{
+			ParticleBoxCheckpointTest test = new ParticleBoxCheckpointTest(
+				args.length > 0 ? Integer.parseInt( args[0] ) : 3000,
+				args.length > 1 ? Integer.parseInt( args[1] ) : 1024 );
+			
+			test.test( false );
+			test.test( true );
+			test.testUnwritableId();
+			
+			System.out.printf( "Particle box checkpoint OK, %d particles, buffer of %d bytes%n", test.particles, test.bufferSize );
+		}
+		catch( IOException e )
+		{
+			e.printStackTrace();
+			System.exit( 1 );
+		}
+	}
+	
+	public ParticleBoxCheckpointTest( int particles, int bufferSize )
+	{
+		this.particles  = particles;
+		this.bufferSize = bufferSize;
+	}
+
+// Commands
+	
+	/**
+	 * Save a box, restore it and compare the boxes.
+	 * @param intIds True to use integer identifiers, else strings.
+	 */
+	public void test( boolean intIds ) throws IOException
+	{
+		ParticleBox     box     = newBox();
+		Random          random  = new Random( 1 );
+		AttributeColumn doubles = box.registerAttribute( "d", AttributeColumn.Type.DOUBLE );
+		AttributeColumn ints    = box.registerAttribute( "i", AttributeColumn.Type.INT );
+		AttributeColumn longs   = box.registerAttribute( "l", AttributeColumn.Type.LONG );
+		AttributeColumn objects = box.registerAttribute( "o", AttributeColumn.Type.OBJECT );
+		char            big[]   = new char[bufferSize * 3];
+		
+		Arrays.fill( big, 'x' );
+		box.setIntegerIds( intIds );
+		
+		for( int i=0; i<particles; ++i )
+		{
+			Object   id       = intIds ? (Object) i : (Object) ( "p" + i );
+			Particle particle = new TestParticle( id, random.nextDouble() * 2 - 1, random.nextDouble() * 2 - 1, random.nextDouble() * 2 - 1 );
+			
+			box.addParticle( particle );
+			particle.setWeight( 1 + random.nextInt( 4 ) );
+			
+			if( i % 2 == 0 ) doubles.setDouble( particle, i * 0.5 );
+			if( i % 3 == 0 ) ints.setInt( particle, -i );
+			if( i % 5 == 0 ) longs.setLong( particle, i * 10000000000L );
+			if( i % 7 == 0 ) objects.setObject( particle, "o" + i );
+			if( i % 9 == 0 ) particle.removeAttribute( "i" );
+			
+			particle.setAttribute( "name", "particle " + i );
+			particle.setAttribute( "flag", i % 2 == 0 );
+			particle.setAttribute( "count", (long) i );
+			particle.setAttribute( "unwritable", new Object() );
+			
+			if( i % 11 == 0 )
+				particle.setAttribute( "position", new Point3( i, -i, 0 ) );
+			
+			if( i % 500 == 0 )
+			{
+				particle.setAttribute( "big", new String( big ) );
+				particle.setAttribute( "array", new int[bufferSize] );
+			}
+		}
+		
+		for( int s=0; s<10; ++s )
+			box.step();
+		
+		for( int i=0; i<box.getParticleCount(); i+=4 )
+			box.getParticleAt( i ).sleep();
+		
+		File file = File.createTempFile( "pherd", ".checkpoint" );
+		
+		try
+		{
+			new ParticleBoxCheckpoint( bufferSize ).save( box, file );
+			
+			ParticleBox restored = newBox();
+			
+			new ParticleBoxCheckpoint( bufferSize ).restore( restored, file, factory );
+			compare( box, restored );
+		}
+		finally
+		{
+			file.delete();
+		}
+	}
+	
+	/**
+	 * Check that a particle whose identifier cannot be written makes the
+	 * save fail.
+	 */
+	public void testUnwritableId() throws IOException
+	{
+		ParticleBox box  = newBox();
+		File        file = File.createTempFile( "pherd", ".checkpoint" );
+		
+		box.addParticle( new TestParticle( "p", 0, 0, 0 ) );
+		box.addParticle( new TestParticle( new Object(), 0.5, 0.5, 0.5 ) );
+		
+		try
+		{
+			new ParticleBoxCheckpoint( bufferSize ).save( box, file );
+			throw new RuntimeException( "a particle with an identifier that cannot be written was saved" );
+		}
+		catch( NotSerializableException e )
+		{
+			// Expected.
+		}
+		finally
+		{
+			file.delete();
+		}
+	}
+	
+	protected ParticleBox newBox()
+	{
+		return new ParticleBox( 8, new OctreeCellSpace( new Anchor( -1, -1, -1 ), new Anchor( 1, 1, 1 ) ), new BarycenterCellData() );
+	}
+	
+	/**
+	 * Compare a box and its restored copy.
+	 */
+	protected void compare( ParticleBox box, ParticleBox restored )
+	{
+		if( restored.time != box.time )
+			throw new RuntimeException( "restored at step "+restored.time+" instead of "+box.time );
+		
+		if( restored.hasIntegerIds() != box.hasIntegerIds() )
+			throw new RuntimeException( "the identifiers mode is not restored" );
+		
+		if( restored.getParticleCount() != box.getParticleCount() || restored.getActiveParticleCount() != box.getActiveParticleCount() )
+			throw new RuntimeException( "restored "+restored.getParticleCount()+" particles, "+restored.getActiveParticleCount()
+				+" awake, instead of "+box.getParticleCount()+", "+box.getActiveParticleCount() );
+		
+		CellSpace space  = box.getNTree().getRootCell().getSpace();
+		CellSpace space2 = restored.getNTree().getRootCell().getSpace();
+		
+		if( ! sameAnchor( space.getLoAnchor(), space2.getLoAnchor() ) || ! sameAnchor( space.getHiAnchor(), space2.getHiAnchor() ) )
+			throw new RuntimeException( "the root cell space is not restored" );
+		
+		double weight = 0;
+		
+		for( int i=0; i<box.getParticleCount(); ++i )
+		{
+			Particle particle = box.getParticleAt( i );
+			Particle copy     = restored.getParticle( particle.getId() );
+			
+			if( copy == null )
+				throw new RuntimeException( "particle "+particle.getId()+" is not restored" );
+			
+			if( copy.getX() != particle.getX() || copy.getY() != particle.getY() || copy.getZ() != particle.getZ() )
+				throw new RuntimeException( "particle "+particle.getId()+" is not restored at its position" );
+			
+			if( copy.getWeight() != particle.getWeight() || copy.isAsleep() != particle.isAsleep() )
+				throw new RuntimeException( "particle "+particle.getId()+" lost its weight or sleep state" );
+			
+			if( copy.getCell() == null )
+				throw new RuntimeException( "particle "+particle.getId()+" is not in the restored tree" );
+			
+			for( int c=0; c<box.getAttributeColumnCount(); ++c )
+			{
+				AttributeColumn column  = box.getAttributeColumn( c );
+				AttributeColumn column2 = restored.getAttributeColumn( column.getName() );
+				
+				if( column2 == null || column2.getType() != column.getType() )
+					throw new RuntimeException( "column "+column.getName()+" is not restored" );
+				
+				if( column2.isSet( copy ) != column.isSet( particle ) )
+					throw new RuntimeException( "column "+column.getName()+" of particle "+particle.getId()+" is not restored as set or unset" );
+			}
+			
+			Iterator<String> keys  = particle.getAttributeKeyIterator();
+			int              count = 0;
+			
+			while( keys.hasNext() )
+			{
+				String key    = keys.next();
+				Object value  = particle.getAttribute( key );
+				Object value2 = copy.getAttribute( key );
+				
+				if( key.equals( "unwritable" ) )
+				{
+					if( value2 != null )
+						throw new RuntimeException( "a non-serializable attribute was restored" );
+				}
+				else if( ! sameValue( value, value2 ) )
+				{
+					throw new RuntimeException( "attribute "+key+" of particle "+particle.getId()+" is "+value2+" instead of "+value );
+				}
+				else
+				{
+					count++;
+				}
+			}
+			
+			Iterator<String> keys2  = copy.getAttributeKeyIterator();
+			int              count2 = 0;
+			
+			while( keys2.hasNext() )
+			{
+				keys2.next();
+				count2++;
+			}
+			
+			if( count2 != count )
+				throw new RuntimeException( "particle "+particle.getId()+" has "+count2+" attributes after the restore instead of "+count );
+			
+			weight += particle.getWeight();
+		}
+		
+		Cell root = restored.getNTree().getRootCell();
+		
+		if( root.getPopulation() != box.getParticleCount() )
+			throw new RuntimeException( "the restored root cell has "+root.getPopulation()+" particles instead of "+box.getParticleCount() );
+		
+		if( Math.abs( ((BarycenterCellData) root.getData()).getWeight() - weight ) > 1e-6 )
+			throw new RuntimeException( "the restored root cell weight is not the sum of the particle weights" );
+	}
+	
+	protected boolean sameAnchor( Anchor a, Anchor b )
+	{
+		return a.x == b.x && a.y == b.y && a.z == b.z;
+	}
+	
+	protected boolean sameValue( Object a, Object b )
+	{
+		if( a instanceof int[] && b instanceof int[] )
+			return Arrays.equals( (int[]) a, (int[]) b );
+		
+		if( a instanceof Point3 && b instanceof Point3 )
+		{
+			Point3 p = (Point3) a;
+			Point3 q = (Point3) b;
+			
+			return p.x == q.x && p.y == q.y && p.z == q.z;
+		}
+		
+		return a == null ? b == null : a.equals( b );
+	}
+
+// Nested classes
+	
+	/**
+	 * Particle wandering at random.
+	 */
+	protected static class TestParticle extends Particle
+	{
+		public TestParticle( Object id, double x, double y, double z )
+		{
+			super( id, x, y, z );
+		}
+		
+		@Override
+		public void move( int time )
+		{
+			Random random = new Random( time * 131L + getId().hashCode() );
+			
+			setNextPosition( getX() + ( random.nextDouble() - 0.5 ) * 0.05, getY() + ( random.nextDouble() - 0.5 ) * 0.05,
+				getZ() + ( random.nextDouble() - 0.5 ) * 0.05 );
+			moved = true;
+		}
+		
+		@Override
+		public void inserted()
+		{
+		}
+		
+		@Override
+		public void removed()
+		{
+		}
+	}
+}
@@ -1,6 +1,7 @@
 package org.miv.pherd;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 
 import org.miv.mbox.MBoxListener;
@@ -10,9 +11,15 @@ import org.miv.pherd.geom.Point3;
 /**
  * Helper class that allows to listen at a particle box across thread boundaries.
  * 
+ * <p>
+ * The moves of a step are received as a batch and sent as one message. On
+ * the other side, they are given as a batch to the listeners implementing
+ * {@link ParticleBoxBatchListener}, and one by one to the others.
+ * </p>
+ * 
  * @author Antoine Dutot
  */
-public class ParticleBoxListenerProxy implements ParticleBoxListener, MBoxListener
+public class ParticleBoxListenerProxy implements ParticleBoxBatchListener, MBoxListener
 {
 // Attributes
 	
@@ -148,6 +155,28 @@ public class ParticleBoxListenerProxy implements ParticleBoxListener, MBoxListen
 				for( ParticleBoxListener listener: listeners )
 					listener.particleMoved( data[1], x, y, z );
 			}
+			else if( data[0].equals( "PMB" ) )
+			{
+				Object[] ids   = (Object[]) data[1];
+				double[] x     = (double[]) data[2];
+				double[] y     = (double[]) data[3];
+				double[] z     = (double[]) data[4];
+				int      count = ((Number)data[5]).intValue();
+				int      time  = ((Number)data[6]).intValue();
+				
+				for( ParticleBoxListener listener: listeners )
+				{
+					if( listener instanceof ParticleBoxBatchListener )
+					{
+						((ParticleBoxBatchListener)listener).particlesMoved( ids, x, y, z, count, time );
+					}
+					else
+					{
+						for( int i=0; i<count; ++i )
+							listener.particleMoved( ids[i], x[i], y[i], z[i] );
+					}
+				}
+			}
 			else if( data[0].equals( "PR" ) )
 			{
 				for( ParticleBoxListener listener: listeners )
@@ -189,6 +218,12 @@ public class ParticleBoxListenerProxy implements ParticleBoxListener, MBoxListen
 		events.post( "me", "PM", id, x, y, z );
     }
 
+	public void particlesMoved( Object[] ids, double[] x, double[] y, double[] z, int count, int time )
+	{
+		events.post( "me", "PMB", Arrays.copyOf( ids, count ), Arrays.copyOf( x, count ),
+				Arrays.copyOf( y, count ), Arrays.copyOf( z, count ), count, time );
+	}
+
 	public void particleRemoved( Object id )
     {
 	    events.post( "me", "PR", id );
@@ -0,0 +1,27 @@
+package org.miv.pherd;
+
+/**
+ * Listener for particle events that is also told when the particle box
+ * switches between the maintained n-tree and the linear tree rebuilt at
+ * each step.
+ *
+ * <p>
+ * While the box rebuilds its tree, the n-tree returned by
+ * {@link ParticleBox#getNTree()} is detached and empty, the code that walks
+ * the tree, in the move() method of the particles for example, must use
+ * {@link ParticleBox#getLinearNTree()} instead. In
+ * {@link ParticleBox.TreeMode#AUTO} mode the box switches trees by itself
+ * after a step, a listener implementing this interface knows when.
+ * </p>
+ */
+public interface ParticleBoxTreeListener extends ParticleBoxListener
+{
+	/**
+	 * The particle box switched trees. In automatic tree mode this happens
+	 * after the tree update of a step, before {@link #stepFinished(int)}.
+	 * @param rebuilding True if the box now rebuilds the linear tree at each
+	 * step, false if it maintains the n-tree again.
+	 * @see ParticleBox#isRebuildingTree()
+	 */
+	void treeSwitched( boolean rebuilding );
+}
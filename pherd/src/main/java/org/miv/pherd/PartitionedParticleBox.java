@@ -0,0 +1,891 @@
+package org.miv.pherd;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.miv.pherd.geom.*;
+import org.miv.pherd.ntree.*;
+
+/**
+ * Particle box split in spatial regions stepped in parallel.
+ *
+ * <p>
+ * The universe is cut in slabs of equal width along its longest axis. Each
+ * slab is a region, a {@link ParticleBox} with its own n-tree and particle
+ * set, stepped by one task of a thread pool. Unlike the parallel move phase
+ * of a single particle box, the commit of the moves, the relocation of the
+ * particles in the n-tree and the check of the cell divisions then also run
+ * in parallel. A region moves and commits its particles like a particle
+ * box, in its own step pool if it has one (see
+ * {@link ParticleBox#setParallelStep(int)}) and with its position store if
+ * it uses one.
+ * </p>
+ *
+ * <p>
+ * A step has three parallel phases separated by barriers:
+ * <ol>
+ * 		<li>each region moves its particles and commits their positions, the
+ *          particles whose new position is in another slab leave the
+ *          region;</li>
+ * 		<li>each region takes the particles that came in its slab, then copies
+ *          its particles near a boundary in ghosts for the neighbour
+ *          region;</li>
+ * 		<li>each region replaces the ghosts of its tree by the new ones and
+ *          checks its cell divisions.</li>
+ * </ol>
+ * The sleep and wake requests and the events are then handled sequentially,
+ * the requests of a particle that changed of region being applied by its
+ * new region.
+ * </p>
+ *
+ * <p>
+ * The ghosts (see {@link GhostParticle}) are read-only copies of the
+ * particles of the neighbour regions that are at most at the halo width of
+ * the boundary (see {@link #setHaloWidth(double)}). They are in the n-tree
+ * of the region but not in its particle set, so that the neighbourhood
+ * queries and the cell data of a region are correct near its boundaries, as
+ * long as the interactions do not reach farther than the halo width. The
+ * ghosts are one step late on the particles of the region, being taken at
+ * the end of the previous step like the positions all the particles read
+ * during the move phase.
+ * </p>
+ *
+ * <p>
+ * The listeners of this box receive the events of all the regions, a
+ * particle going from a region to another is only a move for them. The
+ * moves are all sent at the end of the step, in one batch for the batch
+ * listeners. The particles must only read their own region during their
+ * move, the other regions being stepped by other threads. The regions use
+ * the {@link NTree.OutOfUniverseMode#GROW} mode and the
+ * {@link ParticleBox.TreeMode#INCREMENTAL} tree mode, that keep the cells,
+ * and their ghosts, when the particles leave the root cell. The step fails
+ * if the tree mode of a region was changed, the ghosts being only in the
+ * n-tree.
+ * </p>
+ */
+public class PartitionedParticleBox
+{
+// Attributes
+	
+	/**
+	 * The regions, in slab order.
+	 */
+	protected Region[] regions;
+	
+	/**
+	 * The axis cut in slabs, 0 for x, 1 for y, 2 for z.
+	 */
+	protected int axis;
+	
+	/**
+	 * Low bound of the universe along the axis.
+	 */
+	protected double lo;
+	
+	/**
+	 * Width of a slab.
+	 */
+	protected double width;
+	
+	/**
+	 * Distance to a boundary under which a particle has a ghost in the
+	 * neighbour region, zero if there are no ghosts.
+	 */
+	protected double halo = 0;
+	
+	/**
+	 * The thread pool running the regions.
+	 */
+	protected ExecutorService pool;
+	
+	/**
+	 * True if the pool was created by this box.
+	 */
+	protected boolean ownPool = false;
+	
+	/**
+	 * The region tasks, one per region.
+	 */
+	protected ArrayList<RegionTask> tasks = new ArrayList<RegionTask>();
+	
+	/**
+	 * Set of listeners.
+	 */
+	protected ArrayList<ParticleBoxListener> listeners = new ArrayList<ParticleBoxListener>();
+	
+	/**
+	 * The listeners that receive the moves one at a time.
+	 */
+	protected ArrayList<ParticleBoxListener> moveListeners = new ArrayList<ParticleBoxListener>();
+	
+	/**
+	 * The listeners that receive the moves of a step at once.
+	 */
+	protected ArrayList<ParticleBoxBatchListener> batchListeners = new ArrayList<ParticleBoxBatchListener>();
+	
+	/**
+	 * The moves of the step of all the regions.
+	 */
+	protected Object[] movedIds = new Object[16];
+	
+	protected double[] movedX = new double[16], movedY = new double[16], movedZ = new double[16];
+	
+	/**
+	 * Number of moves in {@link #movedIds}.
+	 */
+	protected int movedCount = 0;
+	
+	/**
+	 * Current step.
+	 */
+	protected int time = 0;
+
+// Constructors
+	
+	/**
+	 * New partitioned box whose regions are stepped by a pool of daemon
+	 * threads owned by this box, one per region.
+	 * @param regionCount The number of regions.
+	 * @param pmax The maximum number of particles per cell before a
+	 * subdivision occurs.
+	 * @param universe The space split between the regions, each region
+	 * having a space of the same kind.
+	 * @param rootData The data of the root cell of the first region, the
+	 * other regions using new data of the same kind.
+	 */
+	public PartitionedParticleBox( int regionCount, int pmax, CellSpace universe, CellData rootData )
+	{
+		this( regionCount, pmax, universe, rootData, null );
+	}
+	
+	/**
+	 * New partitioned box whose regions are stepped by the given pool.
+	 * @param regionCount The number of regions.
+	 * @param pmax The maximum number of particles per cell before a
+	 * subdivision occurs.
+	 * @param universe The space split between the regions, each region
+	 * having a space of the same kind.
+	 * @param rootData The data of the root cell of the first region, the
+	 * other regions using new data of the same kind.
+	 * @param pool The thread pool, null to create one.
+	 */
+	public PartitionedParticleBox( int regionCount, int pmax, CellSpace universe, CellData rootData, ExecutorService pool )
+	{
+		if( regionCount < 1 )
+			throw new RuntimeException( "a partitioned particle box needs at least one region" );
+		
+		Anchor low  = universe.getLoAnchor();
+		Anchor high = universe.getHiAnchor();
+		
+		double dx = high.x - low.x;
+		double dy = high.y - low.y;
+		double dz = high.z - low.z;
+		
+		if( dz > dx && dz > dy ) { axis = 2; lo = low.z; width = dz / regionCount; }
+		else if( dy > dx )       { axis = 1; lo = low.y; width = dy / regionCount; }
+		else                     { axis = 0; lo = low.x; width = dx / regionCount; }
+		
+		regions = new Region[regionCount];
+		
+		for( int i=0; i<regionCount; ++i )
+		{
+			Point3 min = new Point3( low.x, low.y, low.z );
+			Point3 max = new Point3( high.x, high.y, high.z );
+			
+			setCoordinate( min, lo + i * width );
+			setCoordinate( max, i == regionCount - 1 ? getCoordinate( max ) : lo + ( i + 1 ) * width );
+			
+			CellSpace space = universe.newSubCellSpace( 0 );
+			space.resize( min, max );
+			
+			regions[i] = new Region( i, pmax, space, i == 0 ? rootData : rootData.newCellData() );
+			tasks.add( new RegionTask( regions[i] ) );
+		}
+		
+		if( pool == null && regionCount > 1 )
+		{
+			pool = Executors.newFixedThreadPool( regionCount, new ThreadFactory() {
+				protected int n = 0;
+				public Thread newThread( Runnable r )
+				{
+					Thread t = new Thread( r, "pherd-region-"+(n++) );
+					t.setDaemon( true );
+					return t;
+				}
+			} );
+			
+			ownPool = true;
+		}
+		
+		this.pool = pool;
+	}
+
+// Access
+	
+	/**
+	 * Number of regions.
+	 * @return The region count.
+	 */
+	public int getRegionCount()
+	{
+		return regions.length;
+	}
+	
+	/**
+	 * A region, to configure it or to walk its particles. Its particles must
+	 * not be added or removed directly, and its tree and out of universe
+	 * modes must not be changed.
+	 * @param i The region index, in slab order.
+	 * @return The particle box of the region.
+	 */
+	public ParticleBox getRegion( int i )
+	{
+		return regions[i].box;
+	}
+	
+	/**
+	 * Index of the region whose slab contains the given coordinates. The
+	 * first and last slabs extend to infinity.
+	 * @param x The abscissa.
+	 * @param y The ordinate.
+	 * @param z The depth.
+	 * @return The region index.
+	 */
+	public int getRegionIndex( double x, double y, double z )
+	{
+		return regionIndex( axis == 0 ? x : axis == 1 ? y : z );
+	}
+	
+	/**
+	 * Access to a particle.
+	 * @param id The particle unique identifier.
+	 * @return The particle, or null if not found.
+	 */
+	public Particle getParticle( Object id )
+	{
+		for( Region region: regions )
+		{
+			Particle particle = region.box.getParticle( id );
+			
+			if( particle != null )
+				return particle;
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Number of particles in all the regions, the ghosts excluded.
+	 * @return The particle count.
+	 */
+	public int getParticleCount()
+	{
+		int n = 0;
+		
+		for( Region region: regions )
+			n += region.box.getParticleCount();
+		
+		return n;
+	}
+	
+	/**
+	 * Number of ghosts in the tree of a region.
+	 * @param i The region index.
+	 * @return The ghost count.
+	 */
+	public int getGhostCount( int i )
+	{
+		return regions[i].ghostsIn.size();
+	}
+	
+	/**
+	 * Distance to a boundary under which a particle has a ghost in the
+	 * neighbour region.
+	 * @return The halo width.
+	 * @see #setHaloWidth(double)
+	 */
+	public double getHaloWidth()
+	{
+		return halo;
+	}
+
+// Commands
+	
+	/**
+	 * Add a particle in the region that contains it.
+	 * @param particle The new particle.
+	 * @throws IdAlreadyInUseException If a particle with the same identifier
+	 *         is already in a region.
+	 */
+	public void addParticle( Particle particle )
+		throws IdAlreadyInUseException
+	{
+		Particle p = getParticle( particle.getId() );
+		
+		if( p != null && p != particle )
+			throw new IdAlreadyInUseException( "a particle with the same identifier already exists ("+particle.getId()+")" );
+		
+		regions[regionIndex( getCoordinate( particle ) )].box.addParticle( particle );
+	}
+	
+	/**
+	 * Remove the particle identified by the given identifier.
+	 * @param id The particle unique identifier.
+	 * @return The removed particle (or null if not found).
+	 */
+	public Particle removeParticle( Object id )
+	{
+		for( Region region: regions )
+		{
+			Particle particle = region.box.removeParticle( id );
+			
+			if( particle != null )
+				return particle;
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Remove all the particles of all the regions, and the ghosts.
+	 */
+	public void removeAllParticles()
+	{
+		for( Region region: regions )
+		{
+			region.removeGhosts();
+			region.box.removeAllParticles();
+		}
+	}
+	
+	/**
+	 * Copy in each region the particles of the neighbour regions that are
+	 * at most at this distance of their common boundary. This must be at
+	 * least the reach of the interactions for the neighbourhood queries of a
+	 * region to see all the particles. The ghosts are updated at the next
+	 * step.
+	 * @param width The halo width, zero for no ghosts.
+	 */
+	public void setHaloWidth( double width )
+	{
+		if( width < 0 )
+			throw new RuntimeException( "negative halo width" );
+		
+		halo = width;
+	}
+	
+	/**
+	 * Record the attribute changes of all the regions and send them once
+	 * per step.
+	 * @param on True to coalesce the attribute changes.
+	 * @see ParticleBox#setDeferredAttributeEvents(boolean)
+	 */
+	public void setDeferredAttributeEvents( boolean on )
+	{
+		for( Region region: regions )
+			region.box.setDeferredAttributeEvents( on );
+	}
+	
+	/**
+	 * Shut the thread pool down if it was created by this box. The box must
+	 * not be stepped anymore.
+	 */
+	public void shutdown()
+	{
+		if( pool != null && ownPool )
+			pool.shutdown();
+		
+		pool    = null;
+		ownPool = false;
+	}
+	
+	/**
+	 * Add a listener for the events of all the regions.
+	 * @param listener The listener to add.
+	 */
+	public void addParticleBoxListener( ParticleBoxListener listener )
+	{
+		synchronized( listeners )
+		{
+			listeners.add( listener );
+			
+			if( listener instanceof ParticleBoxBatchListener )
+			     batchListeners.add( (ParticleBoxBatchListener) listener );
+			else moveListeners.add( listener );
+		}
+	}
+	
+	/**
+	 * Remove a listener.
+	 * @param listener The listener to remove.
+	 */
+	public void removeParticleBoxListener( ParticleBoxListener listener )
+	{
+		synchronized( listeners )
+		{
+			if( listeners.remove( listener ) )
+			{
+				if( listener instanceof ParticleBoxBatchListener )
+				     batchListeners.remove( listener );
+				else moveListeners.remove( listener );
+			}
+		}
+	}
+	
+	/**
+	 * One step of all the regions, see the class description.
+	 */
+	public void step()
+	{
+		for( Region region: regions )
+		{
+			if( region.box.treeMode != ParticleBox.TreeMode.INCREMENTAL )
+				throw new RuntimeException( "region "+region.index+" is in "+region.box.treeMode+" tree mode, the regions must maintain their n-tree" );
+		}
+		
+		// The sleep and wake requests of the particles, maybe for particles
+		// of other regions, are deferred in all the regions.
+		
+		for( Region region: regions )
+			region.box.stepping = true;
+		
+		try
+		{
+			runTasks( RegionTask.MOVE );
+		}
+		finally
+		{
+			for( Region region: regions )
+				region.box.stepping = false;
+		}
+		
+		runTasks( RegionTask.HANDOFF );
+		runTasks( RegionTask.GHOSTS );
+		
+		for( Region region: regions )
+			region.box.applySleepChanges();
+		
+		// Tell to the listeners. The regions give their moves to their
+		// forwarders, the particles that changed of region were moved
+		// without the region knowing.
+		
+		for( Region region: regions )
+		{
+			if( region.box.movedCount > 0 )
+				region.box.fireParticlesMoved();
+			
+			for( Particle particle: region.leaving )
+				addMove( particle.getId(), particle.getX(), particle.getY(), particle.getZ() );
+			
+			region.leaving.clear();
+		}
+		
+		if( movedCount > 0 )
+			fireMoves();
+		
+		for( Region region: regions )
+		{
+			if( ! region.box.changedParticles.isEmpty() )
+				region.box.flushAttributeChanges();
+		}
+		
+		for( ParticleBoxListener listener: listeners )
+			listener.stepFinished( time );
+		
+		time++;
+		
+		for( Region region: regions )
+			region.box.time = time;
+	}
+
+// Utility
+	
+	/**
+	 * Run one phase of all the region tasks, in the pool if there are
+	 * several regions.
+	 */
+	protected void runTasks( int phase )
+	{
+		for( RegionTask task: tasks )
+			task.phase = phase;
+		
+		if( tasks.size() == 1 )
+		{
+			tasks.get( 0 ).call();
+			return;
+		}
+		
+		if( pool == null )
+			throw new RuntimeException( "the partitioned particle box was shut down" );
+		
+		try
+		{
+			for( Future<Object> f: pool.invokeAll( tasks ) )
+				f.get();
+		}
+		catch( ExecutionException e )
+		{
+			if( e.getCause() instanceof RuntimeException )
+				throw (RuntimeException) e.getCause();
+			
+			throw new RuntimeException( "region step failed", e.getCause() );
+		}
+		catch( InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException( "interrupted during the region step", e );
+		}
+	}
+	
+	/**
+	 * Index of the slab containing a coordinate along the axis.
+	 */
+	protected int regionIndex( double c )
+	{
+		int i = (int) Math.floor( ( c - lo ) / width );
+		
+		if( i < 0 )
+			return 0;
+		
+		if( i >= regions.length )
+			return regions.length - 1;
+		
+		return i;
+	}
+	
+	/**
+	 * The current coordinate of a particle along the axis.
+	 */
+	protected double getCoordinate( Particle particle )
+	{
+		return axis == 0 ? particle.getX() : axis == 1 ? particle.getY() : particle.getZ();
+	}
+	
+	/**
+	 * The next coordinate of a particle along the axis, as set by its move.
+	 */
+	protected double getNextCoordinate( Particle particle )
+	{
+		if( particle.positions != null )
+		{
+			PositionStore positions = particle.positions;
+			int           s         = particle.slot;
+			
+			return axis == 0 ? positions.nx[s] : axis == 1 ? positions.ny[s] : positions.nz[s];
+		}
+		
+		return axis == 0 ? particle.nextPos.x : axis == 1 ? particle.nextPos.y : particle.nextPos.z;
+	}
+	
+	protected double getCoordinate( Point3 p )
+	{
+		return axis == 0 ? p.x : axis == 1 ? p.y : p.z;
+	}
+	
+	protected void setCoordinate( Point3 p, double c )
+	{
+		if( axis == 0 )      p.x = c;
+		else if( axis == 1 ) p.y = c;
+		else                 p.z = c;
+	}
+	
+	/**
+	 * Append a move to the moves of the step.
+	 */
+	protected synchronized void addMove( Object id, double x, double y, double z )
+	{
+		if( movedCount == movedIds.length )
+		{
+			movedIds = Arrays.copyOf( movedIds, movedCount * 2 );
+			movedX   = Arrays.copyOf( movedX, movedCount * 2 );
+			movedY   = Arrays.copyOf( movedY, movedCount * 2 );
+			movedZ   = Arrays.copyOf( movedZ, movedCount * 2 );
+		}
+		
+		movedIds[movedCount] = id;
+		movedX[movedCount]   = x;
+		movedY[movedCount]   = y;
+		movedZ[movedCount]   = z;
+		movedCount++;
+	}
+	
+	/**
+	 * Send the moves of the step to the listeners.
+	 */
+	protected void fireMoves()
+	{
+		for( ParticleBoxListener listener: moveListeners )
+		{
+			for( int i=0; i<movedCount; ++i )
+				listener.particleMoved( movedIds[i], movedX[i], movedY[i], movedZ[i] );
+		}
+		
+		for( ParticleBoxBatchListener listener: batchListeners )
+			listener.particlesMoved( movedIds, movedX, movedY, movedZ, movedCount, time );
+		
+		Arrays.fill( movedIds, 0, movedCount, null );
+		movedCount = 0;
+	}
+	
+	/**
+	 * A region and the particles and ghosts it exchanges with the others.
+	 */
+	protected class Region implements ParticleBoxBatchListener
+	{
+		/**
+		 * Index of the region, in slab order.
+		 */
+		protected int index;
+		
+		/**
+		 * The particles and tree of the region.
+		 */
+		protected ParticleBox box;
+		
+		/**
+		 * The particles that left the region during the move phase.
+		 */
+		protected ArrayList<Particle> leaving = new ArrayList<Particle>();
+		
+		/**
+		 * Ghosts of the particles of this region, by step parity, for the
+		 * previous region then for the next one. A region fills the ghosts
+		 * of one parity while the neighbours still have those of the other
+		 * parity in their trees.
+		 */
+		protected GhostList[][] ghostsOut = new GhostList[2][2];
+		
+		/**
+		 * The ghosts in the tree of this region.
+		 */
+		protected ArrayList<GhostParticle> ghostsIn = new ArrayList<GhostParticle>();
+		
+		protected Region( int index, int pmax, CellSpace space, CellData rootData )
+		{
+			this.index = index;
+			this.box   = new ParticleBox( pmax, space, rootData ) {
+				@Override
+				protected boolean leaves( Particle particle )
+				{
+					return leave( particle );
+				}
+			};
+			
+			for( int p=0; p<2; ++p )
+			{
+				ghostsOut[p][0] = new GhostList();
+				ghostsOut[p][1] = new GhostList();
+			}
+			
+			box.getNTree().setOutOfUniverseMode( NTree.OutOfUniverseMode.GROW );
+			box.addParticleBoxListener( this );
+		}
+		
+		/**
+		 * Take out of the region a particle that moved in another slab,
+		 * when the region commits the moves. The particle gets its next
+		 * position without being in a tree.
+		 * @param particle The particle, that moved.
+		 * @return True if the particle left the region.
+		 */
+		protected boolean leave( Particle particle )
+		{
+			if( regionIndex( getNextCoordinate( particle ) ) == index )
+				return false;
+			
+			box.takeOut( particle );
+			particle.pos.copy( particle.nextPos );
+			particle.moved = false;
+			leaving.add( particle );
+			
+			return true;
+		}
+		
+		/**
+		 * Take the particles that came in the slab of this region, then copy
+		 * the particles near the boundaries for the neighbours.
+		 */
+		protected void handoff()
+		{
+			for( Region region: regions )
+			{
+				for( Particle particle: region.leaving )
+				{
+					if( regionIndex( getCoordinate( particle ) ) == index )
+						box.putIn( particle );
+				}
+			}
+			
+			GhostList prev = ghostsOut[time&1][0];
+			GhostList next = ghostsOut[time&1][1];
+			
+			prev.count = 0;
+			next.count = 0;
+			
+			if( halo > 0 )
+			{
+				double low  = lo + index * width + halo;
+				double high = lo + ( index + 1 ) * width - halo;
+				
+				for( int i=0; i<box.slotCount; ++i )
+				{
+					Particle particle = box.slots[i];
+					double   c        = getCoordinate( particle );
+					
+					if( index > 0 && c < low )
+						prev.add( particle );
+					
+					if( index < regions.length - 1 && c >= high )
+						next.add( particle );
+				}
+			}
+			
+			prev.trim();
+			next.trim();
+		}
+		
+		/**
+		 * Replace the ghosts of the tree by those the neighbours just
+		 * copied, and check the divisions of the tree.
+		 */
+		protected void ghosts()
+		{
+			removeGhosts();
+			
+			if( index > 0 )
+				addGhosts( regions[index-1].ghostsOut[time&1][1] );
+			
+			if( index < regions.length - 1 )
+				addGhosts( regions[index+1].ghostsOut[time&1][0] );
+			
+			box.getNTree().checkDivisions();
+		}
+		
+		protected void addGhosts( GhostList list )
+		{
+			NTree tree = box.getNTree();
+			
+			for( int i=0; i<list.count; ++i )
+			{
+				GhostParticle ghost = list.ghosts.get( i );
+				
+				tree.addParticle( ghost );
+				ghostsIn.add( ghost );
+			}
+		}
+		
+		protected void removeGhosts()
+		{
+			NTree tree = box.getNTree();
+			
+			for( GhostParticle ghost: ghostsIn )
+				tree.removeParticle( ghost );
+			
+			ghostsIn.clear();
+		}
+		
+		// The events of the region go to the listeners of the partitioned
+		// box. The move phase may send some of them from several threads.
+		
+		public void particleAdded( Object id, double x, double y, double z )
+		{
+			synchronized( listeners )
+			{
+				for( ParticleBoxListener listener: listeners )
+					listener.particleAdded( id, x, y, z );
+			}
+		}
+		
+		public void particleRemoved( Object id )
+		{
+			synchronized( listeners )
+			{
+				for( ParticleBoxListener listener: listeners )
+					listener.particleRemoved( id );
+			}
+		}
+		
+		public void particleMoved( Object id, double x, double y, double z )
+		{
+			addMove( id, x, y, z );
+		}
+		
+		public void particlesMoved( Object[] ids, double[] x, double[] y, double[] z, int count, int time )
+		{
+			for( int i=0; i<count; ++i )
+				addMove( ids[i], x[i], y[i], z[i] );
+		}
+		
+		public void particleAttributeChanged( Object id, String attribute, Object newValue, boolean removed )
+		{
+			synchronized( listeners )
+			{
+				for( ParticleBoxListener listener: listeners )
+					listener.particleAttributeChanged( id, attribute, newValue, removed );
+			}
+		}
+		
+		public void stepFinished( int time )
+		{
+		}
+	}
+	
+	/**
+	 * Reused ghosts, the first ones being in use.
+	 */
+	protected static class GhostList
+	{
+		protected ArrayList<GhostParticle> ghosts = new ArrayList<GhostParticle>();
+		
+		protected int count = 0;
+		
+		protected void add( Particle particle )
+		{
+			if( count == ghosts.size() )
+				ghosts.add( new GhostParticle() );
+			
+			ghosts.get( count++ ).copy( particle );
+		}
+		
+		/**
+		 * Forget the originals of the ghosts not in use.
+		 */
+		protected void trim()
+		{
+			for( int i=count; i<ghosts.size() && ghosts.get( i ).original != null; ++i )
+				ghosts.get( i ).clear();
+		}
+	}
+	
+	/**
+	 * One phase of the step of a region.
+	 */
+	protected class RegionTask implements Callable<Object>
+	{
+		protected static final int MOVE = 0;
+		
+		protected static final int HANDOFF = 1;
+		
+		protected static final int GHOSTS = 2;
+		
+		protected Region region;
+		
+		protected int phase;
+		
+		protected RegionTask( Region region )
+		{
+			this.region = region;
+		}
+		
+		public Object call()
+		{
+			if( phase == MOVE )
+			     region.box.moveParticles();
+			else if( phase == HANDOFF )
+			     region.handoff();
+			else region.ghosts();
+			
+			return null;
+		}
+	}
+}
@@ -0,0 +1,325 @@
+package org.miv.pherd;
+
+import java.util.*;
+
+import org.miv.pherd.ntree.*;
+
+/**
+ * Check of the {@link PartitionedParticleBox}.
+ *
+ * <p>
+ * The particles drift along the longest axis of the universe, half of them
+ * in each direction, therefore they keep going from a region to another.
+ * One region moves its particles in a step pool, another one stores their
+ * positions in arrays. Some particles ask to sleep during the step in which
+ * they change of region. After each step the program checks that no
+ * particle was lost or duplicated, that each particle is in the region of
+ * its slab and in the tree of this region, that a particle that asked to
+ * sleep sleeps in its new region, and that the regions have the step of the
+ * box. It also checks the ghosts of each region: they are the particles of
+ * the neighbour regions near the boundary, at their position at the end of
+ * the step, taken from the ghost lists of the step parity, and the weight of
+ * the root cell without the ghosts is the number of particles of the region.
+ * </p>
+ *
+ * <p>
+ * Usage: PartitionedParticleBoxTest [regions [steps [particles]]], by
+ * default 4 regions, 150 steps and 4000 particles. The program throws an
+ * exception if a check fails.
+ * </p>
+ */
+public class PartitionedParticleBoxTest
+{
+// Attributes
+	
+	/**
+	 * Number of regions.
+	 */
+	protected int regionCount;
+	
+	/**
+	 * Number of steps.
+	 */
+	protected int steps;
+	
+	/**
+	 * Number of particles.
+	 */
+	protected int particles;
+	
+	/**
+	 * Distance to a boundary under which a particle has a ghost.
+	 */
+	protected double halo = 0.1;
+	
+	/**
+	 * The box under test.
+	 */
+	protected PartitionedParticleBox partitioned;
+	
+	/**
+	 * The particles that asked to sleep during the current step.
+	 */
+	protected Set<Particle> sleepers = Collections.synchronizedSet( new HashSet<Particle>() );
+
+// Constructors
+	
+	public static void main( String args[] )
+	{
+		PartitionedParticleBoxTest test = new PartitionedParticleBoxTest(
+			args.length > 0 ? Integer.parseInt( args[0] ) : 4,
+			args.length > 1 ? Integer.parseInt( args[1] ) : 150,
+			args.length > 2 ? Integer.parseInt( args[2] ) : 4000 );
+		
+		test.test();
+	}
+	
+	public PartitionedParticleBoxTest( int regionCount, int steps, int particles )
+	{
+		this.regionCount = regionCount;
+		this.steps       = steps;
+		this.particles   = particles;
+	}
+
+// Commands
+	
+	/**
+	 * Step the box and check it after each step.
+	 */
+	public void test()
+	{
+		CellSpace universe = new OctreeCellSpace( new Anchor( -2, -1, -1 ), new Anchor( 2, 1, 1 ) );
+		Random    random   = new Random( 1 );
+		
+		partitioned = new PartitionedParticleBox( regionCount, 8, universe, new BarycenterCellData() );
+		
+		partitioned.setHaloWidth( halo );
+		partitioned.getRegion( 0 ).setParallelStep( 2 );
+		partitioned.getRegion( 0 ).setMinParticlesPerTask( 16 );
+		partitioned.getRegion( regionCount - 1 ).setPositionStore( true );
+		
+		try
+		{
+			for( int i=0; i<particles; ++i )
+			{
+				double x = random.nextDouble() * 3.6 - 1.8;
+				double y = random.nextDouble() * 1.8 - 0.9;
+				double z = random.nextDouble() * 1.8 - 0.9;
+				
+				partitioned.addParticle( new TestParticle( i, x, y, z ) );
+			}
+			
+			int handoffs = 0;
+			int slept    = 0;
+			
+			for( int s=0; s<steps; ++s )
+			{
+				int before[] = new int[particles];
+				
+				for( int r=0; r<regionCount; ++r )
+				{
+					ParticleBox region = partitioned.getRegion( r );
+					
+					for( int i=0; i<region.getParticleCount(); ++i )
+						before[(Integer) region.getParticleAt( i ).getId()] = r;
+				}
+				
+				sleepers.clear();
+				partitioned.step();
+				
+				handoffs += check( before );
+				slept    += sleepers.size();
+				
+				// The particles that slept are woken for the next step.
+				
+				for( Particle particle: sleepers )
+					particle.wake();
+			}
+			
+			if( regionCount > 1 && ( handoffs == 0 || slept == 0 ) )
+				throw new RuntimeException( "no particle changed of region, or none asked to sleep while doing it" );
+			
+			System.out.printf( "Partitioned particle box OK, %d regions, %d particles, %d region changes, %d slept in their new region%n",
+				regionCount, particles, handoffs, slept );
+		}
+		finally
+		{
+			partitioned.getRegion( 0 ).setSequentialStep();
+			partitioned.shutdown();
+		}
+	}
+	
+	/**
+	 * Check the regions after a step.
+	 * @param before The region of each particle before the step.
+	 * @return The number of particles that changed of region.
+	 */
+	protected int check( int before[] )
+	{
+		BitSet seen     = new BitSet( particles );
+		int    count    = 0;
+		int    handoffs = 0;
+		
+		for( int r=0; r<regionCount; ++r )
+		{
+			ParticleBox region = partitioned.getRegion( r );
+			Cell        root   = region.getNTree().getRootCell();
+			
+			if( region.time != partitioned.time )
+				throw new RuntimeException( "region "+r+" is at step "+region.time+" instead of "+partitioned.time );
+			
+			for( int i=0; i<region.getParticleCount(); ++i )
+			{
+				Particle particle = region.getParticleAt( i );
+				int      id       = (Integer) particle.getId();
+				
+				if( seen.get( id ) )
+					throw new RuntimeException( "particle "+id+" is in several regions" );
+				
+				seen.set( id );
+				count++;
+				
+				if( partitioned.getRegionIndex( particle.getX(), particle.getY(), particle.getZ() ) != r )
+					throw new RuntimeException( "particle "+id+" is out of the slab of region "+r );
+				
+				Cell cell = particle.getCell();
+				
+				while( cell != null && cell.getParent() != null )
+					cell = cell.getParent();
+				
+				if( cell != root )
+					throw new RuntimeException( "particle "+id+" is not in the tree of region "+r );
+				
+				if( before[id] != r )
+				{
+					handoffs++;
+					
+					if( sleepers.contains( particle ) && ! particle.isAsleep() )
+						throw new RuntimeException( "particle "+id+" lost its sleep request when going in region "+r );
+				}
+			}
+			
+			checkGhosts( r );
+			
+			double weight = ((BarycenterCellData) root.getData()).getWeight() - partitioned.getGhostCount( r );
+			
+			if( Math.abs( weight - region.getParticleCount() ) > 1e-6 )
+				throw new RuntimeException( "the root cell weight of region "+r+" without the ghosts is "+weight+" instead of "+region.getParticleCount() );
+		}
+		
+		if( count != particles || seen.cardinality() != particles || partitioned.getParticleCount() != particles )
+			throw new RuntimeException( "particles lost or duplicated: "+count+" particles instead of "+particles );
+		
+		return handoffs;
+	}
+	
+	/**
+	 * Check the ghosts in the tree of a region. They come from the ghost
+	 * lists the neighbours filled at this step, not from those of the other
+	 * parity.
+	 * @param r The region index.
+	 */
+	protected void checkGhosts( int r )
+	{
+		PartitionedParticleBox.Region region   = partitioned.regions[r];
+		int                           parity   = ( partitioned.time - 1 ) & 1;
+		Set<Particle>                 expected = new HashSet<Particle>();
+		double                        low      = partitioned.lo + r * partitioned.width - halo;
+		double                        high     = partitioned.lo + ( r + 1 ) * partitioned.width + halo;
+		
+		for( int n=r-1; n<=r+1; n+=2 )
+		{
+			if( n < 0 || n >= regionCount )
+				continue;
+			
+			ParticleBox neighbour = partitioned.getRegion( n );
+			
+			for( int i=0; i<neighbour.getParticleCount(); ++i )
+			{
+				Particle particle = neighbour.getParticleAt( i );
+				
+				if( ( n < r && particle.getX() >= low ) || ( n > r && particle.getX() < high ) )
+					expected.add( particle );
+			}
+		}
+		
+		if( expected.size() != region.ghostsIn.size() )
+			throw new RuntimeException( "region "+r+" has "+region.ghostsIn.size()+" ghosts instead of "+expected.size() );
+		
+		for( GhostParticle ghost: region.ghostsIn )
+		{
+			Particle original = ghost.getOriginal();
+			
+			if( ! expected.remove( original ) )
+				throw new RuntimeException( "region "+r+" has a ghost of a particle not near its boundaries" );
+			
+			if( ghost.getX() != original.getX() || ghost.getY() != original.getY() || ghost.getZ() != original.getZ() )
+				throw new RuntimeException( "the ghost of particle "+original.getId()+" is not at its position of the step" );
+			
+			int side = original.getX() < partitioned.lo + r * partitioned.width ? 0 : 1;
+			
+			if( ! inList( ghost, partitioned.regions[r + ( side == 0 ? -1 : 1 )].ghostsOut[parity][1 - side] ) )
+				throw new RuntimeException( "the ghost of particle "+original.getId()+" in region "+r+" is not from the ghosts of the step" );
+		}
+	}
+	
+	/**
+	 * True if a ghost is one of the ghosts in use of a list.
+	 */
+	protected boolean inList( GhostParticle ghost, PartitionedParticleBox.GhostList list )
+	{
+		for( int i=0; i<list.count; ++i )
+		{
+			if( list.ghosts.get( i ) == ghost )
+				return true;
+		}
+		
+		return false;
+	}
+
+// Nested classes
+	
+	/**
+	 * Particle drifting along the abscissa, toward the high bound for even
+	 * identifiers and toward the low bound for odd ones, going back at the
+	 * bounds of the universe. One particle in ten asks to sleep when it
+	 * goes in another region.
+	 */
+	protected class TestParticle extends Particle
+	{
+		public TestParticle( Object id, double x, double y, double z )
+		{
+			super( id, x, y, z );
+		}
+		
+		@Override
+		public void move( int time )
+		{
+			int    id     = (Integer) getId();
+			Random random = new Random( time * 131L + id );
+			double x      = getX() + ( id % 2 == 0 ? 0.03 : -0.03 ) + ( random.nextDouble() - 0.5 ) * 0.05;
+			
+			if( x > 1.9 || x < -1.9 )
+				x = -x * 0.9;
+			
+			setNextPosition( x, getY() + ( random.nextDouble() - 0.5 ) * 0.05, getZ() + ( random.nextDouble() - 0.5 ) * 0.05 );
+			moved = true;
+			
+			if( id % 10 == 0 && partitioned.getRegionIndex( x, 0, 0 ) != partitioned.getRegionIndex( getX(), 0, 0 ) )
+			{
+				sleep();
+				sleepers.add( this );
+			}
+		}
+		
+		@Override
+		public void inserted()
+		{
+		}
+		
+		@Override
+		public void removed()
+		{
+		}
+	}
+}
@@ -0,0 +1,170 @@
+package org.miv.pherd;
+
+import java.util.Arrays;
+
+/**
+ * Particle positions stored as a structure of arrays.
+ * 
+ * <p>
+ * The current and next coordinates of the particles of a particle box are
+ * stored in six contiguous arrays indexed by the particle slot in the box
+ * (see {@link ParticleBox#setPositionStore(boolean)}). Loops on many
+ * particles therefore read memory linearly instead of following a reference
+ * to a point object per particle.
+ * </p>
+ */
+public class PositionStore
+{
+// Attributes
+	
+	/**
+	 * Current abscissa of each slot.
+	 */
+	public double[] x;
+	
+	/**
+	 * Current ordinate of each slot.
+	 */
+	public double[] y;
+	
+	/**
+	 * Current depth of each slot.
+	 */
+	public double[] z;
+	
+	/**
+	 * Next abscissa of each slot.
+	 */
+	public double[] nx;
+	
+	/**
+	 * Next ordinate of each slot.
+	 */
+	public double[] ny;
+	
+	/**
+	 * Next depth of each slot.
+	 */
+	public double[] nz;
+
+// Constructors
+	
+	/**
+	 * New store for the given number of slots.
+	 * @param capacity The initial number of slots.
+	 */
+	public PositionStore( int capacity )
+	{
+		capacity = Math.max( capacity, 16 );
+		
+		x  = new double[capacity];
+		y  = new double[capacity];
+		z  = new double[capacity];
+		nx = new double[capacity];
+		ny = new double[capacity];
+		nz = new double[capacity];
+	}
+
+// Access
+	
+	/**
+	 * Number of slots available.
+	 * @return The store capacity.
+	 */
+	public int getCapacity()
+	{
+		return x.length;
+	}
+
+// Commands
+	
+	/**
+	 * Make sure the store has at least the given number of slots.
+	 * @param capacity The needed number of slots.
+	 */
+	public void ensureCapacity( int capacity )
+	{
+		if( capacity > x.length )
+		{
+			int n = Math.max( capacity, x.length * 2 );
+			
+			x  = Arrays.copyOf( x,  n );
+			y  = Arrays.copyOf( y,  n );
+			z  = Arrays.copyOf( z,  n );
+			nx = Arrays.copyOf( nx, n );
+			ny = Arrays.copyOf( ny, n );
+			nz = Arrays.copyOf( nz, n );
+		}
+	}
+	
+	/**
+	 * Set both the current and next position of a slot.
+	 * @param slot The slot.
+	 * @param px The abscissa.
+	 * @param py The ordinate.
+	 * @param pz The depth.
+	 */
+	public void set( int slot, double px, double py, double pz )
+	{
+		x[slot] = nx[slot] = px;
+		y[slot] = ny[slot] = py;
+		z[slot] = nz[slot] = pz;
+	}
+	
+	/**
+	 * Set the next position of a slot.
+	 * @param slot The slot.
+	 * @param px The next abscissa.
+	 * @param py The next ordinate.
+	 * @param pz The next depth.
+	 */
+	public void setNext( int slot, double px, double py, double pz )
+	{
+		nx[slot] = px;
+		ny[slot] = py;
+		nz[slot] = pz;
+	}
+	
+	/**
+	 * Copy the next position of a slot into its current position.
+	 * @param slot The slot.
+	 */
+	public void commit( int slot )
+	{
+		x[slot] = nx[slot];
+		y[slot] = ny[slot];
+		z[slot] = nz[slot];
+	}
+	
+	/**
+	 * Exchange the positions of two slots.
+	 * @param i The first slot.
+	 * @param j The second slot.
+	 */
+	public void swap( int i, int j )
+	{
+		double t;
+		
+		t = x[i];  x[i]  = x[j];  x[j]  = t;
+		t = y[i];  y[i]  = y[j];  y[j]  = t;
+		t = z[i];  z[i]  = z[j];  z[j]  = t;
+		t = nx[i]; nx[i] = nx[j]; nx[j] = t;
+		t = ny[i]; ny[i] = ny[j]; ny[j] = t;
+		t = nz[i]; nz[i] = nz[j]; nz[j] = t;
+	}
+	
+	/**
+	 * Copy the positions of a slot into another slot.
+	 * @param from The source slot.
+	 * @param to The destination slot.
+	 */
+	public void move( int from, int to )
+	{
+		x[to]  = x[from];
+		y[to]  = y[from];
+		z[to]  = z[from];
+		nx[to] = nx[from];
+		ny[to] = ny[from];
+		nz[to] = nz[from];
+	}
+}
@@ -0,0 +1,34 @@
+package org.miv.pherd.ntree;
+
+import org.miv.pherd.*;
+
+/**
+ * Interaction computed by a Barnes-Hut traversal of the n-tree.
+ * 
+ * <p>
+ * The {@link BarnesHutWalker} decides, for each particle, which particles are
+ * close enough to interact directly and which cells are far enough to be
+ * approximated by their barycenter. The kernel computes the interaction itself,
+ * usually by accumulating a force in the target particle.
+ * </p>
+ *
+ * @see BarnesHutWalker
+ */
+public interface BarnesHutKernel
+{
+	/**
+	 * Near field interaction between two particles.
+	 * @param target The particle that receives the interaction.
+	 * @param source The particle that exerts the interaction, never the target.
+	 */
+	void particleInteraction( Particle target, Particle source );
+	
+	/**
+	 * Far field interaction between a particle and a whole cell.
+	 * @param target The particle that receives the interaction.
+	 * @param source The cell that exerts the interaction, it does not contain
+	 * the target.
+	 * @param data The source cell barycenter.
+	 */
+	void cellInteraction( Particle target, Cell source, BarycenterCellData data );
+}
@@ -0,0 +1,246 @@
+package org.miv.pherd.ntree;
+
+import java.util.*;
+
+import org.miv.pherd.*;
+
+/**
+ * Check of the {@link BarnesHutWalker} against a brute-force sum.
+ *
+ * <p>
+ * Random particles are put in an octree and in a quadtree. A softened
+ * potential is computed for each particle by the walker, leaf by leaf and
+ * particle by particle, and compared with the sum over all the other
+ * particles. Every particle must account for all the others once, either
+ * directly or through a cell, a theta of zero must give the exact sum, and
+ * the relative error for the given theta must stay under the given bound.
+ * </p>
+ *
+ * <p>
+ * Usage: BarnesHutTest [particles [theta [maxError]]], by default 2000
+ * particles, a theta of 0.5 and an error of 1%. The program throws an
+ * exception at the first failure.
+ * </p>
+ */
+public class BarnesHutTest
+{
+// Constant
+	
+	/**
+	 * Softening added to the distances.
+	 */
+	protected static final double EPSILON = 1e-3;
+
+// Attributes
+	
+	/**
+	 * Number of particles.
+	 */
+	protected int count;
+	
+	/**
+	 * Opening criterion checked.
+	 */
+	protected double theta;
+	
+	/**
+	 * Largest accepted relative error for {@link #theta}.
+	 */
+	protected double maxError;
+	
+	/**
+	 * Random generator, fixed seed.
+	 */
+	protected Random random = new Random( 1 );
+
+// Constructors
+	
+	public static void main( String args[] )
+	{
+		int    count    = args.length > 0 ? Integer.parseInt( args[0] ) : 2000;
+		double theta    = args.length > 1 ? Double.parseDouble( args[1] ) : 0.5;
+		double maxError = args.length > 2 ? Double.parseDouble( args[2] ) : 0.01;
+		
+		new BarnesHutTest( count, theta, maxError );
+	}
+	
+	public BarnesHutTest( int count, double theta, double maxError )
+	{
+		this.count    = count;
+		this.theta    = theta;
+		this.maxError = maxError;
+		
+		check( "octree", new OctreeCellSpace( -1, -1, -1, 1, 1, 1 ), true );
+		check( "quadtree", new QuadtreeCellSpace( -1, -1, -1, 1, 1, 1 ), false );
+		
+		System.out.printf( "Barnes-Hut walker OK%n" );
+		System.out.flush();
+	}
+
+// Commands
+	
+	/**
+	 * Check the walker on one kind of tree.
+	 * @param name The name of the tree, for the report.
+	 * @param space The root cell space.
+	 * @param depth If false, all the particles have a zero depth.
+	 */
+	protected void check( String name, CellSpace space, boolean depth )
+	{
+		ParticleBox    box       = new ParticleBox( 4, space, new BarycenterCellData() );
+		TestParticle[] particles = new TestParticle[count];
+		
+		for( int i=0; i<count; ++i )
+		{
+			double x = random.nextGaussian() * 0.3;
+			double y = random.nextGaussian() * 0.3;
+			double z = depth ? random.nextGaussian() * 0.3 : 0;
+			
+			particles[i] = new TestParticle( i, x, y, z );
+			box.addParticle( particles[i] );
+		}
+		
+		box.step();
+		
+		double exact[] = bruteForce( particles );
+		NTree  tree    = box.getNTree();
+		
+		for( double t: new double[] { 0, theta } )
+		{
+			double bound = t == 0 ? 1e-9 : maxError;
+			
+			for( TestParticle p: particles )
+				p.reset();
+			
+			long t1 = System.nanoTime();
+			tree.barnesHut( t, KERNEL );
+			long t2 = System.nanoTime();
+			
+			compare( name+" leaves theta="+t, particles, exact, bound, t2 - t1 );
+			
+			for( TestParticle p: particles )
+				p.reset();
+			
+			t1 = System.nanoTime();
+			for( TestParticle p: particles )
+				tree.barnesHut( p, t, KERNEL );
+			t2 = System.nanoTime();
+			
+			compare( name+" particles theta="+t, particles, exact, bound, t2 - t1 );
+		}
+	}
+	
+	/**
+	 * Compare the walker results with the exact ones.
+	 */
+	protected void compare( String name, TestParticle particles[], double exact[], double bound, long time )
+	{
+		double error = 0;
+		
+		for( int i=0; i<particles.length; ++i )
+		{
+			TestParticle p = particles[i];
+			
+			if( p.sources != particles.length - 1 )
+				throw new RuntimeException( name+": particle "+i+" interacted with "+p.sources+" particles instead of "+(particles.length-1) );
+			
+			error = Math.max( error, Math.abs( p.potential - exact[i] ) / exact[i] );
+		}
+		
+		System.out.printf( "%-30s max error %e in %f ms%n", name, error, time / 1000000f );
+		
+		if( error > bound )
+			throw new RuntimeException( name+": relative error "+error+" above "+bound );
+	}
+
+// Utility
+	
+	/**
+	 * The exact potential of each particle.
+	 */
+	protected static double[] bruteForce( TestParticle particles[] )
+	{
+		double exact[] = new double[particles.length];
+		
+		for( int i=0; i<particles.length; ++i )
+		{
+			for( int j=0; j<particles.length; ++j )
+			{
+				if( i != j )
+					exact[i] += potential( particles[i], particles[j].getX(), particles[j].getY(), particles[j].getZ(), 1 );
+			}
+		}
+		
+		return exact;
+	}
+	
+	/**
+	 * Softened potential of a weight at a point on a particle.
+	 */
+	protected static double potential( Particle target, double x, double y, double z, double weight )
+	{
+		double dx = target.getX() - x;
+		double dy = target.getY() - y;
+		double dz = target.getZ() - z;
+		
+		return weight / ( EPSILON + Math.sqrt( dx*dx + dy*dy + dz*dz ) );
+	}
+	
+	/**
+	 * Sums the potential and counts the particles it comes from.
+	 */
+	protected static final BarnesHutKernel KERNEL = new BarnesHutKernel()
+	{
+		public void particleInteraction( Particle target, Particle source )
+		{
+			TestParticle p = (TestParticle) target;
+			
+			p.potential += potential( target, source.getX(), source.getY(), source.getZ(), source.getWeight() );
+			p.sources   += 1;
+		}
+		
+		public void cellInteraction( Particle target, Cell source, BarycenterCellData data )
+		{
+			TestParticle p = (TestParticle) target;
+			
+			p.potential += potential( target, data.center.x, data.center.y, data.center.z, data.weight );
+			p.sources   += source.getPopulation();
+		}
+	};
+	
+	/**
+	 * Particle that does not move and keeps the kernel results.
+	 */
+	protected static class TestParticle extends Particle
+	{
+		public double potential;
+		
+		public int sources;
+		
+		public TestParticle( Object id, double x, double y, double z )
+		{
+			super( id, x, y, z );
+		}
+		
+		public void reset()
+		{
+			potential = 0;
+			sources   = 0;
+		}
+		
+		@Override
+		public void move( int time )
+		{
+		}
+		
+		@Override
+		public void inserted()
+		{
+		}
+		
+		@Override
+		public void removed()
+		{
+		}
+	}
+}
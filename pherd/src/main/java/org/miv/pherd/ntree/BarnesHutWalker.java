@@ -0,0 +1,302 @@
+package org.miv.pherd.ntree;
+
+import java.util.*;
+
+import org.miv.pherd.*;
+import org.miv.pherd.geom.*;
+
+/**
+ * Barnes-Hut traversal of a n-tree whose cells hold {@link BarycenterCellData}.
+ * 
+ * <p>
+ * A cell is approximated by its barycenter if its size divided by its
+ * distance to the target is less than the opening criterion theta. Else the
+ * cell is opened and its sub-cells are considered, the particles of opened
+ * leaf cells interacting directly. A theta of zero makes every interaction
+ * direct, the usual values are between 0.5 and 1.
+ * </p>
+ * 
+ * <p>
+ * The {@link #walk(BarnesHutKernel)} method processes all the particles leaf
+ * by leaf: one interaction list is built for each leaf, using the distance to
+ * the leaf bounding box, and shared by all the particles of the leaf. The
+ * {@link #walk(Particle, BarnesHutKernel)} method processes only one particle
+ * and is usable from {@link Particle#move(int)}.
+ * </p>
+ * 
+ * <p>
+ * The walker uses no recursion and reuses its internal buffers, therefore it
+ * does not allocate memory per particle. It is not thread-safe: use one
+ * walker per thread when the step is parallel.
+ * </p>
+ *
+ * @see BarnesHutKernel
+ */
+public class BarnesHutWalker
+{
+// Attributes
+	
+	/**
+	 * The tree to walk.
+	 */
+	protected NTree tree;
+	
+	/**
+	 * The opening criterion.
+	 */
+	protected double theta;
+	
+	/**
+	 * Cells to visit.
+	 */
+	protected Cell[] stack = new Cell[64];
+	
+	/**
+	 * Cells to visit when building the interaction lists of a leaf, while
+	 * {@link #stack} holds the leaves still to process.
+	 */
+	protected Cell[] queue = new Cell[64];
+	
+	/**
+	 * Cells accepted as far field for the current leaf.
+	 */
+	protected Cell[] far = new Cell[64];
+	
+	/**
+	 * Number of cells in {@link #far}.
+	 */
+	protected int farCount;
+	
+	/**
+	 * Particles of the near leaves of the current leaf.
+	 */
+	protected Particle[] near = new Particle[64];
+	
+	/**
+	 * Number of particles in {@link #near}.
+	 */
+	protected int nearCount;
+
+// Constructors
+	
+	/**
+	 * New walker.
+	 * @param tree The tree to walk, its cells data must be instances of
+	 * {@link BarycenterCellData}.
+	 * @param theta The opening criterion.
+	 */
+	public BarnesHutWalker( NTree tree, double theta )
+	{
+		if( ! ( tree.getRootCell().getData() instanceof BarycenterCellData ) )
+			throw new RuntimeException( "the Barnes-Hut walk needs barycenter cell data" );
+		
+		this.tree  = tree;
+		this.theta = theta;
+	}
+
+// Access
+	
+	/**
+	 * The opening criterion.
+	 * @return The theta value.
+	 */
+	public double getTheta()
+	{
+		return theta;
+	}
+
+// Commands
+	
+	/**
+	 * Change the opening criterion.
+	 * @param theta The new theta value.
+	 */
+	public void setTheta( double theta )
+	{
+		this.theta = theta;
+	}
+	
+	/**
+	 * Compute the interactions of one particle with all the others.
+	 * @param target The particle, it must be in the walked tree.
+	 * @param kernel The interaction.
+	 */
+	public void walk( Particle target, BarnesHutKernel kernel )
+	{
+		Point3 pos = target.getPosition();
+		int    top = 0;
+		
+		stack[top++] = tree.getRootCell();
+		
+		while( top > 0 )
+		{
+			Cell cell = stack[--top];
+			
+			if( cell.population == 0 )
+				continue;
+			
+			if( cell.isLeaf() )
+			{
+				for( int i=0; i<cell.particleCount; ++i )
+				{
+					Particle source = cell.particles[i];
+					
+					if( source != target )
+						kernel.particleInteraction( target, source );
+				}
+			}
+			else
+			{
+				BarycenterCellData data = (BarycenterCellData) cell.data;
+				double             d    = data.center.distance( pos );
+				
+				if( cell.space.diag < theta * d && ! cell.space.contains( pos.x, pos.y, pos.z ) )
+				{
+					kernel.cellInteraction( target, cell, data );
+				}
+				else
+				{
+					stack = ensure( stack, top + cell.sub.length );
+					
+					for( Cell s: cell.sub )
+						stack[top++] = s;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Compute the interactions of all the particles of the tree, leaf by
+	 * leaf.
+	 * @param kernel The interaction.
+	 */
+	public void walk( BarnesHutKernel kernel )
+	{
+		int top = 0;
+		
+		stack[top++] = tree.getRootCell();
+		
+		// The leaves are found using the stack, each one then walks the
+		// tree using the queue to build its interaction lists.
+		
+		while( top > 0 )
+		{
+			Cell cell = stack[--top];
+			
+			if( cell.population == 0 )
+				continue;
+			
+			if( cell.isLeaf() )
+			{
+				walkLeaf( cell, kernel );
+			}
+			else
+			{
+				stack = ensure( stack, top + cell.sub.length );
+				
+				for( Cell s: cell.sub )
+					stack[top++] = s;
+			}
+		}
+	}
+	
+	/**
+	 * Compute the interactions of all the particles of one leaf.
+	 * @param leaf The leaf.
+	 * @param kernel The interaction.
+	 */
+	public void walkLeaf( Cell leaf, BarnesHutKernel kernel )
+	{
+		buildLists( leaf );
+		
+		for( int j=0; j<leaf.particleCount; ++j )
+		{
+			Particle target = leaf.particles[j];
+			
+			for( int i=0; i<farCount; ++i )
+				kernel.cellInteraction( target, far[i], (BarycenterCellData) far[i].data );
+			
+			for( int i=0; i<nearCount; ++i )
+			{
+				if( near[i] != target )
+					kernel.particleInteraction( target, near[i] );
+			}
+		}
+	}
+	
+	/**
+	 * Build the far cells and near particles lists of a leaf. A cell is far
+	 * if the opening criterion is verified for the point of the leaf nearest
+	 * to the cell barycenter, that is for all the particles of the leaf.
+	 * @param leaf The leaf.
+	 */
+	protected void buildLists( Cell leaf )
+	{
+		CellSpace ls   = leaf.space;
+		Cell[]    todo = queue;
+		int       top  = 0;
+		
+		farCount    = 0;
+		nearCount   = 0;
+		todo[top++] = tree.getRootCell();
+		
+		while( top > 0 )
+		{
+			Cell cell = todo[--top];
+			
+			if( cell.population == 0 )
+				continue;
+			
+			if( cell.isLeaf() )
+			{
+				near = ensure( near, nearCount + cell.population );
+				
+				for( int i=0; i<cell.particleCount; ++i )
+					near[nearCount++] = cell.particles[i];
+			}
+			else if( cell.space.contains( ls.cx, ls.cy, ls.cz ) )
+			{
+				// An ancestor of the leaf, always opened.
+				
+				todo = ensure( todo, top + cell.sub.length );
+				
+				for( Cell s: cell.sub )
+					todo[top++] = s;
+			}
+			else
+			{
+				Point3 c  = ((BarycenterCellData) cell.data).center;
+				double dx = Math.max( 0, Math.max( ls.lox - c.x, c.x - ls.hix ) );
+				double dy = Math.max( 0, Math.max( ls.loy - c.y, c.y - ls.hiy ) );
+				double dz = Math.max( 0, Math.max( ls.loz - c.z, c.z - ls.hiz ) );
+				double d  = Math.sqrt( dx*dx + dy*dy + dz*dz );
+				
+				if( cell.space.diag < theta * d )
+				{
+					far = ensure( far, farCount + 1 );
+					far[farCount++] = cell;
+				}
+				else
+				{
+					todo = ensure( todo, top + cell.sub.length );
+					
+					for( Cell s: cell.sub )
+						todo[top++] = s;
+				}
+			}
+		}
+		
+		queue = todo;
+	}
+	
+	/**
+	 * Grow an array if needed.
+	 */
+	protected static <T> T[] ensure( T[] array, int size )
+	{
+		if( size > array.length )
+			return Arrays.copyOf( array, Math.max( size, array.length * 2 ) );
+		
+		return array;
+	}
+}
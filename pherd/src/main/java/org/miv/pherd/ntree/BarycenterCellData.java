@@ -1,7 +1,5 @@
 package org.miv.pherd.ntree;
 
-import java.util.*;
-
 import org.miv.pherd.geom.*;
 import org.miv.pherd.*;
 
@@ -12,11 +10,17 @@ import org.miv.pherd.*;
  * For leaf cells the barycenter is computed from the particles in the cell. For
  * non-lead cell, the barycenter represents the barycenters of each subcell.
  * </p>
+ * 
+ * <p>
+ * In incremental data mode the barycenter is computed from the sums of the
+ * positions and weights of the particles of the cell, maintained from their
+ * moves, and the cost of the recompute does not depend on the population.
+ * </p>
  *
  * @author Antoine Dutot
  * @since 2007
  */
-public class BarycenterCellData implements CellData
+public class BarycenterCellData implements RecyclableCellData, IncrementalCellData
 {
 // Attributes
 	
@@ -36,6 +40,27 @@ public class BarycenterCellData implements CellData
 	 */
 	public Cell cell;
 	
+	/**
+	 * Sum of the abscissas of the particles of the cell.
+	 * @see NTree#setIncrementalData(int)
+	 */
+	protected double sumX;
+	
+	/**
+	 * Sum of the ordinates of the particles of the cell.
+	 */
+	protected double sumY;
+	
+	/**
+	 * Sum of the depths of the particles of the cell.
+	 */
+	protected double sumZ;
+	
+	/**
+	 * Sum of the weights of the particles of the cell.
+	 */
+	protected double sumWeight;
+	
 	/**
 	 * Allows debugging.
 	 */
@@ -90,6 +115,27 @@ public class BarycenterCellData implements CellData
 	{
 		this.cell = cell;
 	}
+	
+	public void reset()
+	{
+		center.set( 0, 0, 0 );
+		
+		weight    = 0;
+		cell      = null;
+		marked    = null;
+		sumX      = 0;
+		sumY      = 0;
+		sumZ      = 0;
+		sumWeight = 0;
+	}
+	
+	public void accumulate( double x, double y, double z, double weight )
+	{
+		sumX      += x;
+		sumY      += y;
+		sumZ      += z;
+		sumWeight += weight;
+	}
 
 	public void recompute()
 	{
@@ -98,25 +144,52 @@ public class BarycenterCellData implements CellData
 		double z = 0;
 		double n = 0;
 		
-		weight = 0;
+		if( cell.tree.incremental && ! cell.tree.fullRecompute )
+		{
+			n = cell.population;
+			
+			if( n > 0 )
+			     center.set( sumX / n, sumY / n, sumZ / n );
+			else center.set( 0, 0, 0 );
+			
+			weight = sumWeight;
+			
+			for( NTreeListener listener: cell.tree.getListeners() )
+			{
+				listener.cellData( cell.getKey(), "barycenter", this );
+			}
+			
+			return;
+		}
+		
+		weight    = 0;
+		sumX      = 0;
+		sumY      = 0;
+		sumZ      = 0;
+		sumWeight = 0;
 		
 		if( cell.isLeaf() )
 		{
-			Iterator<? extends Particle> particles = cell.getParticles();
+			int count = cell.getParticleCount();
 			
-			while( particles.hasNext() )
+			for( int i=0; i<count; ++i )
 			{
-				Particle particle = particles.next();
+				Particle particle = cell.getParticle( i );
 				
-				x += particle.getPosition().x; 
-				y += particle.getPosition().y; 
-				z += particle.getPosition().z; 
+				x += particle.getX(); 
+				y += particle.getY(); 
+				z += particle.getZ(); 
 				
 				weight += particle.getWeight();
 				
 				n++;
 			}
 			
+			sumX      = x;
+			sumY      = y;
+			sumZ      = z;
+			sumWeight = weight;
+			
 			if( n > 0 )
 			{
 				x /= n;
@@ -151,6 +224,11 @@ public class BarycenterCellData implements CellData
 				
 				assert verif == totpop : "Discrepancy in population counts ?";
 				
+				sumX      = x;
+				sumY      = y;
+				sumZ      = z;
+				sumWeight = weight;
+				
 				x /= totpop;
 				y /= totpop;
 				z /= totpop;
@@ -159,9 +237,9 @@ public class BarycenterCellData implements CellData
 			center.set( x, y, z );
 		}
 		
-		for( NTreeListener listener: cell.tree.listeners )
+		for( NTreeListener listener: cell.tree.getListeners() )
 		{
-			listener.cellData( cell.getId(), "barycenter", this );
+			listener.cellData( cell.getKey(), "barycenter", this );
 		}
 	}
 }
\ No newline at end of file
@@ -26,9 +26,18 @@ public class Cell
 // Attributes
 
 	/**
-	 * The cell identifier.
+	 * The cell identifier, a String or a Long if the tree uses numeric
+	 * identifiers.
+	 * @see NTree#setNumericCellIds(boolean)
 	 */
-	protected String id;
+	protected Object id;
+	
+	/**
+	 * Locational code of this cell under the current root: a leading one bit
+	 * followed by the index of each cell from the root to this cell.
+	 * @see NTree#getCellSpace(long)
+	 */
+	protected long path = 1;
 	
 	/**
 	 * The tree containing me.
@@ -67,9 +76,16 @@ public class Cell
 	protected CellData data;
 	
 	/**
-	 * Particle bucket.
+	 * Particle bucket, only for leaf cells. Each particle knows its index in
+	 * this array (see {@link Particle#getCellIndex()}), the last particle
+	 * taking the place of a removed one.
+	 */
+	protected Particle[] particles;
+	
+	/**
+	 * Number of particles in the bucket.
 	 */
-	protected HashMap<Object,Particle> particles = new HashMap<Object,Particle>();
+	protected int particleCount;
 	
 	/**
 	 * The total particle population handled by this cell, counting its subcells
@@ -77,6 +93,19 @@ public class Cell
 	 */
 	protected int population;
 	
+	/**
+	 * True if the contents of this cell or one of its subcells changed since
+	 * the last {@link #recompute()}. When a cell is dirty, all its ancestors
+	 * are dirty too, therefore clean subtrees can be skipped entirely.
+	 */
+	protected boolean dirty = true;
+	
+	/**
+	 * The tree check count when this cell was created.
+	 * @see NTree#setMinCellLifetime(int)
+	 */
+	protected int birth;
+	
 // Constructors
 	
 	/**
@@ -86,10 +115,25 @@ public class Cell
 	 * @param data The cell data.
 	 */
 	public Cell( NTree tree, CellSpace space, String id, CellData data )
+	{
+		this( tree, space, id, 0, data );
+	}
+	
+	/**
+	 * Create a root cell in a given space with a given index. The index of a
+	 * root cell is used to build distinct identifiers for the cells created
+	 * under distinct roots when the tree grows.
+	 * @param tree The n-tree containing this root cell.
+	 * @param space The space occupied by this cell.
+	 * @param index The cell index.
+	 * @param data The cell data.
+	 */
+	protected Cell( NTree tree, CellSpace space, Object id, int index, CellData data )
 	{
 		this.id    = id;
 		this.tree  = tree;
 		this.depth = 0;
+		this.index = index;
 		this.space = space;
 		this.data  = data;
 		
@@ -97,7 +141,7 @@ public class Cell
 			data.setCell( this );
 		
 		for( NTreeListener listener: tree.listeners )
-			listener.cellAdded( id, "", space.lo, space.hi, depth, index );
+			listener.cellAdded( id, "", space.getLoAnchor(), space.getHiAnchor(), depth, index );
 	}
 	
 	/**
@@ -110,19 +154,7 @@ public class Cell
 	 */
 	protected Cell( Cell parent, int index, CellSpace space, CellData data )
 	{
-		this.tree   = parent.tree;
-		this.id     = tree.generateCellIdentifier( parent, index );
-		this.parent = parent;
-		this.depth  = parent.depth + 1;
-		this.index  = index;
-		this.space  = space;
-		this.data   = data;
-		
-		if( data != null )
-			data.setCell( this );
-	
-		for( NTreeListener listener: tree.listeners )
-			listener.cellAdded( id, parent.id, space.lo, space.hi, depth, index );
+		init( parent, index, space, data );
 	}
 	
 // Access
@@ -137,9 +169,21 @@ public class Cell
 	}
 	
 	/**
-	 * Cell identifier.
+	 * Cell identifier. If the tree uses numeric identifiers, this is the
+	 * decimal form of the cell code.
+	 * @see #getKey()
 	 */
 	public String getId()
+	{
+		return id.toString();
+	}
+	
+	/**
+	 * Cell identifier as given to the tree listeners, a String or a Long if
+	 * the tree uses numeric identifiers.
+	 * @see NTree#setNumericCellIds(boolean)
+	 */
+	public Object getKey()
 	{
 		return id;
 	}
@@ -243,11 +287,32 @@ public class Cell
 	public Iterator<? extends Particle> getParticles()
 	{
 		if( isLeaf() )
-			return particles.values().iterator(); 
+			return new ParticleIterator(); 
 	
 		return null;
 	}
 	
+	/**
+	 * Number of particles stored in this cell, zero if this is not a leaf.
+	 * @return The particle count.
+	 * @see #getParticle(int)
+	 */
+	public int getParticleCount()
+	{
+		return particleCount;
+	}
+	
+	/**
+	 * The i-th particle stored in this leaf cell. This allows to browse the
+	 * particles of a leaf without creating an iterator.
+	 * @param i The particle index, between zero and {@link #getParticleCount()}.
+	 * @return A particle.
+	 */
+	public Particle getParticle( int i )
+	{
+		return particles[i];
+	}
+	
 	/**
 	 * Does this cell contains the position of the given particle ?.
 	 * Be careful, this does not mean the cell contains the instance of the particle given, only
@@ -282,7 +347,19 @@ public class Cell
 	 */
 	public boolean hasParticle( Particle particle )
 	{
-		return( particles.get( particle.getId() ) != null );
+		int i = particle.getCellIndex();
+		
+		return( particle.getCell() == this && i >= 0 && i < particleCount && particles[i] == particle );
+	}
+	
+	/**
+	 * True if this cell or one of its subcells changed since the last call to
+	 * {@link #recompute()}.
+	 * @return True if this cell needs to be recomputed.
+	 */
+	public boolean isDirty()
+	{
+		return dirty;
 	}
 	
 // Commands
@@ -302,24 +379,12 @@ public class Cell
 		
 		population++;
 		
+		if( tree.incremental )
+			accumulate( particle.getX(), particle.getY(), particle.getZ(), particle.getWeight() );
+		
 		if( ! isLeaf() )
 		{
-			int k = 0;
-			
-			for( int i=0; i<sub.length; ++i )
-			{
-				if( sub[i].contains( particle ) )
-				{
-//					System.err.printf( "   Subcell %s %s contains particle %s %s%n", sub[i].toString(), sub[i].getSpace().toString(), particle.getId(), particle.getPosition().toString() );
-					
-					if( k == 0 )
-						sub[i].addParticle( particle );
-					
-					k++;
-				}
-			}
-			
-			assert k == 1 : "no subcell or too many subcells ("+k+") found to add particle "+particle.getId();
+			findSub( particle ).addParticle( particle );
 		}
 		else
 		{
@@ -327,64 +392,132 @@ public class Cell
 			// the tree like it would be needed. This will be done in a lazy fashion later
 			// in the checkTree() method.
 			
-			Particle old = particles.put( particle.getId(), particle );
-			particle.setCell( this );
+			store( particle );
+			markDirty();
+			
+			assert population == particleCount : "Discepancy in population count of "+id+" ? (population="+population+" p.size="+particleCount+")";
+		}
+	}
+	
+	/**
+	 * Remove a particle from the n-Tree. This method must be called on the
+	 * leaf cell of the particle. It will walk the whole parent branch to
+	 * adjust the population count. This method never try to fusion cells if
+	 * the particle population size is too small. This will be done at a later
+	 * time when the {@link #recompute()} method will be called.
+	 * @param particle The particle.
+	 */
+	public void removeParticle( Particle particle )
+	{
+		assert isLeaf() : "removing particle "+particle.getId()+" from non-leaf cell "+id;
+		
+		unstore( particle );
+		markDirty();
+		
+		for( Cell cell=this; cell!=null; cell=cell.parent )
+			cell.population--;
+		
+		if( tree.incremental )
+		{
+			double x = particle.getX(), y = particle.getY(), z = particle.getZ(), w = particle.getWeight();
 			
-			assert old == null : "Particle ID "+particle.getId()+" added in the cell already exists.";
-			assert population == particles.size() : "Discepancy in population count of "+id+" ? (population="+population+" p.size="+particles.size()+")";
+			for( Cell cell=this; cell!=null; cell=cell.parent )
+				cell.accumulate( -x, -y, -z, -w );
 		}
+		
+		assert population == particleCount : "discrepancy between the population "+population+" and set of particles "+particleCount;
 	}
 	
 	/**
-	 * Remove a particle from the n-Tree. This method must be called by the
-	 * particle itself. It will recurse on the whole parent branch to adjust
-	 * the population count. This method never try to fusion cells if the
-	 * particle population size is too small. This will be done at a later time
-	 * when the {@link #recompute()} method will be called.
+	 * Like {@link #removeParticle(Particle)} but search the particle by its
+	 * identifier in this leaf. If this cell is not a leaf only the population
+	 * count of the branch is adjusted.
 	 * @param id The particle identifier.
+	 * @deprecated Use {@link #removeParticle(Particle)}.
 	 */
+	@Deprecated
 	public void removeParticle( Object id )
 	{
-		population--;
-		
 		if( isLeaf() )
 		{
-			Particle p = particles.remove( id );
+			for( int i=0; i<particleCount; ++i )
+			{
+				if( particles[i].getId().equals( id ) )
+				{
+					removeParticle( particles[i] );
+					return;
+				}
+			}
 			
-			assert p != null : "particle "+id+" wrongly removed?";
-			assert population == particles.size() : "discrepancy between the population "+population+" and set of particles "+particles.size();
+			assert false : "particle "+id+" wrongly removed?";
+		}
+		else
+		{
+			for( Cell cell=this; cell!=null; cell=cell.parent )
+				cell.population--;
 			
-			p.setCell( null );
+			tree.fullRequested = true;
 		}
-		//else
-		//{
-		//	We do not need to do the fusion here. It will be done later in
-		//	the checkTree() method.
-		//}
-
-		if( ! isRoot() )
-			parent.removeParticle( this.id );
 	}
 	
 	/**
 	 * Message from a particle to indicate it moved. This will move the
 	 * particle from one cell to another if needed, but in this case, no
 	 * subdivision or fusion will occur until the {@link #recompute()}
-	 * method is called.
+	 * method is called. The particle is relocated from the lowest ancestor
+	 * that still contains it, not from the root, since most moves only cross
+	 * into a near cell. The displacement of the particle is not known, in
+	 * incremental data mode this makes the next check recompute all the
+	 * cells.
 	 * @param particle The particle that moved.
+	 * @see #particleMoved(Particle, double, double, double)
 	 */
 	public void particleMoved( Particle particle )
 	{
+		tree.fullRequested = true;
+		
+		particleMoved( particle, 0, 0, 0 );
+	}
+	
+	/**
+	 * Like {@link #particleMoved(Particle)}, knowing the displacement of the
+	 * particle.
+	 * @param particle The particle that moved.
+	 * @param dx The abscissa displacement.
+	 * @param dy The ordinate displacement.
+	 * @param dz The depth displacement.
+	 * @see NTree#setIncrementalData(int)
+	 */
+	public void particleMoved( Particle particle, double dx, double dy, double dz )
+	{
+		// The sums of the whole branch follow the displacement, if the
+		// particle changes of leaf the relocation then moves it between
+		// branches.
+		
+		if( tree.incremental )
+		{
+			for( Cell cell=this; cell!=null; cell=cell.parent )
+				cell.accumulate( dx, dy, dz, 0 );
+		}
+		
 		// If it moved out of me, reposition it.
 		
 		assert isLeaf() : "particle moved event in non-leaf cell "+id+" ?";
 		
+		markDirty();
+		
 		if( ! contains( particle ) )
 		{
-			if( tree.laMama.contains( particle ) )
+			tree.leafChanges++;
+			
+			Cell ancestor = parent;
+			
+			while( ancestor != null && ! ancestor.contains( particle ) )
+				ancestor = ancestor.parent;
+			
+			if( ancestor != null )
 			{
-				removeParticle( particle.getId() );
-				tree.laMama.addParticle( particle );
+				relocate( particle, ancestor );
 			}
 			else
 			{
@@ -393,19 +526,143 @@ public class Cell
 		}
 	}
 	
+	/**
+	 * Move a particle of this leaf cell to another leaf of the given
+	 * ancestor. Only the branch between this cell and the ancestor sees its
+	 * population change, the cells above the ancestor are not touched.
+	 * @param particle The particle to move, it must be in this cell.
+	 * @param ancestor An ancestor of this cell that contains the particle
+	 * position.
+	 */
+	protected void relocate( Particle particle, Cell ancestor )
+	{
+		assert hasParticle( particle ) : "particle "+particle.getId()+" relocated from a cell that does not hold it";
+		
+		unstore( particle );
+		
+		Cell cell = this;
+		
+		while( cell != ancestor )
+		{
+			cell.population--;
+			
+			if( tree.incremental )
+				cell.accumulate( -particle.getX(), -particle.getY(), -particle.getZ(), -particle.getWeight() );
+			
+			cell = cell.parent;
+		}
+		
+		// The ancestor population does not change, but addParticle()
+		// counts the particle again.
+		
+		ancestor.population--;
+		
+		if( tree.incremental )
+			ancestor.accumulate( -particle.getX(), -particle.getY(), -particle.getZ(), -particle.getWeight() );
+		
+		ancestor.addParticle( particle );
+	}
+	
+	/**
+	 * The weight of a particle of this leaf changed, update the data of the
+	 * branch in incremental data mode and mark it dirty.
+	 * @param particle The particle.
+	 * @param delta The new weight minus the old one.
+	 */
+	public void particleWeightChanged( Particle particle, double delta )
+	{
+		if( tree.incremental )
+		{
+			for( Cell cell=this; cell!=null; cell=cell.parent )
+				cell.accumulate( 0, 0, 0, delta );
+		}
+		
+		markDirty();
+	}
+	
+	/**
+	 * Give a change of the particles of this cell to its data, if it follows
+	 * them incrementally.
+	 */
+	protected void accumulate( double x, double y, double z, double weight )
+	{
+		if( data instanceof IncrementalCellData )
+			((IncrementalCellData)data).accumulate( x, y, z, weight );
+	}
+	
+	/**
+	 * Mark this cell and all its ancestors as dirty, so that the next
+	 * {@link #recompute()} checks them and recomputes their data. This is done
+	 * automatically when particles are added, removed or moved. Call it if
+	 * something else the cell data depends on changed (a particle weight for
+	 * example).
+	 */
+	public void markDirty()
+	{
+		Cell cell = this;
+		
+		while( cell != null && ! cell.dirty )
+		{
+			cell.dirty = true;
+			cell       = cell.parent;
+		}
+	}
+	
+	/**
+	 * Mark this cell and all its subcells dirty so that the next
+	 * {@link #recompute()} visits the whole subtree.
+	 */
+	public void invalidate()
+	{
+		dirty = true;
+		
+		if( sub != null )
+		{
+			for( Cell cell: sub )
+				cell.invalidate();
+		}
+	}
+	
 	/**
 	 * Recursively check cells to see if they need fusion or subdivision and
-	 * send a recompute signal to all cell data elements.
+	 * send a recompute signal to all cell data elements. Only the dirty cells
+	 * are visited, see {@link #markDirty()}. A cell splits when it holds more
+	 * than {@link NTree#getMaxParticlePerCell()} particles, and its sub-cells
+	 * are merged back when it holds at most
+	 * {@link NTree#getFusionThreshold()} particles and they are old enough.
+	 * A cell whose fusion is postponed because its sub-cells are too young
+	 * stays dirty, to be checked again.
 	 */
 	public void recompute()
 	{
+		if( ! dirty )
+			return;
+		
+		if( sub != null )
+		{
+			for( Cell cell: sub )
+				cell.recompute();
+		}
+		
+		recomputeCell();
+	}
+	
+	/**
+	 * The part of {@link #recompute()} that concerns only this cell, its
+	 * sub-cells being already recomputed: subdivision, fusion and data.
+	 * @see NTree#setParallelRecompute(java.util.concurrent.ExecutorService, int)
+	 */
+	protected void recomputeCell()
+	{
+		boolean pending = false;
+		
 		// Here we check for the tree subdivision.
 		
 		if( isLeaf() )
 		{
-			assert population == particles.size() : "Discepancy in population count of "+id+" ? (population="+population+" p.size="+particles.size()+")";
+			assert population == particleCount : "Discepancy in population count of "+id+" ? (population="+population+" p.size="+particleCount+")";
 			
-			if( depth < tree.depthmax &&  population > tree.pmax )
+			if( depth < tree.depthmax && depth < tree.codeDepthMax && population > tree.pmax )
 			{
 				mitosis();
 				
@@ -420,21 +677,79 @@ public class Cell
 			
 			for( Cell cell: sub )
 			{
-				cell.recompute();
-				
 				hasLeafs += cell.isLeaf() ? 1 : 0;
+				pending  |= cell.dirty;
 			}
 
 //			System.err.printf( "Check fusion of cell %s: pop=%d max=%d aboveLeafs=%b%n", id, population, tree.pmax, leaf );
 			
-			if( hasLeafs == divs && population <= tree.pmax )	// In fact the condition pop<pmax is
-			{													// sufficient, since no subcell can
-				fusion();										// be subdivided if there is this number
-			}													// of particles. Its just another
-		}														// invariant check.
+			// The sub-cells may not all be leafs if the fusion of one of them
+			// was postponed.
+			
+			if( hasLeafs == divs && population <= tree.fmax )
+			{
+				if( tree.checks - sub[0].birth >= tree.minLifetime )
+				     fusion();
+				else pending = true;
+			}
+		}
 		
 		if( data != null )
 			data.recompute();
+		
+		dirty = pending;
+	}
+	
+	/**
+	 * Make this cell a new sub-cell. This is used by the constructor and
+	 * when a cell is taken from the pool of the tree.
+	 * @param parent The parent cell.
+	 * @param index The cell index in its parent.
+	 * @param space The space occupied by this cell.
+	 * @param data The cell data.
+	 * @see NTree#setCellPoolSize(int)
+	 */
+	protected void init( Cell parent, int index, CellSpace space, CellData data )
+	{
+		this.tree   = parent.tree;
+		this.path   = ( parent.path << tree.codeBits ) | index;
+		this.id     = tree.numericIds ? (Object) tree.cellCode( path ) : tree.generateCellIdentifier( parent, index );
+		this.birth  = tree.checks;
+		this.parent = parent;
+		this.depth  = parent.depth + 1;
+		this.index  = index;
+		this.space  = space;
+		this.data   = data;
+		
+		if( data != null )
+			data.setCell( this );
+	
+		for( NTreeListener listener: tree.getListeners() )
+			listener.cellAdded( id, parent.id, space.getLoAnchor(), space.getHiAnchor(), depth, index );
+	}
+	
+	/**
+	 * Forget everything about this cell, which disappeared, so that it can be
+	 * reused by {@link #init(Cell, int, CellSpace, CellData)}. The bucket of
+	 * particles is kept. The data is kept only if it is recyclable.
+	 * @see NTree#setCellPoolSize(int)
+	 */
+	protected void clear()
+	{
+		if( particles != null )
+			Arrays.fill( particles, 0, particleCount, null );
+		
+		if( data instanceof RecyclableCellData )
+		     ((RecyclableCellData)data).reset();
+		else data = null;
+		
+		id            = null;
+		parent        = null;
+		sub           = null;
+		space         = null;
+		particleCount = 0;
+		population    = 0;
+		dirty         = true;
 	}
 	
 	/**
@@ -444,59 +759,78 @@ public class Cell
 	protected void mitosis()
 	{
 		assert sub == null : "sub should be null here";
-		assert particles.size() > tree.pmax : "no subdivision needed ?";
+		assert particleCount > tree.pmax : "no subdivision needed ?";
 		
 		int div = space.getDivisions();
 
 		sub = new Cell[div];
 		
 		for( int i=0; i<div; ++i )
+			sub[i] = tree.newCell( this, i, space.newSubCellSpace( i ) );
+		
+		// Place each particle in the sub-cell that contains it. The bucket
+		// is not needed anymore.
+		
+		for( int i=0; i<particleCount; ++i )
+			findSub( particles[i] ).addParticle( particles[i] );
+		
+		particles     = null;
+		particleCount = 0;
+	}
+	
+	/**
+	 * The sub-cell that contains the given particle position. The index is
+	 * computed by the cell space if possible, else each sub-cell is tested.
+	 * @param particle The particle, inside this non-leaf cell.
+	 * @return The sub-cell containing the particle.
+	 */
+	protected Cell findSub( Particle particle )
+	{
+		int i = space.getSubCellIndex( particle.getX(), particle.getY(), particle.getZ() );
+		
+		if( i >= 0 )
 		{
-			// Create the sub cell.
-
-			sub[i] = new Cell( this, i, space.newSubCellSpace( i ), data != null ? data.newCellData() : null );
-			
-			// Iterate over the remaining particles to place them
-			// inside the new cell if it must contain them.
-			
-			Iterator<? extends Particle> k = particles.values().iterator();
+			assert sub[i].contains( particle ) : "sub-cell "+sub[i].id+" computed for particle "+particle.getId()+" does not contain it";
+			return sub[i];
+		}
+		
+		Cell found = null;
+		int  k     = 0;
 		
-			while( k.hasNext() )
+		for( i=0; i<sub.length; ++i )
+		{
+			if( sub[i].contains( particle ) )
 			{
-				Particle p = k.next();
-			
-				if( sub[i].contains( p ) )
-				{
-					k.remove();
-					sub[i].addParticle( p );
-				}
+				if( k == 0 )
+					found = sub[i];
+				
+				k++;
 			}
-			
-			// Once this process is finished, it should not remain any particle
-			// that is not placed in a sub-cell.
 		}
 		
-		assert particles.size() == 0 : "there are "+particles.size()+" unclassified particles after mitosis ?";	
+		assert k == 1 : "no subcell or too many subcells ("+k+") found to add particle "+particle.getId();
+		
+		return found;
 	}
 	
 	protected void fusion()
 	{
-		assert particles.size() == 0;
+		assert particleCount == 0;
 		
 		for( Cell cell: sub )
 		{
 			assert cell.isLeaf() : "Fusion of non leaf-subcells !!";
 
-			particles.putAll( cell.particles );
+			for( int i=0; i<cell.particleCount; ++i )
+				store( cell.particles[i] );
 			
-			for( NTreeListener listener: tree.listeners )
+			for( NTreeListener listener: tree.getListeners() )
 				listener.cellRemoved( cell.id );
+			
+			tree.releaseCell( cell );
 		}
 
 		sub = null;
-		
-		for( Particle particle: particles.values() )
-			particle.setCell( this );
 
 //		System.err.printf( "cell %s[%d] se fusionne (pop = %d)%n", toString(), depth, population );
 	}
@@ -509,12 +843,12 @@ public class Cell
 	 */
 	protected void describe( NTreeListener listener )
 	{
-		String parentId = "";
+		Object parentId = "";
 		
 		if( parent != null )
 			parentId = parent.id;
 		
-		listener.cellAdded( id, parentId, space.lo, space.hi, depth, index );
+		listener.cellAdded( id, parentId, space.getLoAnchor(), space.getHiAnchor(), depth, index );
 		
 		if( sub != null )
 		{
@@ -523,6 +857,191 @@ public class Cell
 		}
 	}
 	
+	/**
+	 * Tell the listeners this cell changed of place in the tree, with a
+	 * "moved" message whose data is a {@link CellMove}. Its sub-cells moved
+	 * with it and are not told.
+	 * @param oldId The identifier of this cell known by the listeners.
+	 */
+	protected void fireMoved( Object oldId )
+	{
+		if( tree.listeners.isEmpty() )
+			return;
+		
+		CellMove move = new CellMove( id, parent != null ? parent.id : "", depth, index );
+		
+		for( NTreeListener listener: tree.listeners )
+			listener.cellData( oldId, "moved", move );
+	}
+	
+	/**
+	 * Make this root cell the sub-cell of a new, larger, root cell. The
+	 * other sub-cells of the new root are created empty. The subtree of this
+	 * cell is kept as is, with the same identifiers, only the depths of its
+	 * cells change. The listeners see the new root added, this cell moved
+	 * under it (see {@link #fireMoved(Object)}), and the other sub-cells of
+	 * the new root added.
+	 * @param bigger The new root space, one of its sub-cell spaces must be
+	 * the space of this cell, see {@link CellSpace#newSuperCellSpace(double, double, double)}.
+	 * @param rootId The new root identifier.
+	 * @param rootIndex The new root index.
+	 * @return The new root cell.
+	 */
+	protected Cell grow( CellSpace bigger, Object rootId, int rootIndex )
+	{
+		if( parent != null )
+			throw new RuntimeException( "can only grow the root cell" );
+		
+		int i = bigger.getSubCellIndex( space.cx, space.cy, space.cz );
+		
+		if( i < 0 )
+		{
+			for( i=0; i<bigger.getDivisions(); ++i )
+			{
+				if( bigger.newSubCellSpace( i ).contains( space.cx, space.cy, space.cz ) )
+					break;
+			}
+		}
+		
+		Cell root = new Cell( tree, bigger, rootId, rootIndex, data != null ? data.newCellData() : null );
+		int  div  = bigger.getDivisions();
+		
+		root.population = population;
+		root.sub        = new Cell[div];
+		parent          = root;
+		index           = i;
+		
+		addDepth( 1 );
+		setPath( ( root.path << tree.codeBits ) | i );
+		
+		for( int k=0; k<div; ++k )
+		{
+			if( k == i )
+			{
+				root.sub[k] = this;
+				fireMoved( id );
+			}
+			else
+			{
+				root.sub[k] = tree.newCell( root, k, bigger.newSubCellSpace( k ) );
+			}
+		}
+		
+		return root;
+	}
+	
+	/**
+	 * Make this cell the root of the tree. Its ancestors and the sub-cells of
+	 * its ancestors that are not in its branch are removed, they must be
+	 * empty. The subtree of this cell is kept as is, with the same
+	 * identifiers, only the depths of its cells change. The listeners see
+	 * this cell moved as root (see {@link #fireMoved(Object)}), then the
+	 * removed cells removed.
+	 * @param rootIndex The new index of this cell.
+	 */
+	protected void becomeRoot( int rootIndex )
+	{
+		Cell child = this;
+		Cell cell  = parent;
+		
+		parent = null;
+		index  = rootIndex;
+		
+		addDepth( -depth );
+		setPath( 1 );
+		fireMoved( id );
+		
+		while( cell != null )
+		{
+			for( Cell other: cell.sub )
+			{
+				if( other != child )
+					other.removeSubtree();
+			}
+			
+			for( NTreeListener listener: tree.listeners )
+				listener.cellRemoved( cell.id );
+			
+			child = cell;
+			cell  = cell.parent;
+			
+			tree.releaseCell( child );
+		}
+	}
+	
+	/**
+	 * Tell the listeners this empty cell and its sub-cells disappeared,
+	 * sub-cells first.
+	 */
+	protected void removeSubtree()
+	{
+		assert population == 0 : "removing cell "+id+" that is not empty";
+		
+		if( sub != null )
+		{
+			for( Cell cell: sub )
+				cell.removeSubtree();
+		}
+		
+		for( NTreeListener listener: tree.listeners )
+			listener.cellRemoved( id );
+		
+		tree.releaseCell( this );
+	}
+	
+	/**
+	 * The only sub-cell holding particles, if all the particles of this cell
+	 * are in the same sub-cell.
+	 * @return The populated sub-cell, or null if this cell is a leaf, is
+	 * empty or has several populated sub-cells.
+	 */
+	protected Cell getSinglePopulatedSub()
+	{
+		if( sub == null || population == 0 )
+			return null;
+		
+		for( Cell cell: sub )
+		{
+			if( cell.population != 0 )
+				return( cell.population == population ? cell : null );
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Change the locational code of this cell and compute the one of all its
+	 * sub-cells accordingly. The identifiers do not change, with numeric
+	 * identifiers they stay the codes of the cells under the root of the
+	 * generation they were given in.
+	 * @param newPath The new code.
+	 */
+	protected void setPath( long newPath )
+	{
+		path = newPath;
+		
+		if( sub != null )
+		{
+			for( int i=0; i<sub.length; ++i )
+				sub[i].setPath( ( path << tree.codeBits ) | i );
+		}
+	}
+	
+	/**
+	 * Change the depth of this cell and all its sub-cells.
+	 * @param delta The value to add to the depth.
+	 */
+	protected void addDepth( int delta )
+	{
+		depth += delta;
+		
+		if( sub != null )
+		{
+			for( Cell cell: sub )
+				cell.addDepth( delta );
+		}
+	}
+	
 	/**
 	 * Resize the cell space so that 
 	 * @param min The lowest new space point.
@@ -552,24 +1071,36 @@ public class Cell
 		// 2. We remove all particles from the particle box.
 		
 		ArrayList<Particle> particles = new ArrayList<Particle>();
+		ArrayList<Particle> sleeping  = new ArrayList<Particle>();
 		Iterator<Object>    k         = tree.pbox.getParticleIdIterator();
 		int                 oldPop    = population;
 		
 		while( k.hasNext() )
 		{
-			Object id = k.next();
-			particles.add( tree.pbox.getParticle( id ) );
+			Object   id       = k.next();
+			Particle particle = tree.pbox.getParticle( id );
+			
+			particles.add( particle );
+			
+			if( particle.isAsleep() )
+				sleeping.add( particle );
 		}
 		
 		tree.pbox.removeAllParticles();
 
-		// 3. Recompute the tree to remove all children by fusion. We do this
-		//    to trigger removal events.
+		// 3. Remove all the children, triggering removal events. This is not
+		//    done by fusion since the fusion of young cells may be postponed.
 		
 		assert population == 0 : "after removal of all particles the root cell still contains "+population+" particles...";
-		assert this.particles.size() == 0 : "after removal of all particles the root cell still contains "+this.particles.size()+" particles...";
+		assert particleCount == 0 : "after removal of all particles the root cell still contains "+particleCount+" particles...";
 		
-		recompute();
+		if( sub != null )
+		{
+			for( Cell cell: sub )
+				cell.removeSubtree();
+			
+			sub = null;
+		}
 		
 		for( NTreeListener listener: tree.listeners )
 			listener.cellRemoved( id );
@@ -580,14 +1111,31 @@ public class Cell
 		
 		space.resize( min, max );
 		
+		// Numeric identifiers are relative to the root space, a new root
+		// generation starts.
+		
+		if( tree.numericIds )
+		{
+			tree.generation++;
+			tree.setRootSpace( space );
+			
+			id    = tree.newRootId();
+			index = -tree.generation;
+		}
+		
+		path = 1;
+		
 		for( NTreeListener listener: tree.listeners )
-			listener.cellAdded( id, "", space.lo, space.hi, depth, index );
+			listener.cellAdded( id, "", space.getLoAnchor(), space.getHiAnchor(), depth, index );
 		
 		// 5. Re-insert all particles in this root cell.
 
 		for( Particle particle: particles )
 			tree.pbox.addParticle( particle );
 		
+		for( Particle particle: sleeping )
+			particle.sleep();
+		
 		// 6. Recompute the tree to subdivide it. We use recompute to trigger
 		//    mitosis events.
 		
@@ -597,6 +1145,42 @@ public class Cell
 		assert population == oldPop                       : "after resize new population size != old ("+population+" != "+oldPop+")";
 	}
 	
+	/**
+	 * Append a particle to the bucket of this leaf and make this cell its
+	 * container. This does not change the population.
+	 * @param particle The particle to store.
+	 */
+	protected void store( Particle particle )
+	{
+		if( particles == null )
+			particles = new Particle[tree.pmax+1];
+		else if( particleCount == particles.length )
+			particles = Arrays.copyOf( particles, particleCount * 2 );
+		
+		particle.setCell( this, particleCount );
+		particles[particleCount++] = particle;
+	}
+	
+	/**
+	 * Remove a particle from the bucket of this leaf, the last particle
+	 * taking its place. This does not change the population.
+	 * @param particle The particle to remove.
+	 */
+	protected void unstore( Particle particle )
+	{
+		int i = particle.getCellIndex();
+		
+		assert particles[i] == particle : "particle "+particle.getId()+" not at its index in cell "+id;
+		
+		Particle last = particles[--particleCount];
+		
+		particles[i]             = last;
+		particles[particleCount] = null;
+		
+		last.setCell( this, i );
+		particle.setCell( null, -1 );
+	}
+	
 	@Override
 	public String toString()
 	{
@@ -639,4 +1223,30 @@ public class Cell
 		
 		return true;
 	}
+	
+	/**
+	 * Iterator on the bucket of a leaf.
+	 */
+	protected class ParticleIterator implements Iterator<Particle>
+	{
+		protected int i = 0;
+		
+		public boolean hasNext()
+		{
+			return( i < particleCount );
+		}
+		
+		public Particle next()
+		{
+			if( i >= particleCount )
+				throw new NoSuchElementException();
+			
+			return particles[i++];
+		}
+		
+		public void remove()
+		{
+			throw new UnsupportedOperationException( "cannot remove a particle from a cell iterator" );
+		}
+	}
 }
\ No newline at end of file
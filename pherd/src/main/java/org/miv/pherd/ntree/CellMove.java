@@ -0,0 +1,101 @@
+package org.miv.pherd.ntree;
+
+import java.io.Serializable;
+
+/**
+ * Data of the "moved" message sent to the n-tree listeners when an existing
+ * cell changes of place in the tree, when the root cell grows or shrinks.
+ *
+ * <p>
+ * The cell keeps its space and its sub-cells, only its parent, its depth and
+ * its index change, and the depths of all its sub-cells change by the same
+ * amount. A parent identifier of "" means the cell becomes the root. The
+ * new identifier is the identifier of the cell from now on, it is the same
+ * as the previous one unless the tree reissued it. This is sent once for the
+ * cell instead of removing and adding again all the cells of its subtree. A
+ * move is read-only, and therefore can be passed between threads.
+ * </p>
+ *
+ * @see NTreeListener#cellData(Object, String, Object)
+ */
+public class CellMove implements Serializable
+{
+	private static final long serialVersionUID = 2480923547610948735L;
+
+// Attributes
+	
+	/**
+	 * The identifier of the cell after the move.
+	 */
+	protected Object id;
+	
+	/**
+	 * The new parent cell identifier, "" for the root.
+	 */
+	protected Object parentId;
+	
+	/**
+	 * The new depth of the cell.
+	 */
+	protected int depth;
+	
+	/**
+	 * The new index of the cell in its parent.
+	 */
+	protected int index;
+
+// Constructors
+	
+	public CellMove( Object id, Object parentId, int depth, int index )
+	{
+		this.id       = id;
+		this.parentId = parentId;
+		this.depth    = depth;
+		this.index    = index;
+	}
+
+// Access
+	
+	/**
+	 * The identifier of the cell after the move.
+	 * @return A String or a Long.
+	 */
+	public Object getId()
+	{
+		return id;
+	}
+	
+	/**
+	 * The new parent cell identifier.
+	 * @return The identifier, or "" if the cell is now the root.
+	 */
+	public Object getParentId()
+	{
+		return parentId;
+	}
+	
+	/**
+	 * The new depth of the cell, the depths of its sub-cells change by the
+	 * same amount.
+	 * @return The depth.
+	 */
+	public int getDepth()
+	{
+		return depth;
+	}
+	
+	/**
+	 * The new index of the cell in its parent.
+	 * @return The index.
+	 */
+	public int getIndex()
+	{
+		return index;
+	}
+	
+	@Override
+	public String toString()
+	{
+		return String.format( "[move to %s, parent %s, depth %d, index %d]", id, parentId, depth, index );
+	}
+}
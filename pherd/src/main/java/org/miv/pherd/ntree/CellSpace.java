@@ -21,19 +21,38 @@ import org.miv.pherd.geom.*;
  * @author Antoine Dutot
  * @since 2007
  */
-public abstract class CellSpace
+public abstract class CellSpace implements Cloneable
 {
 // Attribute
 	
 	/**
-	 * The bounding box low point.
+	 * The bounding box low point. This is only created when asked for, the
+	 * bounds are stored in {@link #lox}, {@link #loy}, {@link #loz}.
+	 * @see #getLoAnchor()
 	 */
 	protected Anchor lo;
 	
 	/**
-	 * The bounding box hi point.
+	 * The bounding box hi point. This is only created when asked for, the
+	 * bounds are stored in {@link #hix}, {@link #hiy}, {@link #hiz}.
+	 * @see #getHiAnchor()
 	 */
 	protected Anchor hi;
+	
+	/**
+	 * The bounding box low point coordinates.
+	 */
+	protected double lox, loy, loz;
+	
+	/**
+	 * The bounding box hi point coordinates.
+	 */
+	protected double hix, hiy, hiz;
+	
+	/**
+	 * The bounding box centre, where the space is split in sub-cells.
+	 */
+	protected double cx, cy, cz;
 
 	/**
 	 * Largest diagonal length.
@@ -44,10 +63,19 @@ public abstract class CellSpace
 
 	public CellSpace( Anchor lo, Anchor hi )
 	{
+		this( lo.x, lo.y, lo.z, hi.x, hi.y, hi.z );
+		
 		this.lo = lo;
 		this.hi = hi;
-		
-		diag = lo.distance( hi );
+	}
+	
+	/**
+	 * New cell space given the coordinates of its low and hi points. The
+	 * anchors are created only if needed.
+	 */
+	public CellSpace( double lox, double loy, double loz, double hix, double hiy, double hiz )
+	{
+		setBounds( lox, loy, loz, hix, hiy, hiz );
 	}
 	
 // Access
@@ -59,6 +87,9 @@ public abstract class CellSpace
 	 */
 	public Anchor getLoAnchor()
 	{
+		if( lo == null )
+			lo = new Anchor( lox, loy, loz );
+		
 		return lo;
 	}
 	
@@ -69,6 +100,9 @@ public abstract class CellSpace
 	 */
 	public Anchor getHiAnchor()
 	{
+		if( hi == null )
+			hi = new Anchor( hix, hiy, hiz );
+		
 		return hi;
 	}
 	
@@ -87,6 +121,56 @@ public abstract class CellSpace
 	 */
 	public abstract CellSpace newSubCellSpace( int i );
 	
+	/**
+	 * Create a space twice as large as this one, of which this space is one
+	 * of the sub-cell spaces, and that extends in the direction of the given
+	 * position. The centre of the new space is exactly on the boundary of
+	 * this space, so that the sub-cell spaces of the new space match this
+	 * one. This is used to grow the root of a tree without rebuilding it.
+	 * The default implementation returns null, meaning this space cannot
+	 * grow.
+	 * @param x The abscissa to grow toward.
+	 * @param y The ordinate to grow toward.
+	 * @param z The depth to grow toward.
+	 * @return A new cell space or null.
+	 */
+	public CellSpace newSuperCellSpace( double x, double y, double z )
+	{
+		return null;
+	}
+	
+	/**
+	 * Create a space of the same kind with the same bounds and centre, that
+	 * does not change when this one is resized.
+	 * @return A new cell space.
+	 */
+	public CellSpace copy()
+	{
+		try
+		{
+			return (CellSpace) clone();
+		}
+		catch( CloneNotSupportedException e )
+		{
+			throw new RuntimeException( "cannot copy cell space "+this, e );
+		}
+	}
+	
+	/**
+	 * Index of the sub-cell space that contains the given position, computed
+	 * from the centre of this space. The position must be inside this space.
+	 * The default implementation returns -1, meaning the index is unknown
+	 * and each sub-cell must be tested with {@link #contains(double, double, double)}.
+	 * @param x The abscissa.
+	 * @param y The ordinate.
+	 * @param z The depth.
+	 * @return The sub-cell index, between zero and {@link #getDivisions()}, or -1.
+	 */
+	public int getSubCellIndex( double x, double y, double z )
+	{
+		return -1;
+	}
+	
 	/**
 	 * Does this space contains the given particle?.
 	 * @param particle The particle to classify.
@@ -94,9 +178,7 @@ public abstract class CellSpace
 	 */
 	public boolean contains( Particle particle )
 	{
-		Point3 ppos = particle.getPosition();
-
-		return contains( ppos.x, ppos.y, ppos.z );
+		return contains( particle.getX(), particle.getY(), particle.getZ() );
 	}
 	
 	/**
@@ -108,20 +190,55 @@ public abstract class CellSpace
 	 */
 	public boolean contains( double x, double y, double z )
 	{
-		if( x < lo.x || x >= hi.x ) return false;
-		if( y < lo.y || y >= hi.y ) return false;
-		if( z < lo.z || z >= hi.z ) return false;/*{ System.err.printf("false on Z (%f not in [%f..%f] )!%n",z,lo.z,hi.z); return false; }*/
+		if( x < lox || x >= hix ) return false;
+		if( y < loy || y >= hiy ) return false;
+		if( z < loz || z >= hiz ) return false;
 	
 		return true;		
 	}
 
+	/**
+	 * Squared distance between the given position and the nearest point of
+	 * this space. This is zero if the position is inside the space.
+	 * @param x The abscissa.
+	 * @param y The ordinate.
+	 * @param z The depth.
+	 * @return The squared distance.
+	 */
+	public double squaredDistanceFrom( double x, double y, double z )
+	{
+		double dx = Math.max( 0, Math.max( lox - x, x - hix ) );
+		double dy = Math.max( 0, Math.max( loy - y, y - hiy ) );
+		double dz = Math.max( 0, Math.max( loz - z, z - hiz ) );
+		
+		return dx*dx + dy*dy + dz*dz;
+	}
+
+	/**
+	 * Does this space intersect the given box?. The box bounds are included.
+	 * @return True if some positions of this space are in the box.
+	 */
+	public boolean intersects( double lx, double ly, double lz, double hx, double hy, double hz )
+	{
+		return( lox <= hx && hix >= lx && loy <= hy && hiy >= ly && loz <= hz && hiz >= lz );
+	}
+	
+	/**
+	 * Is this space inside the given box?. The box bounds are included.
+	 * @return True if all the positions of this space are in the box.
+	 */
+	public boolean isInside( double lx, double ly, double lz, double hx, double hy, double hz )
+	{
+		return( lox >= lx && hix <= hx && loy >= ly && hiy <= hy && loz >= lz && hiz <= hz );
+	}
+
 	public boolean contains2( double x, double y, double z )
 	{
-System.err.printf( "contains (%f,%f,%f)  %s %s%n", x, y, z, lo, hi );
+System.err.printf( "contains (%f,%f,%f)  %s%n", x, y, z, this );
 		
-		if( x < lo.x || x >= hi.x ) return false;
-		if( y < lo.y || y >= hi.y ) return false;
-		if( z < lo.z || z >= hi.z ) return false;
+		if( x < lox || x >= hix ) return false;
+		if( y < loy || y >= hiy ) return false;
+		if( z < loz || z >= hiz ) return false;
 	
 		return true;		
 	}
@@ -145,9 +262,28 @@ System.err.printf( "contains (%f,%f,%f)  %s %s%n", x, y, z, lo, hi );
 	 */
 	public void resize( Point3 min, Point3 max )
 	{
-		lo = new Anchor( min.x, min.y, min.z );
-		hi = new Anchor( max.x, max.y, max.z );
+		setBounds( min.x, min.y, min.z, max.x, max.y, max.z );
+	}
+	
+	/**
+	 * Set the bounding box and compute its centre and diagonal. The anchors
+	 * will be recreated when asked for.
+	 */
+	protected void setBounds( double lox, double loy, double loz, double hix, double hiy, double hiz )
+	{
+		this.lox = lox; this.loy = loy; this.loz = loz;
+		this.hix = hix; this.hiy = hiy; this.hiz = hiz;
+		
+		cx = lox + ( hix - lox ) / 2;
+		cy = loy + ( hiy - loy ) / 2;
+		cz = loz + ( hiz - loz ) / 2;
+		
+		double dx = hix - lox;
+		double dy = hiy - loy;
+		double dz = hiz - loz;
 		
-		diag = lo.distance( hi );
+		diag = Math.sqrt( dx*dx + dy*dy + dz*dz );
+		lo   = null;
+		hi   = null;
 	}
 }
\ No newline at end of file
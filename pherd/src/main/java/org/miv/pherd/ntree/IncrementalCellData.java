@@ -0,0 +1,28 @@
+package org.miv.pherd.ntree;
+
+/**
+ * Cell data that can follow the particles of its cell from their moves,
+ * without visiting them.
+ * 
+ * <p>
+ * When the n-tree is in incremental data mode (see
+ * {@link NTree#setIncrementalData(int)}), each cell whose population changes
+ * receives the position and weight of the particle that entered it, or
+ * their opposite for a particle that left it, and each cell a particle moved
+ * in receives the displacement of the particle. The data is then expected
+ * to recompute itself from these sums, and to recompute itself from its
+ * particles or sub-cells only when {@link NTree#isFullRecompute()} is true.
+ * </p>
+ */
+public interface IncrementalCellData extends CellData
+{
+	/**
+	 * Add values to the sums of the particle positions and weights of the
+	 * cell.
+	 * @param x The abscissa to add.
+	 * @param y The ordinate to add.
+	 * @param z The depth to add.
+	 * @param weight The weight to add.
+	 */
+	void accumulate( double x, double y, double z, double weight );
+}
@@ -0,0 +1,35 @@
+package org.miv.pherd.ntree;
+
+import org.miv.pherd.*;
+
+/**
+ * Interaction computed by a Barnes-Hut traversal of a {@link LinearNTree}.
+ *
+ * <p>
+ * This is the counterpart of {@link BarnesHutKernel} for a tree whose nodes
+ * are not objects: the far field interaction receives the barycenter of the
+ * node as values.
+ * </p>
+ *
+ * @see LinearNTree#barnesHut(Particle, double, LinearBarnesHutKernel)
+ */
+public interface LinearBarnesHutKernel
+{
+	/**
+	 * Near field interaction between two particles.
+	 * @param target The particle that receives the interaction.
+	 * @param source The particle that exerts the interaction, never the target.
+	 */
+	void particleInteraction( Particle target, Particle source );
+	
+	/**
+	 * Far field interaction between a particle and a whole node.
+	 * @param target The particle that receives the interaction.
+	 * @param x The node barycenter abscissa.
+	 * @param y The node barycenter ordinate.
+	 * @param z The node barycenter depth.
+	 * @param weight The sum of the weights of the particles of the node.
+	 * @param population The number of particles of the node.
+	 */
+	void nodeInteraction( Particle target, double x, double y, double z, double weight, int population );
+}
@@ -0,0 +1,1812 @@
+package org.miv.pherd.ntree;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.miv.pherd.*;
+import org.miv.pherd.geom.*;
+
+/**
+ * n-Tree whose nodes are stored in arrays of primitive values.
+ *
+ * <p>
+ * This is an alternative to {@link NTree} for trees with millions of cells. A
+ * node is not an object but an index in parallel arrays giving its first
+ * sub-node, its population, its lowest corner, its depth, its barycenter and
+ * its range of particles. The sub-nodes of a node are contiguous, and the
+ * particles are ordered so that the particles of each node, leaf or not, are a
+ * contiguous range. A node costs less than a hundred bytes, and the queries
+ * read the positions from arrays instead of following references.
+ * </p>
+ *
+ * <p>
+ * The tree is not maintained incrementally, {@link #build(ParticleBox)}
+ * rebuilds it from the current particle positions, usually after each
+ * {@link ParticleBox#step()} (see {@link ParticleBox.TreeMode#REBUILD}). The
+ * particles are sorted by Morton code with a radix sort, that can be split
+ * between several threads, then the nodes are found by binary search in the
+ * sorted codes, and the barycenters are computed in one backward pass on the
+ * nodes. The root starts as the given universe and doubles as many times as
+ * needed to contain all the particles. The barycenter of each node is
+ * computed as the {@link BarycenterCellData} of a {@link NTree} would do.
+ * </p>
+ *
+ * <p>
+ * The listeners receive the same events as with a {@link NTree}: the build
+ * is compared with the previous one and only the nodes that appeared or
+ * disappeared are signalled, parents before children for additions and
+ * children before parents for removals. When the root grows, all the nodes
+ * are removed and added again. The node identifiers are locational codes, as
+ * {@link Long} values: a leading one bit followed by the index of each
+ * sub-node on the path from the root. The sub-nodes are numbered in Morton
+ * order, bit 0 for the abscissa, bit 1 for the ordinate and bit 2 for the
+ * depth, but the index given to {@link NTreeListener#cellAdded(Object, Object, Anchor, Anchor, int, int)}
+ * is the one the {@link CellSpace} of the universe uses. Each build also
+ * sends a "barycenter" data message, with a {@link BarycenterCellData} like
+ * a {@link NTree}, for each node that appeared or whose barycenter or weight
+ * changed. This data object is reused by the next builds.
+ * </p>
+ *
+ * <p>
+ * The queries can be run from several threads as long as no build is in
+ * progress.
+ * </p>
+ *
+ * @see NTree
+ */
+public class LinearNTree
+{
+// Constant
+	
+	/**
+	 * Number of bits sorted at each pass of the radix sort.
+	 */
+	protected static final int RADIX_BITS = 8;
+	
+	/**
+	 * Number of distinct digits of a pass of the radix sort.
+	 */
+	protected static final int RADIX = 1 << RADIX_BITS;
+
+// Attributes
+	
+	/**
+	 * Maximum number of particles by leaf.
+	 */
+	protected int pmax;
+	
+	/**
+	 * Number of sub-nodes of a node, 8 or 4.
+	 */
+	protected int divisions;
+	
+	/**
+	 * Number of bits of a sub-node index in the locational codes.
+	 */
+	protected int codeBits;
+	
+	/**
+	 * False for a quadtree, whose nodes ignore the depth axis.
+	 */
+	protected boolean depthAxis;
+	
+	/**
+	 * Maximum depth of a node.
+	 */
+	protected int depthMax;
+	
+	/**
+	 * Index in the cell space of the universe of each Morton sub-node index.
+	 */
+	protected int[] cellIndex;
+	
+	/**
+	 * Root bounds.
+	 */
+	protected double rlox, rloy, rloz, rhix, rhiy, rhiz;
+	
+	/**
+	 * Size of the nodes along each axis, and diagonal, by depth.
+	 */
+	protected double[] sx, sy, sz, diag;
+	
+	/**
+	 * Number of nodes.
+	 */
+	protected int nodeCount;
+	
+	/**
+	 * Index of the first sub-node of each node, -1 for leaves.
+	 */
+	protected int[] child = new int[64];
+	
+	/**
+	 * Index of the parent of each node, -1 for the root.
+	 */
+	protected int[] parent = new int[64];
+	
+	/**
+	 * Index of the first particle of each node in {@link #order}.
+	 */
+	protected int[] start = new int[64];
+	
+	/**
+	 * Number of particles of each node.
+	 */
+	protected int[] count = new int[64];
+	
+	/**
+	 * Depth of each node.
+	 */
+	protected byte[] depth = new byte[64];
+	
+	/**
+	 * Locational code of each node.
+	 */
+	protected long[] code = new long[64];
+	
+	/**
+	 * Lowest corner of each node.
+	 */
+	protected double[] lox = new double[64], loy = new double[64], loz = new double[64];
+	
+	/**
+	 * Barycenter of each node.
+	 */
+	protected double[] bx = new double[64], by = new double[64], bz = new double[64];
+	
+	/**
+	 * Sum of the particle weights of each node.
+	 */
+	protected double[] weight = new double[64];
+	
+	/**
+	 * Number of nodes of the previous build.
+	 */
+	protected int prevCount;
+	
+	/**
+	 * First sub-node of each node of the previous build.
+	 */
+	protected int[] prevChild = new int[64];
+	
+	/**
+	 * Locational code of each node of the previous build.
+	 */
+	protected long[] prevCode = new long[64];
+	
+	/**
+	 * Barycenter of each node of the previous build.
+	 */
+	protected double[] prevBx = new double[64], prevBy = new double[64], prevBz = new double[64];
+	
+	/**
+	 * Sum of the particle weights of each node of the previous build.
+	 */
+	protected double[] prevWeight = new double[64];
+	
+	/**
+	 * Data sent to the listeners with the barycenter of each node, by node
+	 * index, created when first needed.
+	 */
+	protected BarycenterCellData[] nodeData = new BarycenterCellData[64];
+	
+	/**
+	 * Number of particles.
+	 */
+	protected int particleCount;
+	
+	/**
+	 * The particles, ordered by node.
+	 */
+	protected Particle[] order = new Particle[16];
+	
+	/**
+	 * Positions of the particles, in the same order.
+	 */
+	protected double[] px = new double[16], py = new double[16], pz = new double[16];
+	
+	/**
+	 * Morton code of each particle, in the same order once sorted.
+	 */
+	protected long[] keys = new long[16];
+	
+	/**
+	 * Index of each particle in the array given to the build, in the same
+	 * order once sorted.
+	 */
+	protected int[] perm = new int[16];
+	
+	/**
+	 * Buffers used to sort the particles.
+	 */
+	protected long[] keys2 = new long[16];
+	protected int[] perm2 = new int[16];
+	protected Particle[] tmp = new Particle[16];
+	protected double[] tx = new double[16], ty = new double[16], tz = new double[16];
+	
+	/**
+	 * Number of particles whose leaf changed at the last build.
+	 */
+	protected int leafChanges;
+	
+	/**
+	 * The thread pool used to sort the particles, or null if the build is
+	 * sequential.
+	 */
+	protected ExecutorService pool;
+	
+	/**
+	 * Maximum number of tasks the sort is split into.
+	 */
+	protected int tasks = 1;
+	
+	/**
+	 * Under this number of particles per task, the sort is sequential.
+	 */
+	protected int minParticlesPerTask = 4096;
+	
+	/**
+	 * The sort tasks, reused at each build.
+	 */
+	protected ArrayList<SortTask> sortTasks = new ArrayList<SortTask>();
+	
+	/**
+	 * Number of sort tasks of the current build.
+	 */
+	protected int taskCount;
+	
+	/**
+	 * Set as soon as the root changed since the previous build.
+	 */
+	protected boolean rootChanged = true;
+	
+	/**
+	 * Set of listeners.
+	 */
+	protected ArrayList<NTreeListener> listeners = new ArrayList<NTreeListener>();
+	
+	/**
+	 * Per thread heap for the k-nearest neighbours queries.
+	 */
+	protected ThreadLocal<ParticleHeap> heaps = new ThreadLocal<ParticleHeap>() {
+		@Override
+		protected ParticleHeap initialValue() { return new ParticleHeap(); }
+	};
+	
+	/**
+	 * Per thread stack of nodes for the Barnes-Hut traversals.
+	 */
+	protected ThreadLocal<int[]> stacks = new ThreadLocal<int[]>();
+
+// Constructors
+	
+	/**
+	 * New empty tree.
+	 * @param pmax Maximum number of particles by leaf.
+	 * @param universe The initial root space, an octree or quadtree space.
+	 */
+	public LinearNTree( int pmax, CellSpace universe )
+	{
+		divisions = universe.getDivisions();
+		
+		if( divisions != 8 && divisions != 4 )
+			throw new RuntimeException( "a linear n-tree is either an octree or a quadtree" );
+		
+		if( universe.hix <= universe.lox || universe.hiy <= universe.loy || ( divisions == 8 && universe.hiz <= universe.loz ) )
+			throw new RuntimeException( "the universe of a linear n-tree cannot be empty" );
+		
+		this.pmax      = pmax;
+		this.depthAxis = divisions == 8;
+		this.codeBits  = depthAxis ? 3 : 2;
+		this.depthMax  = 62 / codeBits;
+		this.cellIndex = new int[divisions];
+		
+		rlox = universe.lox; rloy = universe.loy; rloz = universe.loz;
+		rhix = universe.hix; rhiy = universe.hiy; rhiz = universe.hiz;
+		
+		double qx = ( rhix - rlox ) / 4;
+		double qy = ( rhiy - rloy ) / 4;
+		double qz = ( rhiz - rloz ) / 4;
+		
+		for( int m=0; m<divisions; ++m )
+		{
+			cellIndex[m] = universe.getSubCellIndex(
+				universe.cx + ( ( m & 1 ) != 0 ? qx : -qx ),
+				universe.cy + ( ( m & 2 ) != 0 ? qy : -qy ),
+				universe.cz + ( ( m & 4 ) != 0 ? qz : -qz ) );
+		}
+		
+		computeSizes();
+	}
+	
+	/**
+	 * New empty tree with the same maximum particles per leaf and root space
+	 * as a n-tree, that shares the listeners of this n-tree.
+	 * @param tree The n-tree.
+	 */
+	public LinearNTree( NTree tree )
+	{
+		this( tree.pmax, tree.laMama.space );
+		
+		listeners = tree.listeners;
+		
+		setDepthMax( tree.depthmax );
+	}
+
+// Access
+	
+	/**
+	 * Maximum number of particles by leaf.
+	 * @return The number of particles per leaf.
+	 */
+	public int getMaxParticlePerCell()
+	{
+		return pmax;
+	}
+	
+	/**
+	 * Maximum depth of a node.
+	 * @return The maximum depth of the tree.
+	 */
+	public int getMaxDepth()
+	{
+		return depthMax;
+	}
+	
+	/**
+	 * Number of sub-nodes of an internal node.
+	 * @return 8 for an octree, 4 for a quadtree.
+	 */
+	public int getDivisions()
+	{
+		return divisions;
+	}
+	
+	/**
+	 * The set of listeners of this tree.
+	 * @return The listeners.
+	 */
+	public ArrayList<NTreeListener> getListeners()
+	{
+		return listeners;
+	}
+	
+	/**
+	 * The lowest point of the root.
+	 * @return A new point.
+	 */
+	public Point3 getLowestPoint()
+	{
+		return new Point3( rlox, rloy, rloz );
+	}
+	
+	/**
+	 * The highest point of the root.
+	 * @return A new point.
+	 */
+	public Point3 getHighestPoint()
+	{
+		return new Point3( rhix, rhiy, rhiz );
+	}
+	
+	/**
+	 * Number of particles in the tree at the last build.
+	 * @return The particle count.
+	 */
+	public int getParticleCount()
+	{
+		return particleCount;
+	}
+	
+	/**
+	 * Number of particles whose leaf changed at the last build. The leaf of
+	 * each particle at the previous build is kept in the particle (see
+	 * {@link Particle#getLeafCode()}), therefore the count does not depend on
+	 * the order of the particles. The particles new in the tree are counted.
+	 * All the particles changed of leaf at the first build and when the root
+	 * grew.
+	 * @return The number of particles that changed of leaf.
+	 */
+	public int getLeafChanges()
+	{
+		return leafChanges;
+	}
+	
+	/**
+	 * Number of nodes, the root being node 0. Zero before the first build.
+	 * @return The node count.
+	 */
+	public int getNodeCount()
+	{
+		return nodeCount;
+	}
+	
+	/**
+	 * Is a node a leaf ?.
+	 * @param node The node index.
+	 * @return True if the node has no sub-node.
+	 */
+	public boolean isLeaf( int node )
+	{
+		return child[node] < 0;
+	}
+	
+	/**
+	 * Index of the i-th sub-node of a node.
+	 * @param node The node index.
+	 * @param i The sub-node Morton index, between 0 and {@link #getDivisions()} excluded.
+	 * @return The sub-node index, or -1 if the node is a leaf.
+	 */
+	public int getSub( int node, int i )
+	{
+		return child[node] < 0 ? -1 : child[node] + i;
+	}
+	
+	/**
+	 * Index of the parent of a node.
+	 * @param node The node index.
+	 * @return The parent index, or -1 for the root.
+	 */
+	public int getParent( int node )
+	{
+		return parent[node];
+	}
+	
+	/**
+	 * Number of particles under a node.
+	 * @param node The node index.
+	 * @return The node population.
+	 */
+	public int getPopulation( int node )
+	{
+		return count[node];
+	}
+	
+	/**
+	 * Depth of a node, the root being at depth 0.
+	 * @param node The node index.
+	 * @return The node depth.
+	 */
+	public int getDepth( int node )
+	{
+		return depth[node];
+	}
+	
+	/**
+	 * Locational code of a node, this is the identifier given to the
+	 * listeners.
+	 * @param node The node index.
+	 * @return The node code.
+	 */
+	public long getCode( int node )
+	{
+		return code[node];
+	}
+	
+	/**
+	 * The i-th particle of a node.
+	 * @param node The node index.
+	 * @param i The particle index, between 0 and the node population excluded.
+	 * @return The particle.
+	 */
+	public Particle getParticle( int node, int i )
+	{
+		if( i < 0 || i >= count[node] )
+			throw new IndexOutOfBoundsException( "no particle "+i+" in node "+node );
+		
+		return order[start[node]+i];
+	}
+	
+	/**
+	 * Barycenter abscissa of a node.
+	 * @param node The node index.
+	 * @return The mean abscissa of the node particles.
+	 */
+	public double getCenterX( int node )
+	{
+		return bx[node];
+	}
+	
+	/**
+	 * Barycenter ordinate of a node.
+	 * @param node The node index.
+	 * @return The mean ordinate of the node particles.
+	 */
+	public double getCenterY( int node )
+	{
+		return by[node];
+	}
+	
+	/**
+	 * Barycenter depth of a node.
+	 * @param node The node index.
+	 * @return The mean depth of the node particles.
+	 */
+	public double getCenterZ( int node )
+	{
+		return bz[node];
+	}
+	
+	/**
+	 * Sum of the particle weights of a node.
+	 * @param node The node index.
+	 * @return The node weight.
+	 */
+	public double getWeight( int node )
+	{
+		return weight[node];
+	}
+	
+	/**
+	 * Lowest point of a node.
+	 * @param node The node index.
+	 * @return A new anchor.
+	 */
+	public Anchor getLoAnchor( int node )
+	{
+		return new Anchor( lox[node], loy[node], loz[node] );
+	}
+	
+	/**
+	 * Highest point of a node.
+	 * @param node The node index.
+	 * @return A new anchor.
+	 */
+	public Anchor getHiAnchor( int node )
+	{
+		int d = depth[node];
+		
+		return new Anchor( lox[node] + sx[d], loy[node] + sy[d], loz[node] + sz[d] );
+	}
+	
+	/**
+	 * The k particles nearest to a point.
+	 * @param x The point abscissa.
+	 * @param y The point ordinate.
+	 * @param z The point depth.
+	 * @param k The maximum number of particles to return.
+	 * @return The particles, ordered by increasing distance to the point.
+	 * @see NTree#kNearest(double, double, double, int)
+	 */
+	public List<Particle> kNearest( double x, double y, double z, int k )
+	{
+		final ArrayList<Particle> result = new ArrayList<Particle>( k );
+		
+		kNearest( x, y, z, k, new ParticleVisitor() {
+			public void visit( Particle particle ) { result.add( particle ); }
+		} );
+		
+		return result;
+	}
+	
+	/**
+	 * Visit the k particles nearest to a point, by increasing distance. The
+	 * visitor must not itself run a k-nearest query.
+	 * @param x The point abscissa.
+	 * @param y The point ordinate.
+	 * @param z The point depth.
+	 * @param k The maximum number of particles to visit.
+	 * @param visitor The callback receiving the particles.
+	 * @return The number of particles visited.
+	 * @see NTree#kNearest(double, double, double, int, ParticleVisitor)
+	 */
+	public int kNearest( double x, double y, double z, int k, ParticleVisitor visitor )
+	{
+		ParticleHeap heap = heaps.get();
+		
+		heap.reset( k );
+		
+		if( k > 0 && nodeCount > 0 )
+			nearest( 0, x, y, z, heap );
+		
+		heap.sort();
+		
+		int n = heap.size;
+		
+		for( int i=0; i<n; ++i )
+			visitor.visit( heap.particles[i] );
+		
+		heap.reset( 0 );
+		
+		return n;
+	}
+	
+	/**
+	 * The particles at a distance less than or equal to r from a point.
+	 * @param x The point abscissa.
+	 * @param y The point ordinate.
+	 * @param z The point depth.
+	 * @param r The radius.
+	 * @return The particles, in no particular order.
+	 * @see NTree#withinRadius(double, double, double, double)
+	 */
+	public List<Particle> withinRadius( double x, double y, double z, double r )
+	{
+		final ArrayList<Particle> result = new ArrayList<Particle>();
+		
+		withinRadius( x, y, z, r, new ParticleVisitor() {
+			public void visit( Particle particle ) { result.add( particle ); }
+		} );
+		
+		return result;
+	}
+	
+	/**
+	 * Visit the particles at a distance less than or equal to r from a point.
+	 * @param x The point abscissa.
+	 * @param y The point ordinate.
+	 * @param z The point depth.
+	 * @param r The radius.
+	 * @param visitor The callback receiving the particles.
+	 * @return The number of particles visited.
+	 * @see NTree#withinRadius(double, double, double, double, ParticleVisitor)
+	 */
+	public int withinRadius( double x, double y, double z, double r, ParticleVisitor visitor )
+	{
+		if( nodeCount == 0 )
+			return 0;
+		
+		return within( 0, x, y, z, r*r, visitor );
+	}
+	
+	/**
+	 * The particles whose position is inside a box, bounds included.
+	 * @param lx The box lowest abscissa.
+	 * @param ly The box lowest ordinate.
+	 * @param lz The box lowest depth.
+	 * @param hx The box highest abscissa.
+	 * @param hy The box highest ordinate.
+	 * @param hz The box highest depth.
+	 * @return The particles, in no particular order.
+	 * @see NTree#withinBox(double, double, double, double, double, double)
+	 */
+	public List<Particle> withinBox( double lx, double ly, double lz, double hx, double hy, double hz )
+	{
+		final ArrayList<Particle> result = new ArrayList<Particle>();
+		
+		withinBox( lx, ly, lz, hx, hy, hz, new ParticleVisitor() {
+			public void visit( Particle particle ) { result.add( particle ); }
+		} );
+		
+		return result;
+	}
+	
+	/**
+	 * Visit the particles whose position is inside a box, bounds included.
+	 * The particles of the nodes entirely inside the box are accepted in bulk.
+	 * @param lx The box lowest abscissa.
+	 * @param ly The box lowest ordinate.
+	 * @param lz The box lowest depth.
+	 * @param hx The box highest abscissa.
+	 * @param hy The box highest ordinate.
+	 * @param hz The box highest depth.
+	 * @param visitor The callback receiving the particles.
+	 * @return The number of particles visited.
+	 * @see NTree#withinBox(double, double, double, double, double, double, ParticleVisitor)
+	 */
+	public int withinBox( double lx, double ly, double lz, double hx, double hy, double hz, ParticleVisitor visitor )
+	{
+		if( nodeCount == 0 )
+			return 0;
+		
+		return inBox( 0, lx, ly, lz, hx, hy, hz, visitor );
+	}
+	
+	/**
+	 * Like {@link #withinBox(double, double, double, double, double, double, ParticleVisitor)}
+	 * with a box that has no depth bounds.
+	 * @param lx The box lowest abscissa.
+	 * @param ly The box lowest ordinate.
+	 * @param hx The box highest abscissa.
+	 * @param hy The box highest ordinate.
+	 * @param visitor The callback receiving the particles.
+	 * @return The number of particles visited.
+	 */
+	public int withinBox( double lx, double ly, double hx, double hy, ParticleVisitor visitor )
+	{
+		return withinBox( lx, ly, Double.NEGATIVE_INFINITY, hx, hy, Double.POSITIVE_INFINITY, visitor );
+	}
+	
+	/**
+	 * Compute the interactions between all the particles of the tree using
+	 * a Barnes-Hut approximation.
+	 * @param theta The opening criterion, the ratio node size / distance
+	 * under which a node is approximated by its barycenter.
+	 * @param kernel The interaction.
+	 */
+	public void barnesHut( double theta, LinearBarnesHutKernel kernel )
+	{
+		for( int i=0; i<particleCount; ++i )
+			barnesHut( order[i], theta, kernel );
+	}
+	
+	/**
+	 * Like {@link #barnesHut(double, LinearBarnesHutKernel)} but for only one
+	 * particle. This can be used from several threads.
+	 * @param target The particle that receives the interactions.
+	 * @param theta The opening criterion.
+	 * @param kernel The interaction.
+	 */
+	public void barnesHut( Particle target, double theta, LinearBarnesHutKernel kernel )
+	{
+		if( nodeCount == 0 )
+			return;
+		
+		double x     = target.getX();
+		double y     = target.getY();
+		double z     = target.getZ();
+		int[]  stack = stacks.get();
+		int    top   = 0;
+		
+		if( stack == null || stack.length < ( depthMax + 1 ) * divisions )
+		{
+			stack = new int[( depthMax + 1 ) * divisions];
+			stacks.set( stack );
+		}
+		
+		stack[top++] = 0;
+		
+		while( top > 0 )
+		{
+			int node = stack[--top];
+			
+			if( count[node] == 0 )
+				continue;
+			
+			if( child[node] < 0 )
+			{
+				int end = start[node] + count[node];
+				
+				for( int i=start[node]; i<end; ++i )
+				{
+					if( order[i] != target )
+						kernel.particleInteraction( target, order[i] );
+				}
+			}
+			else
+			{
+				double dx = bx[node] - x;
+				double dy = by[node] - y;
+				double dz = bz[node] - z;
+				double d  = Math.sqrt( dx*dx + dy*dy + dz*dz );
+				
+				if( diag[depth[node]] < theta * d && ! contains( node, x, y, z ) )
+				{
+					kernel.nodeInteraction( target, bx[node], by[node], bz[node], weight[node], count[node] );
+				}
+				else
+				{
+					for( int i=0; i<divisions; ++i )
+						stack[top++] = child[node] + i;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Is a point inside a node ?.
+	 * @param node The node index.
+	 * @param x The point abscissa.
+	 * @param y The point ordinate.
+	 * @param z The point depth.
+	 * @return True if the point is in the node bounds, the highest bounds being excluded.
+	 */
+	public boolean contains( int node, double x, double y, double z )
+	{
+		int d = depth[node];
+		
+		if( x < lox[node] || x >= lox[node] + sx[d] ) return false;
+		if( y < loy[node] || y >= loy[node] + sy[d] ) return false;
+		if( depthAxis && ( z < loz[node] || z >= loz[node] + sz[d] ) ) return false;
+		
+		return true;
+	}
+
+// Commands
+	
+	/**
+	 * Add a listener for the cell events. The nodes of the last build are
+	 * sent to it.
+	 * @param listener The listener.
+	 */
+	public void addListener( NTreeListener listener )
+	{
+		listeners.add( listener );
+		describe( listener );
+	}
+	
+	/**
+	 * Send the nodes of the last build and their data to a listener, as the
+	 * first build after a {@link #clear()} would. This allows a listener that
+	 * connects to the tree to know the nodes the next events refer to.
+	 * @param listener The listener that should receive the tree description.
+	 */
+	public void describe( NTreeListener listener )
+	{
+		if( nodeCount > 0 )
+			describe( 0, listener );
+	}
+	
+	/**
+	 * Remove a listener.
+	 * @param listener The listener to remove.
+	 */
+	public void removeListener( NTreeListener listener )
+	{
+		int index = listeners.indexOf( listener );
+		
+		if( index >= 0 )
+			listeners.remove( index );
+	}
+	
+	/**
+	 * Split the sort of the particles of each build in several tasks run in
+	 * the given thread pool. The result does not depend on the number of
+	 * tasks. Under a few thousands particles per task the sort stays
+	 * sequential.
+	 * @param pool The thread pool, or null to sort sequentially.
+	 * @param tasks The maximum number of tasks.
+	 */
+	public void setParallelBuild( ExecutorService pool, int tasks )
+	{
+		if( tasks < 1 )
+			throw new RuntimeException( "the number of tasks must be at least one" );
+		
+		this.pool  = pool;
+		this.tasks = tasks;
+	}
+	
+	/**
+	 * Remove all the particles and nodes, signalling the removal of the nodes
+	 * to the listeners. The next build is then seen as the first one.
+	 */
+	public void clear()
+	{
+		if( nodeCount > 0 && ! listeners.isEmpty() )
+		{
+			int[]  c = prevChild; prevChild = child; child = c;
+			long[] k = prevCode;  prevCode  = code;  code  = k;
+			
+			firePrevRemoved( 0 );
+		}
+		
+		Arrays.fill( order, 0, particleCount, null );
+		
+		particleCount     = 0;
+		nodeCount         = 0;
+		prevCount         = 0;
+		leafChanges       = 0;
+		rootChanged       = true;
+	}
+	
+	/**
+	 * Change the maximum depth of the nodes. It is limited by the length of
+	 * the locational codes, 20 for an octree and 31 for a quadtree. This is
+	 * used at the next build.
+	 * @param max The maximum depth.
+	 */
+	public void setDepthMax( int max )
+	{
+		if( max < 0 )
+			throw new RuntimeException( "negative maximum depth" );
+		
+		depthMax = Math.min( max, 62 / codeBits );
+		
+		computeSizes();
+	}
+	
+	/**
+	 * Rebuild the tree with all the particles of a particle box, at their
+	 * current position.
+	 * @param box The particles.
+	 */
+	public void build( ParticleBox box )
+	{
+		int n = box.getParticleCount();
+		
+		ensureParticles( n );
+		
+		for( int i=0; i<n; ++i )
+			order[i] = box.getParticleAt( i );
+		
+		build( n );
+	}
+	
+	/**
+	 * Rebuild the tree with a set of particles, at their current position.
+	 * @param particles The particles.
+	 * @param n The number of particles to take in the array.
+	 */
+	public void build( Particle[] particles, int n )
+	{
+		ensureParticles( n );
+		System.arraycopy( particles, 0, order, 0, n );
+		build( n );
+	}
+	
+	/**
+	 * Rebuild the tree with the n first particles of {@link #order}.
+	 */
+	protected void build( int n )
+	{
+		if( n < particleCount )
+			Arrays.fill( order, n, particleCount, null );
+		
+		particleCount = n;
+		
+		for( int i=0; i<n; ++i )
+		{
+			Particle particle = order[i];
+			
+			px[i] = particle.getX();
+			py[i] = particle.getY();
+			pz[i] = particle.getZ();
+		}
+		
+		if( fitRoot() )
+			rootChanged = true;
+		
+		sortParticles();
+		
+		// Keep the previous structure to compute the events.
+		
+		int[]    c = prevChild;  prevChild  = child;  child  = c;
+		long[]   k = prevCode;   prevCode   = code;   code   = k;
+		double[] x = prevBx;     prevBx     = bx;     bx     = x;
+		double[] y = prevBy;     prevBy     = by;     by     = y;
+		double[] z = prevBz;     prevBz     = bz;     bz     = z;
+		double[] w = prevWeight; prevWeight = weight; weight = w;
+		
+		prevCount = nodeCount;
+		nodeCount = 0;
+		
+		newNode( -1, 0, rlox, rloy, rloz, 1, 0, n );
+		
+		// The nodes are appended in breadth first order, a node being
+		// always split before its sub-nodes.
+		
+		for( int node=0; node<nodeCount; ++node )
+		{
+			if( count[node] > pmax && depth[node] < depthMax )
+				split( node );
+		}
+		
+		for( int node=nodeCount-1; node>=0; --node )
+			computeCenter( node );
+		
+		countLeafChanges();
+		
+		if( ! listeners.isEmpty() )
+			fireEvents();
+		
+		rootChanged = false;
+	}
+	
+	/**
+	 * Grow the root until it contains all the particles.
+	 * @return True if the root changed.
+	 */
+	protected boolean fitRoot()
+	{
+		double minx = Double.POSITIVE_INFINITY, miny = minx, minz = minx;
+		double maxx = Double.NEGATIVE_INFINITY, maxy = maxx, maxz = maxx;
+		
+		for( int i=0; i<particleCount; ++i )
+		{
+			minx = Math.min( minx, px[i] ); maxx = Math.max( maxx, px[i] );
+			miny = Math.min( miny, py[i] ); maxy = Math.max( maxy, py[i] );
+			minz = Math.min( minz, pz[i] ); maxz = Math.max( maxz, pz[i] );
+		}
+		
+		if( particleCount == 0 )
+			return false;
+		
+		if( Double.isNaN( minx - maxx ) || Double.isInfinite( minx - maxx )
+		 || Double.isNaN( miny - maxy ) || Double.isInfinite( miny - maxy )
+		 || ( depthAxis && ( Double.isNaN( minz - maxz ) || Double.isInfinite( minz - maxz ) ) ) )
+			throw new RuntimeException( "a particle has no finite position" );
+		
+		boolean changed = false;
+		
+		// Like NTree.OutOfUniverseMode.GROW, the old root is one of the
+		// sub-nodes of the new one.
+		
+		while( minx < rlox || maxx >= rhix || miny < rloy || maxy >= rhiy
+		   || ( depthAxis && ( minz < rloz || maxz >= rhiz ) ) )
+		{
+			double w = rhix - rlox, h = rhiy - rloy, d = rhiz - rloz;
+			
+			if( minx < rlox ) rlox -= w; else rhix += w;
+			if( miny < rloy ) rloy -= h; else rhiy += h;
+			
+			if( depthAxis )
+			{
+				if( minz < rloz ) rloz -= d; else rhiz += d;
+			}
+			
+			changed = true;
+		}
+		
+		if( changed )
+			computeSizes();
+		
+		return changed;
+	}
+	
+	/**
+	 * Compute the node sizes at each depth.
+	 */
+	protected void computeSizes()
+	{
+		sx   = new double[depthMax+1];
+		sy   = new double[depthMax+1];
+		sz   = new double[depthMax+1];
+		diag = new double[depthMax+1];
+		
+		for( int d=0; d<=depthMax; ++d )
+		{
+			double f = Math.scalb( 1.0, -d );
+			
+			sx[d]   = ( rhix - rlox ) * f;
+			sy[d]   = ( rhiy - rloy ) * f;
+			sz[d]   = depthAxis ? ( rhiz - rloz ) * f : rhiz - rloz;
+			diag[d] = Math.sqrt( sx[d]*sx[d] + sy[d]*sy[d] + ( depthAxis ? sz[d]*sz[d] : 0 ) );
+		}
+	}
+	
+	/**
+	 * Append a node.
+	 * @return The node index.
+	 */
+	protected int newNode( int parentNode, int d, double x, double y, double z, long nodeCode, int first, int n )
+	{
+		int node = nodeCount++;
+		
+		ensureNodes( nodeCount );
+		
+		child[node]  = -1;
+		parent[node] = parentNode;
+		depth[node]  = (byte) d;
+		code[node]   = nodeCode;
+		start[node]  = first;
+		count[node]  = n;
+		lox[node]    = x;
+		loy[node]    = y;
+		loz[node]    = z;
+		
+		return node;
+	}
+	
+	/**
+	 * Compute the Morton code of each particle and sort the particles by
+	 * code. This is a radix sort, stable, on the bits of the codes actually
+	 * used by the maximum depth.
+	 */
+	protected void sortParticles()
+	{
+		int n = particleCount;
+		
+		if( n == 0 )
+			return;
+		
+		taskCount = pool == null ? 1 : Math.max( 1, Math.min( tasks, n / minParticlesPerTask ) );
+		
+		int chunk = ( n + taskCount - 1 ) / taskCount;
+		
+		while( sortTasks.size() < taskCount )
+			sortTasks.add( new SortTask() );
+		
+		for( int i=0; i<taskCount; ++i )
+		{
+			SortTask task = sortTasks.get( i );
+			task.from = Math.min( n, i * chunk );
+			task.to   = Math.min( n, task.from + chunk );
+		}
+		
+		runTasks( SortTask.KEYS, 0 );
+		
+		int bits = depthMax * codeBits;
+		
+		for( int shift=0; shift<bits; shift+=RADIX_BITS )
+		{
+			runTasks( SortTask.COUNT, shift );
+			
+			// Skip the digits that all the particles share, frequent for
+			// the highest digits. Else compute where each task puts its
+			// particles of each digit, in task order to keep the sort stable.
+			
+			int offset = 0;
+			
+			for( int d=0; d<RADIX; ++d )
+			{
+				int total = 0;
+				
+				for( int i=0; i<taskCount; ++i )
+					total += sortTasks.get( i ).histogram[d];
+				
+				if( total == n )
+				{
+					offset = -1;
+					break;
+				}
+			}
+			
+			if( offset < 0 )
+				continue;
+			
+			for( int d=0; d<RADIX; ++d )
+			{
+				for( int i=0; i<taskCount; ++i )
+				{
+					SortTask task = sortTasks.get( i );
+					int      c    = task.histogram[d];
+					
+					task.histogram[d] = offset;
+					offset           += c;
+				}
+			}
+			
+			runTasks( SortTask.SCATTER, shift );
+			
+			long[] k = keys; keys = keys2; keys2 = k;
+			int[]  p = perm; perm = perm2; perm2 = p;
+		}
+		
+		// Reorder the particles.
+		
+		for( int j=0; j<n; ++j )
+		{
+			int i = perm[j];
+			
+			tmp[j] = order[i];
+			tx[j]  = px[i];
+			ty[j]  = py[i];
+			tz[j]  = pz[i];
+		}
+		
+		Particle[] o = order; order = tmp; tmp = o;
+		double[]   x = px; px = tx; tx = x;
+		double[]   y = py; py = ty; ty = y;
+		double[]   z = pz; pz = tz; tz = z;
+		
+		Arrays.fill( tmp, 0, n, null );
+	}
+	
+	/**
+	 * Run a phase of the sort in all the sort tasks, in the pool if any.
+	 */
+	protected void runTasks( int phase, int shift )
+	{
+		for( int i=0; i<taskCount; ++i )
+		{
+			sortTasks.get( i ).phase = phase;
+			sortTasks.get( i ).shift = shift;
+		}
+		
+		if( taskCount == 1 )
+		{
+			sortTasks.get( 0 ).call();
+			return;
+		}
+		
+		try
+		{
+			for( Future<Object> f: pool.invokeAll( sortTasks.subList( 0, taskCount ) ) )
+				f.get();
+		}
+		catch( ExecutionException e )
+		{
+			if( e.getCause() instanceof RuntimeException )
+				throw (RuntimeException) e.getCause();
+			
+			throw new RuntimeException( "particle sort failed", e.getCause() );
+		}
+		catch( InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException( "interrupted during the particle sort", e );
+		}
+	}
+	
+	/**
+	 * Compute the Morton codes of a range of particles. The coordinates are
+	 * quantized on the grid of the nodes of maximum depth, and their bits
+	 * interleaved, so that the highest bits are the index of the sub-node of
+	 * the root.
+	 */
+	protected void computeKeys( int from, int to )
+	{
+		long   max = ( 1L << depthMax ) - 1;
+		double fx  = Math.scalb( 1.0, depthMax ) / ( rhix - rlox );
+		double fy  = Math.scalb( 1.0, depthMax ) / ( rhiy - rloy );
+		double fz  = Math.scalb( 1.0, depthMax ) / ( rhiz - rloz );
+		
+		for( int i=from; i<to; ++i )
+		{
+			long qx = quantize( ( px[i] - rlox ) * fx, max );
+			long qy = quantize( ( py[i] - rloy ) * fy, max );
+			
+			if( depthAxis )
+			     keys[i] = spread3( qx ) | ( spread3( qy ) << 1 ) | ( spread3( quantize( ( pz[i] - rloz ) * fz, max ) ) << 2 );
+			else keys[i] = spread2( qx ) | ( spread2( qy ) << 1 );
+			
+			perm[i] = i;
+		}
+	}
+	
+	/**
+	 * Integer coordinate on the grid of the nodes of maximum depth.
+	 */
+	protected static long quantize( double v, long max )
+	{
+		long q = (long) v;
+		
+		return q < 0 ? 0 : ( q > max ? max : q );
+	}
+	
+	/**
+	 * Insert two zero bits between each of the 21 lowest bits of a value.
+	 */
+	protected static long spread3( long v )
+	{
+		v &= 0x1fffffL;
+		v = ( v | v << 32 ) & 0x1f00000000ffffL;
+		v = ( v | v << 16 ) & 0x1f0000ff0000ffL;
+		v = ( v | v << 8 )  & 0x100f00f00f00f00fL;
+		v = ( v | v << 4 )  & 0x10c30c30c30c30c3L;
+		v = ( v | v << 2 )  & 0x1249249249249249L;
+		
+		return v;
+	}
+	
+	/**
+	 * Insert a zero bit between each of the 32 lowest bits of a value.
+	 */
+	protected static long spread2( long v )
+	{
+		v &= 0xffffffffL;
+		v = ( v | v << 16 ) & 0x0000ffff0000ffffL;
+		v = ( v | v << 8 )  & 0x00ff00ff00ff00ffL;
+		v = ( v | v << 4 )  & 0x0f0f0f0f0f0f0f0fL;
+		v = ( v | v << 2 )  & 0x3333333333333333L;
+		v = ( v | v << 1 )  & 0x5555555555555555L;
+		
+		return v;
+	}
+	
+	/**
+	 * Create the sub-nodes of a node. The particles being sorted by Morton
+	 * code, those of each sub-node are contiguous and found by binary search
+	 * on the digit of the sub-node depth.
+	 * @param node The node to split.
+	 */
+	protected void split( int node )
+	{
+		int d     = depth[node] + 1;
+		int shift = ( depthMax - d ) * codeBits;
+		int s     = start[node];
+		int e     = s + count[node];
+		
+		child[node] = nodeCount;
+		
+		for( int m=0; m<divisions; ++m )
+		{
+			int next = m == divisions - 1 ? e : firstAbove( s, e, shift, m );
+			
+			newNode( node, d,
+				( m & 1 ) != 0 ? lox[node] + sx[d] : lox[node],
+				( m & 2 ) != 0 ? loy[node] + sy[d] : loy[node],
+				( m & 4 ) != 0 ? loz[node] + sz[d] : loz[node],
+				( code[node] << codeBits ) | m, s, next - s );
+			
+			s = next;
+		}
+	}
+	
+	/**
+	 * Index of the first sorted particle between from and to whose code has
+	 * a digit greater than the given one at the given shift.
+	 */
+	protected int firstAbove( int from, int to, int shift, int digit )
+	{
+		int mask = divisions - 1;
+		
+		while( from < to )
+		{
+			int mid = ( from + to ) >>> 1;
+			
+			if( ( (int)( keys[mid] >>> shift ) & mask ) > digit )
+			     to   = mid;
+			else from = mid + 1;
+		}
+		
+		return from;
+	}
+	
+	/**
+	 * Record the leaf of each particle in the particle and count the
+	 * particles whose leaf changed since the previous build.
+	 */
+	protected void countLeafChanges()
+	{
+		leafChanges = 0;
+		
+		for( int node=0; node<nodeCount; ++node )
+		{
+			if( child[node] < 0 )
+			{
+				long leaf = code[node];
+				int  e    = start[node] + count[node];
+				
+				for( int j=start[node]; j<e; ++j )
+				{
+					Particle particle = order[j];
+					
+					if( rootChanged || particle.getLeafCode() != leaf )
+					{
+						particle.setLeafCode( leaf );
+						leafChanges++;
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Compute the barycenter and weight of a node, its sub-nodes being
+	 * already computed.
+	 * @param node The node.
+	 */
+	protected void computeCenter( int node )
+	{
+		double x = 0, y = 0, z = 0, w = 0;
+		int    n = count[node];
+		
+		if( n == 0 )
+		{
+			int d = depth[node];
+			
+			x = lox[node] + sx[d] / 2;
+			y = loy[node] + sy[d] / 2;
+			z = loz[node] + sz[d] / 2;
+		}
+		else if( child[node] < 0 )
+		{
+			int e = start[node] + n;
+			
+			for( int i=start[node]; i<e; ++i )
+			{
+				x += px[i];
+				y += py[i];
+				z += pz[i];
+				w += order[i].getWeight();
+			}
+			
+			x /= n;
+			y /= n;
+			z /= n;
+		}
+		else
+		{
+			int first = child[node];
+			
+			for( int i=first; i<first+divisions; ++i )
+			{
+				x += bx[i] * count[i];
+				y += by[i] * count[i];
+				z += bz[i] * count[i];
+				w += weight[i];
+			}
+			
+			x /= n;
+			y /= n;
+			z /= n;
+		}
+		
+		bx[node]     = x;
+		by[node]     = y;
+		bz[node]     = z;
+		weight[node] = w;
+	}
+	
+	/**
+	 * Send the events describing the differences with the previous build.
+	 */
+	protected void fireEvents()
+	{
+		if( rootChanged )
+		{
+			if( prevCount > 0 )
+				firePrevRemoved( 0 );
+			
+			fireAdded( 0 );
+		}
+		else
+		{
+			fireChanges( 0, 0 );
+		}
+	}
+	
+	/**
+	 * Compare a node of the previous build with the node of the same code in
+	 * this build.
+	 */
+	protected void fireChanges( int prev, int node )
+	{
+		if( bx[node] != prevBx[prev] || by[node] != prevBy[prev] || bz[node] != prevBz[prev] || weight[node] != prevWeight[prev] )
+			fireData( node );
+		
+		if( prevChild[prev] >= 0 )
+		{
+			if( child[node] >= 0 )
+			{
+				for( int i=0; i<divisions; ++i )
+					fireChanges( prevChild[prev] + i, child[node] + i );
+			}
+			else
+			{
+				for( int i=0; i<divisions; ++i )
+					firePrevRemoved( prevChild[prev] + i );
+			}
+		}
+		else if( child[node] >= 0 )
+		{
+			for( int i=0; i<divisions; ++i )
+				fireAdded( child[node] + i );
+		}
+	}
+	
+	/**
+	 * Signal the addition of a node, then of its sub-nodes.
+	 */
+	protected void fireAdded( int node )
+	{
+		Long   id       = code[node];
+		Object parentId = parent[node] < 0 ? "" : (Object) code[parent[node]];
+		int    index    = parent[node] < 0 ? 0 : cellIndex[(int)( code[node] & ( divisions - 1 ) )];
+		Anchor lo       = getLoAnchor( node );
+		Anchor hi       = getHiAnchor( node );
+		
+		for( NTreeListener listener: listeners )
+			listener.cellAdded( id, parentId, lo, hi, depth[node], index );
+		
+		fireData( node );
+		
+		if( child[node] >= 0 )
+		{
+			for( int i=0; i<divisions; ++i )
+				fireAdded( child[node] + i );
+		}
+	}
+	
+	/**
+	 * Signal the addition of a node and of its sub-nodes, with their data,
+	 * to one listener.
+	 */
+	protected void describe( int node, NTreeListener listener )
+	{
+		Object parentId = parent[node] < 0 ? "" : (Object) code[parent[node]];
+		int    index    = parent[node] < 0 ? 0 : cellIndex[(int)( code[node] & ( divisions - 1 ) )];
+		
+		listener.cellAdded( code[node], parentId, getLoAnchor( node ), getHiAnchor( node ), depth[node], index );
+		listener.cellData( code[node], "barycenter", getNodeData( node ) );
+		
+		if( child[node] >= 0 )
+		{
+			for( int i=0; i<divisions; ++i )
+				describe( child[node] + i, listener );
+		}
+	}
+	
+	/**
+	 * Signal the barycenter and weight of a node.
+	 */
+	protected void fireData( int node )
+	{
+		BarycenterCellData data = getNodeData( node );
+		Long               id   = code[node];
+		
+		for( NTreeListener listener: listeners )
+			listener.cellData( id, "barycenter", data );
+	}
+	
+	/**
+	 * The data sent to the listeners for a node, set to its barycenter and
+	 * weight.
+	 */
+	protected BarycenterCellData getNodeData( int node )
+	{
+		if( node >= nodeData.length )
+			nodeData = Arrays.copyOf( nodeData, Math.max( node + 1, nodeData.length * 2 ) );
+		
+		BarycenterCellData data = nodeData[node];
+		
+		if( data == null )
+			nodeData[node] = data = new BarycenterCellData();
+		
+		data.center.set( bx[node], by[node], bz[node] );
+		data.weight = weight[node];
+		
+		return data;
+	}
+	
+	/**
+	 * Signal the removal of the sub-nodes of a node of the previous build,
+	 * then of the node itself.
+	 */
+	protected void firePrevRemoved( int prev )
+	{
+		if( prevChild[prev] >= 0 )
+		{
+			for( int i=0; i<divisions; ++i )
+				firePrevRemoved( prevChild[prev] + i );
+		}
+		
+		Long id = prevCode[prev];
+		
+		for( NTreeListener listener: listeners )
+			listener.cellRemoved( id );
+	}
+	
+	/**
+	 * Find the k nearest particles under a node.
+	 */
+	protected void nearest( int node, double x, double y, double z, ParticleHeap heap )
+	{
+		if( count[node] == 0 || squaredDistance( node, x, y, z ) >= heap.bound() )
+			return;
+		
+		if( child[node] < 0 )
+		{
+			int e = start[node] + count[node];
+			
+			for( int i=start[node]; i<e; ++i )
+			{
+				double dx = px[i] - x;
+				double dy = py[i] - y;
+				double dz = pz[i] - z;
+				double d2 = dx*dx + dy*dy + dz*dz;
+				
+				if( d2 < heap.bound() )
+					heap.offer( order[i], d2 );
+			}
+		}
+		else
+		{
+			// Begin with the sub-node containing the point, to find near
+			// particles early and prune more.
+			
+			int first = -1;
+			
+			if( contains( node, x, y, z ) )
+			{
+				int d = depth[node] + 1;
+				
+				first = child[node]
+				      + ( ( x >= lox[node] + sx[d] ? 1 : 0 )
+				        | ( y >= loy[node] + sy[d] ? 2 : 0 )
+				        | ( depthAxis && z >= loz[node] + sz[d] ? 4 : 0 ) );
+				
+				nearest( first, x, y, z, heap );
+			}
+			
+			for( int i=child[node]; i<child[node]+divisions; ++i )
+			{
+				if( i != first )
+					nearest( i, x, y, z, heap );
+			}
+		}
+	}
+	
+	/**
+	 * Visit the particles under a node in a sphere.
+	 */
+	protected int within( int node, double x, double y, double z, double r2, ParticleVisitor visitor )
+	{
+		if( count[node] == 0 || squaredDistance( node, x, y, z ) > r2 )
+			return 0;
+		
+		int n = 0;
+		
+		if( child[node] < 0 )
+		{
+			int e = start[node] + count[node];
+			
+			for( int i=start[node]; i<e; ++i )
+			{
+				double dx = px[i] - x;
+				double dy = py[i] - y;
+				double dz = pz[i] - z;
+				
+				if( dx*dx + dy*dy + dz*dz <= r2 )
+				{
+					visitor.visit( order[i] );
+					n++;
+				}
+			}
+		}
+		else
+		{
+			for( int i=child[node]; i<child[node]+divisions; ++i )
+				n += within( i, x, y, z, r2, visitor );
+		}
+		
+		return n;
+	}
+	
+	/**
+	 * Visit the particles under a node in a box.
+	 */
+	protected int inBox( int node, double lx, double ly, double lz, double hx, double hy, double hz, ParticleVisitor visitor )
+	{
+		if( count[node] == 0 )
+			return 0;
+		
+		int    d   = depth[node];
+		double nlz = depthAxis ? loz[node] : Double.NEGATIVE_INFINITY;
+		double nhz = depthAxis ? loz[node] + sz[d] : Double.POSITIVE_INFINITY;
+		
+		if( lox[node] > hx || lox[node] + sx[d] < lx || loy[node] > hy || loy[node] + sy[d] < ly || nlz > hz || nhz < lz )
+			return 0;
+		
+		int s = start[node];
+		int e = s + count[node];
+		
+		if( lx <= lox[node] && lox[node] + sx[d] <= hx && ly <= loy[node] && loy[node] + sy[d] <= hy && lz <= nlz && nhz <= hz )
+		{
+			// The particles of a node are contiguous, whatever its depth.
+			
+			for( int i=s; i<e; ++i )
+				visitor.visit( order[i] );
+			
+			return e - s;
+		}
+		
+		int n = 0;
+		
+		if( child[node] < 0 )
+		{
+			for( int i=s; i<e; ++i )
+			{
+				if( px[i] >= lx && px[i] <= hx && py[i] >= ly && py[i] <= hy && pz[i] >= lz && pz[i] <= hz )
+				{
+					visitor.visit( order[i] );
+					n++;
+				}
+			}
+		}
+		else
+		{
+			for( int i=child[node]; i<child[node]+divisions; ++i )
+				n += inBox( i, lx, ly, lz, hx, hy, hz, visitor );
+		}
+		
+		return n;
+	}
+	
+	/**
+	 * Squared distance between a point and the bounds of a node.
+	 */
+	protected double squaredDistance( int node, double x, double y, double z )
+	{
+		int    d  = depth[node];
+		double dx = Math.max( 0, Math.max( lox[node] - x, x - ( lox[node] + sx[d] ) ) );
+		double dy = Math.max( 0, Math.max( loy[node] - y, y - ( loy[node] + sy[d] ) ) );
+		double dz = depthAxis ? Math.max( 0, Math.max( loz[node] - z, z - ( loz[node] + sz[d] ) ) ) : 0;
+		
+		return dx*dx + dy*dy + dz*dz;
+	}
+	
+	/**
+	 * Grow the particle arrays if needed.
+	 */
+	protected void ensureParticles( int size )
+	{
+		if( size > order.length )
+		{
+			int n = Math.max( size, order.length * 2 );
+			
+			order      = Arrays.copyOf( order, n );
+			px         = new double[n];
+			py         = new double[n];
+			pz         = new double[n];
+			keys       = new long[n];
+			perm       = new int[n];
+			keys2      = new long[n];
+			perm2      = new int[n];
+			tmp        = new Particle[n];
+			tx         = new double[n];
+			ty         = new double[n];
+			tz         = new double[n];
+		}
+	}
+	
+	/**
+	 * Grow the node arrays if needed.
+	 */
+	protected void ensureNodes( int size )
+	{
+		if( size > child.length )
+			child = Arrays.copyOf( child, Math.max( size, child.length * 2 ) );
+		
+		if( size > code.length )
+			code = Arrays.copyOf( code, Math.max( size, code.length * 2 ) );
+		
+		if( size > bx.length )
+		{
+			int n = Math.max( size, bx.length * 2 );
+			
+			bx     = Arrays.copyOf( bx, n );
+			by     = Arrays.copyOf( by, n );
+			bz     = Arrays.copyOf( bz, n );
+			weight = Arrays.copyOf( weight, n );
+		}
+		
+		if( size > parent.length )
+		{
+			int n = Math.max( size, parent.length * 2 );
+			
+			parent = Arrays.copyOf( parent, n );
+			start  = Arrays.copyOf( start, n );
+			count  = Arrays.copyOf( count, n );
+			depth  = Arrays.copyOf( depth, n );
+			lox    = Arrays.copyOf( lox, n );
+			loy    = Arrays.copyOf( loy, n );
+			loz    = Arrays.copyOf( loz, n );
+		}
+	}
+	
+	/**
+	 * One part of the sort of the particles.
+	 */
+	protected class SortTask implements Callable<Object>
+	{
+		protected static final int KEYS = 0;
+		
+		protected static final int COUNT = 1;
+		
+		protected static final int SCATTER = 2;
+		
+		protected int from;
+		
+		protected int to;
+		
+		protected int phase;
+		
+		protected int shift;
+		
+		/**
+		 * Number of particles of the range by digit, then index where the
+		 * next particle of each digit goes.
+		 */
+		protected int[] histogram = new int[RADIX];
+		
+		public Object call()
+		{
+			if( phase == KEYS )
+			{
+				computeKeys( from, to );
+			}
+			else if( phase == COUNT )
+			{
+				Arrays.fill( histogram, 0 );
+				
+				for( int i=from; i<to; ++i )
+					histogram[(int)( keys[i] >>> shift ) & ( RADIX - 1 )]++;
+			}
+			else
+			{
+				for( int i=from; i<to; ++i )
+				{
+					int j = histogram[(int)( keys[i] >>> shift ) & ( RADIX - 1 )]++;
+					
+					keys2[j] = keys[i];
+					perm2[j] = perm[i];
+				}
+			}
+			
+			return null;
+		}
+	}
+}
@@ -1,6 +1,7 @@
 package org.miv.pherd.ntree;
 
 import java.util.*;
+import java.util.concurrent.*;
 import org.miv.pherd.*;
 import org.miv.pherd.geom.*;
 
@@ -26,9 +27,34 @@ public class NTree
 		/**
 		 * Resize the root cell and rebuild the tree.
 		 */
-		RESIZE
+		RESIZE,
+		/**
+		 * Make the root cell a child of a larger root cell, as many times as
+		 * needed, keeping the existing cells. If the cell space cannot grow
+		 * this is the same as RESIZE.
+		 */
+		GROW
 	};
 	
+	/**
+	 * Number of bits of the numeric cell identifiers used for the root
+	 * generation. The generation wraps, but the cells that still have codes
+	 * of the next generation receive codes of the current one before it
+	 * starts, therefore the codes of the existing cells never collide.
+	 */
+	protected static final int GENERATION_BITS = 8;
+	
+	/**
+	 * Number of distinct root generations in numeric cell identifiers.
+	 */
+	protected static final int GENERATIONS = 1 << GENERATION_BITS;
+	
+	/**
+	 * Number of bits of the numeric cell identifiers used for the path. One
+	 * bit is lost for the sign.
+	 */
+	protected static final int PATH_BITS = 63 - GENERATION_BITS;
+	
 // Attribute
 
 	/**
@@ -46,6 +72,64 @@ public class NTree
 	 */
 	protected int pmax = 10;
 	
+	/**
+	 * Number of particles under which the sub-cells of a cell are merged.
+	 * @see #setFusionThreshold(int)
+	 */
+	protected int fmax = 10;
+	
+	/**
+	 * Minimum number of checks a cell lives before being merged.
+	 * @see #setMinCellLifetime(int)
+	 */
+	protected int minLifetime = 0;
+	
+	/**
+	 * Number of calls to {@link #checkDivisions()}, used as the tree clock.
+	 */
+	protected int checks = 0;
+	
+	/**
+	 * Number of particles that left their leaf since the last check.
+	 */
+	protected int leafChanges = 0;
+	
+	/**
+	 * Number of particles that left their leaf before the last check.
+	 * @see #getLeafChanges()
+	 */
+	protected int lastLeafChanges = 0;
+	
+	/**
+	 * Number of checks between two full recomputations of the cell data in
+	 * incremental data mode, zero if the data is always fully recomputed.
+	 * @see #setIncrementalData(int)
+	 */
+	protected int incrementalPeriod = 0;
+	
+	/**
+	 * True in incremental data mode.
+	 */
+	protected boolean incremental = false;
+	
+	/**
+	 * True during a check where the data of all the cells is recomputed from
+	 * their particles or sub-cells.
+	 */
+	protected boolean fullRecompute = true;
+	
+	/**
+	 * True if the next check must recompute all the data, because the moves
+	 * did not allow to follow it.
+	 */
+	protected boolean fullRequested = false;
+	
+	/**
+	 * True while the particles are out of the tree.
+	 * @see #detach()
+	 */
+	protected boolean detached = false;
+	
 	/**
 	 * Maximum depth of the n-tree.
 	 */
@@ -58,8 +142,8 @@ public class NTree
 	
 	/**
 	 * How to handle particles that leave the universe initial bounding box.
-	 * If the mode is RESIZE, the universe is resized. Else the particle is
-	 * deleted.
+	 * If the mode is RESIZE or GROW, the universe is resized. Else the
+	 * particle is deleted.
 	 */
 	protected OutOfUniverseMode oum = OutOfUniverseMode.RESIZE;
 	
@@ -77,6 +161,149 @@ public class NTree
 	 */
 	protected Point3 min = new Point3(), max = new Point3();
 	
+	/**
+	 * The particles that left the root cell space since the last check, in
+	 * GROW mode.
+	 * @see #grow()
+	 */
+	protected ArrayList<Particle> escaped = new ArrayList<Particle>();
+	
+	/**
+	 * Number of times the root cell grew or shrank.
+	 */
+	protected int generation = 0;
+	
+	/**
+	 * Use numeric cell identifiers.
+	 * @see #setNumericCellIds(boolean)
+	 */
+	protected boolean numericIds = false;
+	
+	/**
+	 * Number of bits of a cell index in the locational codes.
+	 */
+	protected int codeBits;
+	
+	/**
+	 * Maximum depth allowed by the numeric identifiers.
+	 */
+	protected int codeDepthMax = Integer.MAX_VALUE;
+	
+	/**
+	 * The space of the root cell of each generation, the cells codes are
+	 * relative to it.
+	 * @see #getCellSpace(long)
+	 */
+	protected CellSpace[] rootSpaces = new CellSpace[GENERATIONS];
+	
+	/**
+	 * The number of levels under the root cell that must contain all the
+	 * particles before the root cell shrinks, zero if the root never shrinks.
+	 * @see #setShrinkPolicy(int, int, int)
+	 */
+	protected int shrinkDepth = 0;
+	
+	/**
+	 * Number of levels kept above the smallest cell containing all the
+	 * particles when the root shrinks.
+	 */
+	protected int shrinkMargin = 1;
+	
+	/**
+	 * Number of consecutive checks where the shrink condition must hold
+	 * before the root shrinks.
+	 */
+	protected int shrinkDelay = 10;
+	
+	/**
+	 * Number of consecutive checks where the shrink condition held.
+	 */
+	protected int shrinkCount = 0;
+	
+	/**
+	 * The cells that disappeared, kept to be reused.
+	 * @see #setCellPoolSize(int)
+	 */
+	protected ArrayList<Cell> freeCells = new ArrayList<Cell>();
+	
+	/**
+	 * Maximum number of cells in the pool, zero if cells are not reused.
+	 */
+	protected int poolSize = 0;
+	
+	/**
+	 * Number of cells taken from the pool.
+	 */
+	protected long poolHits = 0;
+	
+	/**
+	 * Number of cells allocated because the pool was empty.
+	 */
+	protected long poolMisses = 0;
+	
+	/**
+	 * The thread pool used to recompute the cells, or null if the
+	 * recomputation is sequential.
+	 * @see #setParallelRecompute(ExecutorService, int)
+	 */
+	protected ExecutorService recomputePool = null;
+	
+	/**
+	 * Population of the subtrees recomputed by one task.
+	 */
+	protected int recomputeGrain = 10000;
+	
+	/**
+	 * Cells above the subtrees recomputed by tasks, in post-order.
+	 */
+	protected ArrayList<Cell> recomputeUpper = new ArrayList<Cell>();
+	
+	/**
+	 * For each cell of {@link #recomputeUpper}, the number of subtrees of
+	 * {@link #recomputeRoots} recomputed before it by a sequential recompute.
+	 */
+	protected int[] recomputeMarks = new int[16];
+	
+	/**
+	 * Roots of the subtrees recomputed by tasks.
+	 */
+	protected ArrayList<Cell> recomputeRoots = new ArrayList<Cell>();
+	
+	/**
+	 * The recompute tasks, reused at each check.
+	 */
+	protected ArrayList<RecomputeTask> recomputeTasks = new ArrayList<RecomputeTask>();
+	
+	/**
+	 * True while the recompute tasks record the events of their cells.
+	 * @see #getListeners()
+	 */
+	protected boolean recording = false;
+	
+	/**
+	 * The event recorder of the recompute task run by the current thread.
+	 */
+	protected ThreadLocal<ArrayList<NTreeListener>> taskListeners = new ThreadLocal<ArrayList<NTreeListener>>();
+	
+	/**
+	 * The walker used by the Barnes-Hut methods of this tree, created when
+	 * first needed.
+	 * @see #barnesHut(double, BarnesHutKernel)
+	 */
+	protected BarnesHutWalker walker;
+	
+	/**
+	 * One heap per thread for the k-nearest neighbours queries.
+	 * @see #kNearest(double, double, double, int, ParticleVisitor)
+	 */
+	protected ThreadLocal<ParticleHeap> heaps = new ThreadLocal<ParticleHeap>() {
+		@Override
+		protected ParticleHeap initialValue()
+		{
+			return new ParticleHeap();
+		}
+	};
+	
 // Construction
 
 	/**
@@ -104,11 +331,13 @@ public class NTree
 	public NTree( int pmax, CellSpace space, CellData data, ParticleBox pbox )
 	{
 		this.pmax   = pmax;
+		this.fmax   = pmax;
 		this.pbox   = pbox;
-		this.laMama = new Cell( this, space, "laMama", data );		
+		this.codeBits = 32 - Integer.numberOfLeadingZeros( space.getDivisions() - 1 );
+		this.laMama   = new Cell( this, space, "laMama", data );		
 		
-		min.copy( space.lo );
-		max.copy( space.hi );
+		min.set( space.lox, space.loy, space.loz );
+		max.set( space.hix, space.hiy, space.hiz );
 	}
 	
 // Access
@@ -123,6 +352,95 @@ public class NTree
 		return laMama;
 	}
 	
+	/**
+	 * True if the cells identifiers are Long locational codes.
+	 * @return True if numeric identifiers are used.
+	 * @see #setNumericCellIds(boolean)
+	 */
+	public boolean hasNumericCellIds()
+	{
+		return numericIds;
+	}
+	
+	/**
+	 * Depth of a cell given its numeric identifier, relative to the root of
+	 * the generation the identifier was given in. This is the depth the cell
+	 * had then, the cells keep their identifiers when the root grows or
+	 * shrinks.
+	 * @param id The cell numeric identifier.
+	 * @return The depth.
+	 * @see #setNumericCellIds(boolean)
+	 */
+	public int getCellDepth( long id )
+	{
+		long path = id & ( ( 1L << PATH_BITS ) - 1 );
+		
+		return ( 63 - Long.numberOfLeadingZeros( path ) ) / codeBits;
+	}
+	
+	/**
+	 * Space of a cell given its numeric identifier. This is computed from the
+	 * space of the root of the generation the identifier was given in,
+	 * therefore it works for identifiers that are not used anymore, as long
+	 * as there were less than 256 changes of the root since.
+	 * @param id The cell numeric identifier.
+	 * @return A new cell space, or null if the generation is unknown.
+	 * @see #setNumericCellIds(boolean)
+	 */
+	public CellSpace getCellSpace( long id )
+	{
+		CellSpace space = rootSpaces[(int)( id >>> PATH_BITS ) & ( GENERATIONS - 1 )];
+		long      path  = id & ( ( 1L << PATH_BITS ) - 1 );
+		int       mask  = ( 1 << codeBits ) - 1;
+		
+		if( space == null )
+			return null;
+		
+		for( int shift=getCellDepth( id )*codeBits-codeBits; shift>=0; shift-=codeBits )
+			space = space.newSubCellSpace( (int)( path >>> shift ) & mask );
+		
+		return space;
+	}
+	
+	/**
+	 * Maximum number of cells kept for reuse.
+	 * @return The pool size, zero if cells are not reused.
+	 * @see #setCellPoolSize(int)
+	 */
+	public int getCellPoolSize()
+	{
+		return poolSize;
+	}
+	
+	/**
+	 * Number of new cells that were taken from the pool.
+	 * @return The pool hit count.
+	 */
+	public long getCellPoolHits()
+	{
+		return poolHits;
+	}
+	
+	/**
+	 * Number of new cells that were allocated since the pool was empty.
+	 * @return The pool miss count.
+	 */
+	public long getCellPoolMisses()
+	{
+		return poolMisses;
+	}
+	
+	/**
+	 * Ratio of new cells taken from the pool.
+	 * @return The pool hit rate between 0 and 1, or 0 if no cell was created.
+	 */
+	public double getCellPoolHitRate()
+	{
+		long n = poolHits + poolMisses;
+		
+		return n > 0 ? (double)poolHits / n : 0;
+	}
+	
 	/**
 	 * Maximum number of particles per cell. If a cell contains more particles
 	 * it subdivides itself.
@@ -133,6 +451,26 @@ public class NTree
 		return pmax;
 	}
 	
+	/**
+	 * Number of particles under which (included) a cell merges its sub-cells.
+	 * @return The fusion threshold.
+	 * @see #setFusionThreshold(int)
+	 */
+	public int getFusionThreshold()
+	{
+		return fmax;
+	}
+	
+	/**
+	 * Minimum number of checks a cell lives before being merged.
+	 * @return The minimum cell lifetime.
+	 * @see #setMinCellLifetime(int)
+	 */
+	public int getMinCellLifetime()
+	{
+		return minLifetime;
+	}
+	
 	/**
 	 * Maximum number of subdivisions of a cell.
 	 * @return The maximum depth of the tree.
@@ -143,11 +481,64 @@ public class NTree
 	}
 	
 	/**
-	 * The set of listeners of this tree.
+	 * Number of particles that left their leaf during the moves that
+	 * preceded the last {@link #checkDivisions()}.
+	 * @return The number of particles that changed of leaf.
+	 */
+	public int getLeafChanges()
+	{
+		return lastLeafChanges;
+	}
+	
+	/**
+	 * Number of checks between two full recomputations of the cell data.
+	 * @return The period, zero if not in incremental data mode.
+	 * @see #setIncrementalData(int)
+	 */
+	public int getIncrementalDataPeriod()
+	{
+		return incrementalPeriod;
+	}
+	
+	/**
+	 * True during a check where the data of all the cells must be recomputed
+	 * from their particles or sub-cells. This is always the case when not in
+	 * incremental data mode.
+	 * @return True if the cell data must not rely on the accumulated sums.
+	 * @see IncrementalCellData
+	 */
+	public boolean isFullRecompute()
+	{
+		return fullRecompute;
+	}
+	
+	/**
+	 * True if the tree does not hold the particles.
+	 * @return True between {@link #detach()} and {@link #attach()}.
+	 */
+	public boolean isDetached()
+	{
+		return detached;
+	}
+	
+	/**
+	 * The set of listeners of this tree. While the cells are recomputed in
+	 * parallel, in the threads of the tasks, this is a recorder of the
+	 * events of the task, which are sent to the listeners once the tasks
+	 * are finished. The cell data must use this to send events.
 	 * @return The listeners.
+	 * @see #setParallelRecompute(ExecutorService, int)
 	 */
 	public ArrayList<NTreeListener> getListeners()
 	{
+		if( recording )
+		{
+			ArrayList<NTreeListener> recorder = taskListeners.get();
+			
+			if( recorder != null )
+				return recorder;
+		}
+		
 		return listeners;
 	}
 	
@@ -192,9 +583,172 @@ public class NTree
 		assert max > 0 : "invalid max depth";
 		
 		this.depthmax = max;
+		laMama.invalidate();
 		laMama.recompute();
 	}
 	
+	/**
+	 * Identify the cells by Long locational codes instead of strings. The
+	 * code of a cell is built from the index of each cell on the path from
+	 * the root, with a leading one bit, therefore it is computed without
+	 * allocating strings and can be decoded back to the cell depth and space
+	 * (see {@link #getCellDepth(long)} and {@link #getCellSpace(long)}). The
+	 * highest bits hold the root generation. When the root grows or shrinks
+	 * the kept cells keep their codes, which are decoded against the root
+	 * of their generation. Only when the generation wraps, the cells that
+	 * still have codes of the generation to reuse receive the codes of their
+	 * path under the current root, and the listeners see them moved with
+	 * their new identifier (see {@link CellMove}). The codes have 55 bits for the path, this
+	 * limits the depth of the tree to 18 for an octree and 27 for a quadtree.
+	 * This can only be changed while the root cell is a leaf. The listeners
+	 * see the root removed and added again with its new identifier.
+	 * @param on True to use numeric identifiers.
+	 */
+	public void setNumericCellIds( boolean on )
+	{
+		if( ! laMama.isLeaf() )
+			throw new RuntimeException( "cannot change the cell identifiers once the root cell is subdivided" );
+		
+		if( on == numericIds )
+			return;
+		
+		for( NTreeListener listener: listeners )
+			listener.cellRemoved( laMama.id );
+		
+		numericIds   = on;
+		codeDepthMax = on ? PATH_BITS / codeBits : Integer.MAX_VALUE;
+		laMama.id    = newRootId();
+		
+		setRootSpace( laMama.space );
+		
+		for( NTreeListener listener: listeners )
+			listener.cellAdded( laMama.id, "", laMama.space.getLoAnchor(), laMama.space.getHiAnchor(), 0, laMama.index );
+	}
+	
+	/**
+	 * Update the data of the cells from the moves of the particles instead of
+	 * recomputing it from all their particles or sub-cells. The cell data
+	 * must implement {@link IncrementalCellData}: each addition, removal or
+	 * move of a particle gives its change to the data of all the cells of its
+	 * branch, and the recompute of a cell then costs the same whatever its
+	 * population. Only the branches of the particles that moved are
+	 * recomputed. To bound the accumulation of rounding errors, the data of
+	 * all the cells is fully recomputed every period checks, and at the next
+	 * check after a change the moves do not describe (the root cell growing
+	 * for example).
+	 * @param period The number of checks between two full recomputations, 0
+	 * to always recompute fully.
+	 */
+	public void setIncrementalData( int period )
+	{
+		if( period < 0 )
+			throw new RuntimeException( "negative full recompute period" );
+		
+		incrementalPeriod = period;
+		incremental       = period > 0;
+		fullRequested     = true;
+	}
+	
+	/**
+	 * Recompute the cells in several tasks run in the given thread pool. The
+	 * dirty subtrees whose population is below the grain are each recomputed
+	 * by one task, several small subtrees being grouped in a task. The cells
+	 * above them are recomputed afterward, sequentially, each from its
+	 * sub-cells in index order. The data of a cell is therefore always
+	 * computed in the same order whatever the number of threads, and the
+	 * results are reproducible. The cell data must not depend on other
+	 * cells than its sub-cells. The events of the cells recomputed by a task
+	 * are recorded (see {@link #getListeners()}), and sent to the listeners
+	 * after the tasks, in the order of a sequential recomputation. With
+	 * listeners and a cell pool the recomputation stays sequential, since
+	 * the data of a removed cell could be reused before its events are sent.
+	 * @param pool The thread pool, or null to recompute sequentially.
+	 * @param grain The population of the subtrees given to one task.
+	 */
+	public void setParallelRecompute( ExecutorService pool, int grain )
+	{
+		if( grain < 1 )
+			throw new RuntimeException( "the recompute grain must be at least one particle" );
+		
+		recomputePool  = pool;
+		recomputeGrain = grain;
+	}
+	
+	/**
+	 * Keep at most the given number of cells that disappeared by fusion, to
+	 * reuse them at the next subdivisions instead of allocating new ones. The
+	 * cell data is reused with its cell only if it is a
+	 * {@link RecyclableCellData}. The default is zero, no cell is kept: only
+	 * enable the pool if no listener keeps references on the cell data it
+	 * receives, since reused data changes.
+	 * @param size The maximum number of cells kept.
+	 * @see #getCellPoolHitRate()
+	 */
+	public void setCellPoolSize( int size )
+	{
+		poolSize = Math.max( size, 0 );
+		
+		while( freeCells.size() > poolSize )
+			freeCells.remove( freeCells.size() - 1 );
+	}
+	
+	/**
+	 * Set the number of particles under which (included) a cell merges its
+	 * sub-cells. By default this is the maximum number of particles per cell,
+	 * a cell therefore splits and merges at the same population. A lower
+	 * value avoids cells that split and merge again and again when particles
+	 * oscillate around a cell boundary.
+	 * @param threshold The fusion threshold, between zero and the maximum
+	 * number of particles per cell.
+	 */
+	public void setFusionThreshold( int threshold )
+	{
+		if( threshold < 0 || threshold > pmax )
+			throw new RuntimeException( "the fusion threshold ("+threshold+") must be between 0 and the maximum particles per cell ("+pmax+")" );
+		
+		fmax = threshold;
+	}
+	
+	/**
+	 * Set the minimum number of checks (see {@link #checkDivisions()}, done
+	 * at each step of the particle box) a cell lives before it can be merged
+	 * with its siblings. The default is zero.
+	 * @param checks The minimum cell lifetime.
+	 */
+	public void setMinCellLifetime( int checks )
+	{
+		minLifetime = checks;
+	}
+	
+	/**
+	 * Make the root cell shrink when all the particles stay in a small part
+	 * of it. When, after a check of the tree, all the particles are in a
+	 * single cell at least <code>depth</code> levels under the root, and
+	 * this for <code>delay</code> consecutive checks, the root is replaced
+	 * by the ancestor of this cell <code>margin</code> levels above it. The
+	 * other cells are removed. The margin gives some room to the particles
+	 * before the root must grow again, and since after shrinking the
+	 * particles are only <code>margin</code> levels under the root, the tree
+	 * does not shrink again immediately. The root never shrinks in DELETE
+	 * mode, since its space is the limit of the universe.
+	 * @param depth The minimum number of levels between the root and the
+	 * cell containing all the particles, zero to never shrink.
+	 * @param margin The number of levels kept, less than depth.
+	 * @param delay The number of consecutive checks (usually steps) where the
+	 * condition must hold.
+	 * @see #setOutOfUniverseMode(OutOfUniverseMode)
+	 */
+	public void setShrinkPolicy( int depth, int margin, int delay )
+	{
+		if( depth > 0 && ( margin < 0 || margin >= depth ) )
+			throw new RuntimeException( "the shrink margin ("+margin+") must be less than the shrink depth ("+depth+")" );
+		
+		shrinkDepth  = depth;
+		shrinkMargin = margin;
+		shrinkDelay  = delay;
+		shrinkCount  = 0;
+	}
+	
 	/**
 	 * Add a listener that will receive events abound the ntree.
 	 * @param listener The listener to add.
@@ -221,11 +775,17 @@ public class NTree
 	
 	/**
 	 * Send events for all already existing cells to the newly added listener.
+	 * While the tree is detached its root was signalled as removed, if the
+	 * particle box rebuilds a linear tree instead, sharing the listeners of
+	 * this tree, the nodes of this linear tree are sent.
 	 * @param listener The newly added listener.
 	 */
 	protected void describeTheCurrentState( NTreeListener listener )
 	{
-		laMama.describe( listener );
+		if( ! detached )
+			laMama.describe( listener );
+		else if( pbox != null && pbox.isRebuildingTree() )
+			pbox.getLinearNTree().describe( listener );
 	}
 	
 	/**
@@ -242,7 +802,7 @@ public class NTree
 		// space, hence the test for null.
 		
 		if( cell != null )
-			cell.removeParticle( particle.getId() );
+			cell.removeParticle( particle );
 	}
 	
 	/**
@@ -251,6 +811,9 @@ public class NTree
 	 */
 	public void addParticle( Particle particle )
 	{
+		if( detached )
+			return;
+		
 		// If the tree (root cell) space is not large enough to
 		// contain the particle, we must first enlarge it.
 		
@@ -267,35 +830,194 @@ public class NTree
 	}
 	
 	/**
-	 * Recursively check if cells need subdivision or fusion. In some case if
-	 * some particles left the root cell space and the policy is to resize this
-	 * space, instead of checking divisions or fusions, this method recomputes
-	 * the whole tree and resizes its space.
+	 * Take all the particles of the particle box out of the tree and remove
+	 * all the cells, the root included, signalling it to the listeners. The
+	 * tree then ignores the particles until {@link #attach()}. This is used
+	 * by the particle box when the tree is built by another engine.
+	 * @see ParticleBox#setTreeMode(ParticleBox.TreeMode)
 	 */
-	public void checkDivisions()
+	public void detach()
 	{
-		if( needResize )
+		if( detached )
+			return;
+		
+		for( int i=pbox.getParticleCount()-1; i>=0; --i )
+			removeParticle( pbox.getParticleAt( i ) );
+		
+		if( laMama.sub != null )
 		{
-			// Either double the current space or (if larger) use the computed
-			// min and max values.
-			
-			CellSpace space = laMama.getSpace();
-
-			double dbMinX = space.lo.x - (double)Math.abs( space.lo.x );
-			double dbMinY = space.lo.y - (double)Math.abs( space.lo.y );
-			double dbMinZ = space.lo.z - (double)Math.abs( space.lo.z );
+			for( Cell cell: laMama.sub )
+				cell.removeSubtree();
 			
-			double dbMaxX = space.hi.x + (double)Math.abs( space.hi.x );
-			double dbMaxY = space.hi.y + (double)Math.abs( space.hi.y );
-			double dbMaxZ = space.hi.z + (double)Math.abs( space.hi.z );
-
-			if( min.x > dbMinX ) min.x = dbMinX;
-			if( min.y > dbMinY ) min.y = dbMinY;
-			if( min.z > dbMinZ ) min.z = dbMinZ;
-			
-			if( max.x < dbMaxX ) max.x = dbMaxX;
-			if( max.y < dbMaxY ) max.y = dbMaxY;
-			if( max.z < dbMaxZ ) max.z = dbMaxZ;
+			laMama.sub = null;
+		}
+		
+		for( NTreeListener listener: listeners )
+			listener.cellRemoved( laMama.id );
+		
+		escaped.clear();
+		
+		needResize      = false;
+		leafChanges     = 0;
+		lastLeafChanges = 0;
+		detached        = true;
+	}
+	
+	/**
+	 * Signal the root cell to the listeners again and put back all the
+	 * particles of the particle box in the tree.
+	 * @see #detach()
+	 */
+	public void attach()
+	{
+		if( ! detached )
+			return;
+		
+		detached      = false;
+		fullRequested = true;
+		
+		laMama.markDirty();
+		
+		// The particles may have left the root cell while detached. There
+		// are no cells to keep, the root cell space is simply enlarged.
+		
+		for( int i=pbox.getParticleCount()-1; i>=0; --i )
+		{
+			Particle particle = pbox.getParticleAt( i );
+			
+			if( ! laMama.contains( particle ) )
+			{
+				if( oum == OutOfUniverseMode.DELETE )
+				     delete( particle );
+				else resize( particle );
+			}
+		}
+		
+		if( needResize )
+		{
+			CellSpace space = laMama.space;
+			
+			min.set( Math.min( min.x, space.lox ), Math.min( min.y, space.loy ), Math.min( min.z, space.loz ) );
+			max.set( Math.max( max.x, space.hix ), Math.max( max.y, space.hiy ), Math.max( max.z, space.hiz ) );
+			
+			double dx = ( max.x - min.x ) * 0.001f;
+			double dy = ( max.y - min.y ) * 0.001f;
+			double dz = ( max.z - min.z ) * 0.001f;
+			
+			max.x += dx; min.x -= dx;
+			max.y += dy; min.y -= dy;
+			max.z += dz; min.z -= dz;
+			
+			space.resize( min, max );
+			
+			if( numericIds )
+			{
+				generation++;
+				setRootSpace( space );
+				
+				laMama.id    = newRootId();
+				laMama.index = -generation;
+			}
+			
+			needResize = false;
+			escaped.clear();
+		}
+		
+		for( NTreeListener listener: listeners )
+			listener.cellAdded( laMama.id, "", laMama.space.getLoAnchor(), laMama.space.getHiAnchor(), 0, laMama.index );
+		
+		for( int i=0; i<pbox.getParticleCount(); ++i )
+			addParticle( pbox.getParticleAt( i ) );
+		
+		checkDivisions();
+	}
+	
+	/**
+	 * Change the space of the root cell while the tree is detached, so that
+	 * the next {@link #attach()} builds the cells in it, for example to
+	 * restore the cells of a saved tree. The particles outside of it
+	 * enlarge it when attaching.
+	 * @param min The lowest point of the root cell.
+	 * @param max The highest point of the root cell.
+	 */
+	public void resizeRoot( Point3 min, Point3 max )
+	{
+		if( ! detached )
+			throw new RuntimeException( "the root cell can only be resized while the tree is detached" );
+		
+		laMama.space.resize( min, max );
+		
+		if( numericIds )
+		{
+			generation++;
+			setRootSpace( laMama.space );
+			
+			laMama.id    = newRootId();
+			laMama.index = -generation;
+		}
+	}
+	
+	/**
+	 * Recursively check if cells need subdivision or fusion. In some case if
+	 * some particles left the root cell space and the policy is to resize this
+	 * space, instead of checking divisions or fusions, this method recomputes
+	 * the whole tree and resizes its space. Only the subtrees whose contents
+	 * changed since the last check are visited.
+	 * @see Cell#markDirty()
+	 */
+	public void checkDivisions()
+	{
+		if( detached )
+			return;
+		
+		checks++;
+		
+		lastLeafChanges = leafChanges;
+		leafChanges     = 0;
+		
+		if( incremental )
+		{
+			// Growing or resizing the root creates cells whose data cannot
+			// follow from the moves.
+			
+			fullRecompute = fullRequested || needResize || checks % incrementalPeriod == 0;
+			fullRequested = false;
+			
+			if( fullRecompute )
+				laMama.invalidate();
+		}
+		else
+		{
+			fullRecompute = true;
+		}
+		
+		if( needResize && oum == OutOfUniverseMode.GROW && grow() )
+		{
+			needResize = false;
+			recompute();
+		}
+		else if( needResize )
+		{
+			// Either double the current space or (if larger) use the computed
+			// min and max values.
+			
+			CellSpace space = laMama.getSpace();
+
+			double dbMinX = space.lox - (double)Math.abs( space.lox );
+			double dbMinY = space.loy - (double)Math.abs( space.loy );
+			double dbMinZ = space.loz - (double)Math.abs( space.loz );
+			
+			double dbMaxX = space.hix + (double)Math.abs( space.hix );
+			double dbMaxY = space.hiy + (double)Math.abs( space.hiy );
+			double dbMaxZ = space.hiz + (double)Math.abs( space.hiz );
+
+			if( min.x > dbMinX ) min.x = dbMinX;
+			if( min.y > dbMinY ) min.y = dbMinY;
+			if( min.z > dbMinZ ) min.z = dbMinZ;
+			
+			if( max.x < dbMaxX ) max.x = dbMaxX;
+			if( max.y < dbMaxY ) max.y = dbMaxY;
+			if( max.z < dbMaxZ ) max.z = dbMaxZ;
 
 			// Resize a little larger so that contains always work (since it tests for < and *>=*).
 
@@ -312,15 +1034,143 @@ public class NTree
 			laMama.resize( min, max );	// This does the recompute.
 			
 			needResize = false;
+			escaped.clear();
 		}
 		else
 		{
-			laMama.recompute();
+			recompute();
+			
+			if( shrinkDepth > 0 && oum != OutOfUniverseMode.DELETE )
+				checkShrink();
 		}
 		
 		assert isValid();
 	}
 	
+	/**
+	 * Recompute the dirty cells, in parallel if possible.
+	 * @see #setParallelRecompute(ExecutorService, int)
+	 */
+	protected void recompute()
+	{
+		boolean record = ! listeners.isEmpty();
+		
+		if( recomputePool == null || ( record && poolSize > 0 ) || laMama.sub == null || ! laMama.dirty
+		 || laMama.population < recomputeGrain * 2 )
+		{
+			laMama.recompute();
+			return;
+		}
+		
+		recomputeUpper.clear();
+		recomputeRoots.clear();
+		
+		splitRecompute( laMama );
+		
+		// Group the small subtrees so that each task has about the grain
+		// population.
+		
+		int tasks = 0;
+		int from  = 0;
+		int pop   = 0;
+		int n     = recomputeRoots.size();
+		
+		for( int i=0; i<n; ++i )
+		{
+			pop += recomputeRoots.get( i ).population;
+			
+			if( pop >= recomputeGrain || i == n - 1 )
+			{
+				if( recomputeTasks.size() <= tasks )
+					recomputeTasks.add( new RecomputeTask() );
+				
+				RecomputeTask task = recomputeTasks.get( tasks++ );
+				task.from = from;
+				task.to   = i + 1;
+				from      = i + 1;
+				pop       = 0;
+			}
+		}
+		
+		recording = record;
+		
+		try
+		{
+			for( Future<Object> f: recomputePool.invokeAll( recomputeTasks.subList( 0, tasks ) ) )
+				f.get();
+		}
+		catch( ExecutionException e )
+		{
+			if( e.getCause() instanceof RuntimeException )
+				throw (RuntimeException) e.getCause();
+			
+			throw new RuntimeException( "cell recompute failed", e.getCause() );
+		}
+		catch( InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException( "interrupted during the cell recompute", e );
+		}
+		finally
+		{
+			recording = false;
+		}
+		
+		// The events of each subtree are sent just before the cell above it
+		// that a sequential recompute would check next.
+		
+		int t = 0;
+		int r = 0;
+		
+		for( int u=0; u<recomputeUpper.size(); ++u )
+		{
+			if( record )
+			{
+				for( ; r<recomputeMarks[u]; ++r )
+				{
+					while( recomputeTasks.get( t ).to <= r )
+						recomputeTasks.get( t++ ).events.clear();
+					
+					recomputeTasks.get( t ).replay( r );
+				}
+			}
+			
+			recomputeUpper.get( u ).recomputeCell();
+		}
+		
+		if( record )
+			recomputeTasks.get( t ).events.clear();
+		
+		recomputeRoots.clear();
+		recomputeUpper.clear();
+	}
+	
+	/**
+	 * Split the dirty subtree of a large non-leaf cell between the tasks
+	 * and the cells recomputed afterward.
+	 */
+	protected void splitRecompute( Cell cell )
+	{
+		for( Cell s: cell.sub )
+		{
+			if( s.dirty )
+			{
+				if( s.sub != null && s.population >= recomputeGrain )
+				     splitRecompute( s );
+				else recomputeRoots.add( s );
+			}
+		}
+		
+		int u = recomputeUpper.size();
+		
+		if( u >= recomputeMarks.length )
+			recomputeMarks = Arrays.copyOf( recomputeMarks, u * 2 );
+		
+		recomputeMarks[u] = recomputeRoots.size();
+		
+		recomputeUpper.add( cell );
+	}
+	
 	/**
 	 * Generate an identifier for a cell given its parent and index in this parent.
 	 * This method generates a unique path of the index of each parent cell.
@@ -352,10 +1202,308 @@ public class NTree
 		return sb.toString();
 	}
 	
+	/**
+	 * A new sub-cell, taken from the pool if possible.
+	 * @param parent The parent cell.
+	 * @param index The cell index in its parent.
+	 * @param space The space of the cell.
+	 * @return The cell.
+	 */
+	protected synchronized Cell newCell( Cell parent, int index, CellSpace space )
+	{
+		int n = freeCells.size();
+		
+		if( n > 0 )
+		{
+			Cell     cell = freeCells.remove( n - 1 );
+			CellData data = cell.data;
+			
+			if( data == null && parent.data != null )
+				data = parent.data.newCellData();
+			
+			cell.init( parent, index, space, data );
+			poolHits++;
+			
+			return cell;
+		}
+		
+		if( poolSize > 0 )
+			poolMisses++;
+		
+		return new Cell( parent, index, space, parent.data != null ? parent.data.newCellData() : null );
+	}
+	
+	/**
+	 * A cell disappeared, keep it in the pool if there is room.
+	 * @param cell The cell, no more in the tree.
+	 */
+	protected synchronized void releaseCell( Cell cell )
+	{
+		if( freeCells.size() < poolSize )
+		{
+			cell.clear();
+			freeCells.add( cell );
+		}
+	}
+	
+	/**
+	 * Numeric identifier of a cell given its locational code under the
+	 * current root.
+	 * @param path The cell locational code.
+	 * @return The cell identifier.
+	 */
+	protected Long cellCode( long path )
+	{
+		return( ( (long)( generation & ( GENERATIONS - 1 ) ) << PATH_BITS ) | path );
+	}
+	
+	/**
+	 * Remember the space of the root of the current generation, used to
+	 * decode the numeric cell identifiers. A copy is kept, since the root
+	 * space may be resized in place for the next generation.
+	 * @param space The root cell space.
+	 */
+	protected void setRootSpace( CellSpace space )
+	{
+		rootSpaces[generation & ( GENERATIONS - 1 )] = space.copy();
+	}
+	
+	/**
+	 * Give the cells whose numeric identifiers belong to the next generation
+	 * the codes of their path under the current root, so that the next
+	 * generation can reuse its slot without collisions. This is called once
+	 * the root changed, and walks the tree only once the generation wrapped.
+	 */
+	protected void reissueCodes()
+	{
+		if( numericIds && generation >= GENERATIONS - 1 )
+			reissueCodes( laMama, ( generation + 1 ) & ( GENERATIONS - 1 ) );
+	}
+	
+	/**
+	 * Recursively give new codes to the cells of the given generation, the
+	 * parents first so that the moves sent to the listeners give the new
+	 * identifiers of the parents.
+	 * @param cell The starting cell.
+	 * @param old The generation whose codes are replaced.
+	 */
+	protected void reissueCodes( Cell cell, int old )
+	{
+		long code = (Long) cell.id;
+		
+		if( (int)( code >>> PATH_BITS ) == old )
+		{
+			cell.id = cellCode( cell.path );
+			cell.fireMoved( code );
+		}
+		
+		if( cell.sub != null )
+		{
+			for( Cell sub: cell.sub )
+				reissueCodes( sub, old );
+		}
+	}
+	
+	/**
+	 * Identifier for the root cell of the current generation.
+	 * @return A String or a Long.
+	 */
+	protected Object newRootId()
+	{
+		if( numericIds )
+			return cellCode( 1 );
+		
+		return( generation == 0 ? "laMama" : "laMama"+generation );
+	}
+	
+	/**
+	 * Compute the interactions between all the particles of the tree using
+	 * a Barnes-Hut approximation. Particles are processed leaf by leaf, each
+	 * leaf sharing one interaction list. The cell data must be instances of
+	 * {@link BarycenterCellData}.
+	 * @param theta The opening criterion, the ratio cell size / distance
+	 * under which a cell is approximated by its barycenter.
+	 * @param kernel The interaction.
+	 * @see BarnesHutWalker
+	 */
+	public void barnesHut( double theta, BarnesHutKernel kernel )
+	{
+		getWalker( theta ).walk( kernel );
+	}
+	
+	/**
+	 * Like {@link #barnesHut(double, BarnesHutKernel)} but for only one particle. This uses
+	 * a walker shared by the tree and must not be used from several threads,
+	 * create one {@link BarnesHutWalker} per thread instead.
+	 * @param particle The particle that receives the interactions.
+	 * @param theta The opening criterion.
+	 * @param kernel The interaction.
+	 */
+	public void barnesHut( Particle particle, double theta, BarnesHutKernel kernel )
+	{
+		getWalker( theta ).walk( particle, kernel );
+	}
+	
+	/**
+	 * The shared walker, set to the given criterion.
+	 */
+	protected BarnesHutWalker getWalker( double theta )
+	{
+		if( walker == null )
+		     walker = new BarnesHutWalker( this, theta );
+		else walker.setTheta( theta );
+		
+		return walker;
+	}
+	
+	/**
+	 * The k particles nearest to a point.
+	 * @param x The point abscissa.
+	 * @param y The point ordinate.
+	 * @param z The point depth.
+	 * @param k The maximum number of particles to return.
+	 * @return The particles, ordered by increasing distance to the point.
+	 */
+	public List<Particle> kNearest( double x, double y, double z, int k )
+	{
+		final ArrayList<Particle> result = new ArrayList<Particle>( k );
+		
+		kNearest( x, y, z, k, new ParticleVisitor() {
+			public void visit( Particle particle ) { result.add( particle ); }
+		} );
+		
+		return result;
+	}
+	
+	/**
+	 * Visit the k particles nearest to a point, by increasing distance. The
+	 * search only enters the cells nearer than the k-th nearest particle
+	 * found so far. This method can be called from several threads as long
+	 * as the tree is not modified, but the visitor must not itself run a
+	 * k-nearest query.
+	 * @param x The point abscissa.
+	 * @param y The point ordinate.
+	 * @param z The point depth.
+	 * @param k The maximum number of particles to visit.
+	 * @param visitor The callback receiving the particles.
+	 * @return The number of particles visited.
+	 */
+	public int kNearest( double x, double y, double z, int k, ParticleVisitor visitor )
+	{
+		ParticleHeap heap = heaps.get();
+		
+		heap.reset( k );
+		
+		if( k > 0 )
+			nearest( laMama, x, y, z, heap );
+		
+		heap.sort();
+		
+		int n = heap.size;
+		
+		for( int i=0; i<n; ++i )
+			visitor.visit( heap.particles[i] );
+		
+		heap.reset( 0 );
+		
+		return n;
+	}
+	
+	/**
+	 * The particles at a distance less than or equal to r from a point.
+	 * @param x The point abscissa.
+	 * @param y The point ordinate.
+	 * @param z The point depth.
+	 * @param r The radius.
+	 * @return The particles, in no particular order.
+	 */
+	public List<Particle> withinRadius( double x, double y, double z, double r )
+	{
+		final ArrayList<Particle> result = new ArrayList<Particle>();
+		
+		withinRadius( x, y, z, r, new ParticleVisitor() {
+			public void visit( Particle particle ) { result.add( particle ); }
+		} );
+		
+		return result;
+	}
+	
+	/**
+	 * Visit the particles at a distance less than or equal to r from a point.
+	 * Only the cells that intersect the sphere are entered. This method can
+	 * be called from several threads as long as the tree is not modified.
+	 * @param x The point abscissa.
+	 * @param y The point ordinate.
+	 * @param z The point depth.
+	 * @param r The radius.
+	 * @param visitor The callback receiving the particles.
+	 * @return The number of particles visited.
+	 */
+	public int withinRadius( double x, double y, double z, double r, ParticleVisitor visitor )
+	{
+		return within( laMama, x, y, z, r*r, visitor );
+	}
+	
+	/**
+	 * The particles whose position is inside a box, bounds included.
+	 * @param lx The box lowest abscissa.
+	 * @param ly The box lowest ordinate.
+	 * @param lz The box lowest depth.
+	 * @param hx The box highest abscissa.
+	 * @param hy The box highest ordinate.
+	 * @param hz The box highest depth.
+	 * @return The particles, in no particular order.
+	 */
+	public List<Particle> withinBox( double lx, double ly, double lz, double hx, double hy, double hz )
+	{
+		final ArrayList<Particle> result = new ArrayList<Particle>();
+		
+		withinBox( lx, ly, lz, hx, hy, hz, new ParticleVisitor() {
+			public void visit( Particle particle ) { result.add( particle ); }
+		} );
+		
+		return result;
+	}
+	
+	/**
+	 * Visit the particles whose position is inside a box, bounds included.
+	 * The cells entirely inside the box are accepted in bulk without testing
+	 * their particles, the cells outside of it are skipped. This method can
+	 * be called from several threads as long as the tree is not modified.
+	 * @param lx The box lowest abscissa.
+	 * @param ly The box lowest ordinate.
+	 * @param lz The box lowest depth.
+	 * @param hx The box highest abscissa.
+	 * @param hy The box highest ordinate.
+	 * @param hz The box highest depth.
+	 * @param visitor The callback receiving the particles.
+	 * @return The number of particles visited.
+	 */
+	public int withinBox( double lx, double ly, double lz, double hx, double hy, double hz, ParticleVisitor visitor )
+	{
+		return inBox( laMama, lx, ly, lz, hx, hy, hz, visitor );
+	}
+	
+	/**
+	 * Like {@link #withinBox(double, double, double, double, double, double, ParticleVisitor)}
+	 * with a box that has no depth bounds, for example a 2D viewport.
+	 * @param lx The box lowest abscissa.
+	 * @param ly The box lowest ordinate.
+	 * @param hx The box highest abscissa.
+	 * @param hy The box highest ordinate.
+	 * @param visitor The callback receiving the particles.
+	 * @return The number of particles visited.
+	 */
+	public int withinBox( double lx, double ly, double hx, double hy, ParticleVisitor visitor )
+	{
+		return inBox( laMama, lx, ly, Double.NEGATIVE_INFINITY, hx, hy, Double.POSITIVE_INFINITY, visitor );
+	}
+	
 	/**
 	 * Tell what to do when a particle leaves the root cell. The DELETE mode
-	 * kills the particle. The RESIZE mode make the root cell a child of as
-	 * many cell as needed to contain the leaving particle.
+	 * kills the particle. The RESIZE mode rebuilds the whole tree in a larger
+	 * root cell. The GROW mode make the root cell a child of as many cell as
+	 * needed to contain the leaving particle.
 	 * @param mode The mode to follow.
 	 */
 	public void setOutOfUniverseMode( OutOfUniverseMode mode )
@@ -378,6 +1526,10 @@ public class NTree
 			case RESIZE:
 				resize( particle );
 				break;
+			case GROW:
+				resize( particle );
+				escaped.add( particle );
+				break;
 			default:
 				assert false : "unknown OutOfUniverseMode";
 		}
@@ -412,6 +1564,237 @@ public class NTree
 		else if( p.z < min.z ) min.z = p.z;
 	}
 	
+	/**
+	 * Grow the root cell until it contains all the particles that escaped
+	 * it, then move these particles in the tree. Each growth makes the root
+	 * a sub-cell of a new root twice as large, the existing cells are kept.
+	 * @return False if the root cell space cannot grow, nothing is done then.
+	 */
+	protected boolean grow()
+	{
+		for( Particle particle: escaped )
+		{
+			double x = particle.getX();
+			double y = particle.getY();
+			double z = particle.getZ();
+			
+			while( ! laMama.contains( x, y, z ) )
+			{
+				CellSpace bigger = laMama.getSpace().newSuperCellSpace( x, y, z );
+				
+				if( bigger == null )
+					return false;
+				
+				if( Double.isInfinite( bigger.diag ) || Double.isNaN( bigger.diag ) )
+					throw new RuntimeException( "cannot grow the universe to contain particle "+particle.getId()+" at ("+x+", "+y+", "+z+")" );
+				
+				generation++;
+				laMama = laMama.grow( bigger, newRootId(), -generation );
+				setRootSpace( bigger );
+				reissueCodes();
+			}
+		}
+		
+		// The escaped particles are still in their old leaf, this time an
+		// ancestor contains them. Particles being added are not yet in the
+		// tree.
+		
+		for( Particle particle: escaped )
+		{
+			Cell cell = particle.getCell();
+			
+			if( cell != null )
+				cell.particleMoved( particle, 0, 0, 0 );
+		}
+		
+		escaped.clear();
+		
+		return true;
+	}
+	
+	/**
+	 * Shrink the root cell if all the particles are deep enough under it for
+	 * long enough.
+	 * @see #setShrinkPolicy(int, int, int)
+	 */
+	protected void checkShrink()
+	{
+		// Follow the branch of cells that hold all the particles.
+		
+		Cell cell  = laMama;
+		Cell only  = cell.getSinglePopulatedSub();
+		int  chain = 0;
+		
+		while( only != null )
+		{
+			cell  = only;
+			only  = cell.getSinglePopulatedSub();
+			chain++;
+		}
+		
+		if( chain < shrinkDepth )
+		{
+			shrinkCount = 0;
+		}
+		else if( ++shrinkCount >= shrinkDelay )
+		{
+			for( int i=0; i<shrinkMargin; ++i )
+				cell = cell.parent;
+			
+			generation++;
+			cell.becomeRoot( -generation );
+			setRootSpace( cell.space );
+			laMama      = cell;
+			shrinkCount = 0;
+			
+			reissueCodes();
+			
+			CellSpace space = cell.getSpace();
+			
+			min.set( space.lox, space.loy, space.loz );
+			max.set( space.hix, space.hiy, space.hiz );
+		}
+	}
+	
+	/**
+	 * Recursively offer the particles of a cell to the heap, nearest
+	 * sub-cells first.
+	 */
+	protected void nearest( Cell cell, double x, double y, double z, ParticleHeap heap )
+	{
+		if( cell.population == 0 || cell.space.squaredDistanceFrom( x, y, z ) >= heap.bound() )
+			return;
+		
+		if( cell.isLeaf() )
+		{
+			for( int i=0; i<cell.particleCount; ++i )
+			{
+				Particle particle = cell.particles[i];
+				double dx = particle.getX() - x;
+				double dy = particle.getY() - y;
+				double dz = particle.getZ() - z;
+				double d2 = dx*dx + dy*dy + dz*dz;
+				
+				if( d2 < heap.bound() )
+					heap.offer( particle, d2 );
+			}
+		}
+		else
+		{
+			// Begin with the sub-cell containing the point, to find near
+			// particles early and prune more.
+			
+			int first = cell.space.contains( x, y, z ) ? cell.space.getSubCellIndex( x, y, z ) : -1;
+			
+			if( first >= 0 )
+				nearest( cell.sub[first], x, y, z, heap );
+			
+			for( int i=0; i<cell.sub.length; ++i )
+			{
+				if( i != first )
+					nearest( cell.sub[i], x, y, z, heap );
+			}
+		}
+	}
+	
+	/**
+	 * Recursively visit the particles of a cell at a squared distance less
+	 * than or equal to r2.
+	 */
+	protected int within( Cell cell, double x, double y, double z, double r2, ParticleVisitor visitor )
+	{
+		if( cell.population == 0 || cell.space.squaredDistanceFrom( x, y, z ) > r2 )
+			return 0;
+		
+		int n = 0;
+		
+		if( cell.isLeaf() )
+		{
+			for( int i=0; i<cell.particleCount; ++i )
+			{
+				Particle particle = cell.particles[i];
+				double dx = particle.getX() - x;
+				double dy = particle.getY() - y;
+				double dz = particle.getZ() - z;
+				
+				if( dx*dx + dy*dy + dz*dz <= r2 )
+				{
+					visitor.visit( particle );
+					n++;
+				}
+			}
+		}
+		else
+		{
+			for( Cell s: cell.sub )
+				n += within( s, x, y, z, r2, visitor );
+		}
+		
+		return n;
+	}
+	
+	/**
+	 * Recursively visit the particles of a cell that are in a box.
+	 */
+	protected int inBox( Cell cell, double lx, double ly, double lz, double hx, double hy, double hz, ParticleVisitor visitor )
+	{
+		if( cell.population == 0 || ! cell.space.intersects( lx, ly, lz, hx, hy, hz ) )
+			return 0;
+		
+		if( cell.space.isInside( lx, ly, lz, hx, hy, hz ) )
+			return visitAll( cell, visitor );
+		
+		int n = 0;
+		
+		if( cell.isLeaf() )
+		{
+			for( int i=0; i<cell.particleCount; ++i )
+			{
+				Particle particle = cell.particles[i];
+				double px = particle.getX();
+				double py = particle.getY();
+				double pz = particle.getZ();
+				
+				if( px >= lx && px <= hx && py >= ly && py <= hy && pz >= lz && pz <= hz )
+				{
+					visitor.visit( particle );
+					n++;
+				}
+			}
+		}
+		else
+		{
+			for( Cell s: cell.sub )
+				n += inBox( s, lx, ly, lz, hx, hy, hz, visitor );
+		}
+		
+		return n;
+	}
+	
+	/**
+	 * Recursively visit all the particles of a cell.
+	 */
+	protected int visitAll( Cell cell, ParticleVisitor visitor )
+	{
+		if( cell.population == 0 )
+			return 0;
+		
+		if( cell.isLeaf() )
+		{
+			for( int i=0; i<cell.particleCount; ++i )
+				visitor.visit( cell.particles[i] );
+			
+			return cell.population;
+		}
+		
+		int n = 0;
+		
+		for( Cell s: cell.sub )
+			n += visitAll( s, visitor );
+		
+		return n;
+	}
+	
 	/**
 	 * Make a recursive check of each cell of the tree.
 	 * @return True if no discrepancy has been found.
@@ -420,4 +1803,111 @@ public class NTree
 	{
 		return laMama.isValid();
 	}
-}
\ No newline at end of file
+	
+	/**
+	 * Recompute a range of the subtrees of {@link #recomputeRoots}. While
+	 * recording, the task is the only listener of the cells it recomputes,
+	 * and keeps their events as the {@link NTreeListenerProxy} does.
+	 */
+	protected class RecomputeTask implements Callable<Object>, NTreeListener
+	{
+		protected int from;
+		
+		protected int to;
+		
+		/**
+		 * The recorded events.
+		 */
+		protected ArrayList<Object[]> events = new ArrayList<Object[]>();
+		
+		/**
+		 * For each subtree of the task, the number of recorded events once
+		 * it is recomputed.
+		 */
+		protected int[] ends = new int[16];
+		
+		/**
+		 * The listeners given to the cells while recording, this task only.
+		 */
+		protected ArrayList<NTreeListener> recorder = new ArrayList<NTreeListener>( 1 );
+		
+		public RecomputeTask()
+		{
+			recorder.add( this );
+		}
+		
+		public Object call()
+		{
+			if( ends.length < to - from )
+				ends = new int[to-from];
+			
+			events.clear();
+			
+			if( recording )
+				taskListeners.set( recorder );
+			
+			try
+			{
+				for( int i=from; i<to; ++i )
+				{
+					recomputeRoots.get( i ).recompute();
+					ends[i-from] = events.size();
+				}
+			}
+			finally
+			{
+				taskListeners.remove();
+			}
+			
+			return null;
+		}
+		
+		/**
+		 * Send to the listeners the events recorded for one subtree.
+		 * @param root The index of the subtree in {@link #recomputeRoots}.
+		 */
+		protected void replay( int root )
+		{
+			int end = ends[root-from];
+			
+			for( int i=( root > from ? ends[root-from-1] : 0 ); i<end; ++i )
+			{
+				Object[] event = events.get( i );
+				
+				if( event[0].equals( "CA" ) )
+				{
+					int depth = (Integer) event[5];
+					int index = (Integer) event[6];
+					
+					for( NTreeListener listener: listeners )
+						listener.cellAdded( event[1], event[2], (Anchor) event[3], (Anchor) event[4], depth, index );
+				}
+				else if( event[0].equals( "CD" ) )
+				{
+					for( NTreeListener listener: listeners )
+						listener.cellData( event[1], (String) event[2], event[3] );
+				}
+				else
+				{
+					for( NTreeListener listener: listeners )
+						listener.cellRemoved( event[1] );
+				}
+			}
+		}
+		
+		public void cellAdded( Object id, Object parentId, Anchor lo, Anchor hi, int depth, int index )
+		{
+			events.add( new Object[] { "CA", id, parentId, lo, hi, depth, index } );
+		}
+		
+		public void cellData( Object id, String message, Object data )
+		{
+			events.add( new Object[] { "CD", id, message, data } );
+		}
+		
+		public void cellRemoved( Object id )
+		{
+			events.add( new Object[] { "CR", id } );
+		}
+	}
+}
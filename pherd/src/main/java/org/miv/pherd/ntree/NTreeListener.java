@@ -20,7 +20,9 @@ public interface NTreeListener
 	
 	/**
 	 * The cell data changed. This method is here to allow cell data to send
-	 * arbitrary messages to the listeners.
+	 * arbitrary messages to the listeners. The tree itself sends a "moved"
+	 * message with a {@link CellMove} when an existing cell changes of place
+	 * as the root cell grows or shrinks, its sub-cells moving with it.
 	 * @param id The cell identifier.
 	 * @param message The message.
 	 * @param data The message data.
@@ -69,7 +69,7 @@ public class NTreeListenerProxy implements NTreeListener, MBoxListener
 	 */
 	protected void replayTree( Cell cell )
 	{
-		cellAdded( cell.getId(), cell.getParent() != null ? cell.getParent().getId() : null,
+		cellAdded( cell.getKey(), cell.getParent() != null ? cell.getParent().getKey() : null,
 			cell.getSpace().getLoAnchor(), cell.getSpace().getHiAnchor(),
 			cell.getDepth(), cell.getIndex() );
 		
@@ -1,7 +1,5 @@
 package org.miv.pherd.ntree;
 
-import org.miv.pherd.geom.*;
-
 /**
  * Cell space for an octree.
  *
@@ -14,12 +12,15 @@ import org.miv.pherd.geom.*;
  */
 public class OctreeCellSpace extends CellSpace
 {
-	protected Anchor C;
-	
 	public OctreeCellSpace( Anchor lo, Anchor hi )
 	{
 		super( lo, hi );
 	}
+	
+	public OctreeCellSpace( double lox, double loy, double loz, double hix, double hiy, double hiz )
+	{
+		super( lox, loy, loz, hix, hiy, hiz );
+	}
 
 	@Override
 	public int getDivisions()
@@ -30,90 +31,88 @@ public class OctreeCellSpace extends CellSpace
 	@Override
 	public CellSpace newSubCellSpace( int i )
 	{
-		// We need to describe the corners of the two cubes on the lo-hi
-		// diagonal. There are 13 new points to create.
+		// The centre C splits the cube in eight, the sub-cells going from the
+		// lo-C cube to the C-hi cube.
 		// T top   / B bottom
 		// L left  / R right
 		// F front / B back
 		
-		if( C == null )
-		{
-			double cx = lo.x + ( hi.x - lo.x ) / 2;
-			double cy = lo.y + ( hi.y - lo.y ) / 2;
-			double cz = lo.z + ( hi.z - lo.z ) / 2;
-			
-			C = new Anchor( cx, cy, cz );
-		}
-				
-		Anchor BLF1 = lo;
-		Anchor TRB2 = hi;
-		
 		switch( i )
 		{
-			case 0:
-				return new OctreeCellSpace( BLF1, C );
-			case 1:
-				Anchor BRF1 = new Anchor( C.x, lo.y, lo.z );
-				Anchor BRF2 = new Anchor( hi.x, C.y, C.z );
-				return new OctreeCellSpace( BRF1, BRF2 );
-			case 2:
-				Anchor TRF1 = new Anchor( C.x, C.y, lo.z );
-				Anchor TRF2 = new Anchor( hi.x, hi.y, C.z );
-				return new OctreeCellSpace( TRF1, TRF2 );
-			case 3:
-				Anchor TLF1 = new Anchor( lo.x, C.y, lo.z );
-				Anchor TLF2 = new Anchor( C.x, hi.y, C.z );
-				return new OctreeCellSpace( TLF1, TLF2 );
-			case 4:
-				Anchor BLB1 = new Anchor( lo.x, lo.y, C.z );
-				Anchor BLB2 = new Anchor( C.x, C.y, hi.z );
-				return new OctreeCellSpace( BLB1, BLB2 );
-			case 5:
-				Anchor BRB1 = new Anchor( C.x, lo.y, C.z );
-				Anchor BRB2 = new Anchor( hi.x, C.y, hi.z );
-				return new OctreeCellSpace( BRB1, BRB2 );
-			case 6:
-				return new OctreeCellSpace( C, TRB2 );
-			case 7:
-				Anchor TLB1 = new Anchor( lo.x, C.y, C.z );
-				Anchor TLB2 = new Anchor( C.x, hi.y, hi.z );
-				return new OctreeCellSpace( TLB1, TLB2 );
+			case 0:	// BLF
+				return new OctreeCellSpace( lox, loy, loz, cx, cy, cz );
+			case 1:	// BRF
+				return new OctreeCellSpace( cx, loy, loz, hix, cy, cz );
+			case 2:	// TRF
+				return new OctreeCellSpace( cx, cy, loz, hix, hiy, cz );
+			case 3:	// TLF
+				return new OctreeCellSpace( lox, cy, loz, cx, hiy, cz );
+			case 4:	// BLB
+				return new OctreeCellSpace( lox, loy, cz, cx, cy, hiz );
+			case 5:	// BRB
+				return new OctreeCellSpace( cx, loy, cz, hix, cy, hiz );
+			case 6:	// TRB
+				return new OctreeCellSpace( cx, cy, cz, hix, hiy, hiz );
+			case 7:	// TLB
+				return new OctreeCellSpace( lox, cy, cz, cx, hiy, hiz );
 			default:
 				throw new RuntimeException( "invalid subcell space index '"+i+"' for oct tree" );
 		}
 	}
 	
+	@Override
+	public CellSpace newSuperCellSpace( double x, double y, double z )
+	{
+		double dx = hix - lox;
+		double dy = hiy - loy;
+		double dz = hiz - loz;
+		
+		boolean nx = x < lox;
+		boolean ny = y < loy;
+		boolean nz = z < loz;
+		
+		OctreeCellSpace space = new OctreeCellSpace(
+				nx ? lox - dx : lox, ny ? loy - dy : loy, nz ? loz - dz : loz,
+				nx ? hix : hix + dx, ny ? hiy : hiy + dy, nz ? hiz : hiz + dz );
+		
+		space.cx = nx ? lox : hix;
+		space.cy = ny ? loy : hiy;
+		space.cz = nz ? loz : hiz;
+		
+		return space;
+	}
+	
+	@Override
+	public int getSubCellIndex( double x, double y, double z )
+	{
+		int i;
+		
+		if( y >= cy )
+		     i = ( x >= cx ) ? 2 : 3;
+		else i = ( x >= cx ) ? 1 : 0;
+		
+		return ( z >= cz ) ? i + 4 : i;
+	}
+	
 	@Override
 	public String toString()
 	{
 		StringBuilder sb = new StringBuilder();
 		
 		sb.append( "[" );
-		sb.append( lo.x );
+		sb.append( lox );
 		sb.append( ", " );
-		sb.append( lo.y );
+		sb.append( loy );
 		sb.append( ", " );
-		sb.append( lo.z );
+		sb.append( loz );
 		sb.append( " -> " );
-		sb.append( hi.x );
+		sb.append( hix );
 		sb.append( ", " );
-		sb.append( hi.y );
+		sb.append( hiy );
 		sb.append( ", " );
-		sb.append( hi.z );
+		sb.append( hiz );
 		sb.append( "]" );
 		
 		return sb.toString();
 	}
-	
-	@Override
-	public void resize( Point3 min, Point3 max )
-	{
-		super.resize( min, max );
-		
-		double cx = lo.x + ( hi.x - lo.x ) / 2;
-		double cy = lo.y + ( hi.y - lo.y ) / 2;
-		double cz = lo.z + ( hi.z - lo.z ) / 2;
-		
-		C = new Anchor( cx, cy, cz );
-	}
 }
\ No newline at end of file
@@ -0,0 +1,147 @@
+package org.miv.pherd.ntree;
+
+import org.miv.pherd.*;
+
+/**
+ * Bounded set of the k particles nearest to a point, used by the k-nearest
+ * neighbours queries.
+ * 
+ * <p>
+ * This is a max-heap on the squared distances, the farthest retained particle
+ * being at the top, so that it can be replaced by a nearer one in O(log k).
+ * Once the search is finished {@link #sort()} orders the particles by
+ * increasing distance.
+ * </p>
+ */
+class ParticleHeap
+{
+	/**
+	 * The particles.
+	 */
+	protected Particle[] particles = new Particle[16];
+	
+	/**
+	 * Squared distance of each particle to the query point.
+	 */
+	protected double[] d2 = new double[16];
+	
+	/**
+	 * Number of particles in the heap.
+	 */
+	protected int size;
+	
+	/**
+	 * Maximum number of particles in the heap.
+	 */
+	protected int k;
+	
+	/**
+	 * Empty the heap and set its maximum size.
+	 * @param k The number of particles to retain.
+	 */
+	public void reset( int k )
+	{
+		if( particles.length < k )
+		{
+			particles = new Particle[k];
+			d2        = new double[k];
+		}
+		else
+		{
+			java.util.Arrays.fill( particles, 0, size, null );
+		}
+		
+		this.k    = k;
+		this.size = 0;
+	}
+	
+	/**
+	 * The squared distance under which a particle can enter the heap.
+	 * @return The distance of the farthest retained particle, or infinity if
+	 * the heap is not full.
+	 */
+	public double bound()
+	{
+		return size < k ? Double.POSITIVE_INFINITY : d2[0];
+	}
+	
+	/**
+	 * Offer a particle, it is retained if it is nearer than the farthest
+	 * retained one or if the heap is not full.
+	 * @param particle The particle.
+	 * @param dist2 Its squared distance to the query point.
+	 */
+	public void offer( Particle particle, double dist2 )
+	{
+		if( size < k )
+		{
+			int i = size++;
+			
+			while( i > 0 )
+			{
+				int parent = ( i - 1 ) / 2;
+				
+				if( d2[parent] >= dist2 )
+					break;
+				
+				particles[i] = particles[parent];
+				d2[i]        = d2[parent];
+				i            = parent;
+			}
+			
+			particles[i] = particle;
+			d2[i]        = dist2;
+		}
+		else if( k > 0 && dist2 < d2[0] )
+		{
+			siftDown( 0, particle, dist2, size );
+		}
+	}
+	
+	/**
+	 * Order the retained particles by increasing distance. After this the
+	 * heap property is lost, {@link #reset(int)} must be called before
+	 * offering other particles.
+	 */
+	public void sort()
+	{
+		for( int n=size-1; n>0; --n )
+		{
+			Particle p = particles[n];
+			double   d = d2[n];
+			
+			particles[n] = particles[0];
+			d2[n]        = d2[0];
+			
+			siftDown( 0, p, d, n );
+		}
+	}
+	
+	/**
+	 * Put a particle at position i and move it down until the heap property
+	 * holds in the n first elements.
+	 */
+	protected void siftDown( int i, Particle particle, double dist2, int n )
+	{
+		while( true )
+		{
+			int child = i * 2 + 1;
+			
+			if( child >= n )
+				break;
+			
+			if( child + 1 < n && d2[child+1] > d2[child] )
+				child++;
+			
+			if( d2[child] <= dist2 )
+				break;
+			
+			particles[i] = particles[child];
+			d2[i]        = d2[child];
+			i            = child;
+		}
+		
+		particles[i] = particle;
+		d2[i]        = dist2;
+	}
+}
@@ -0,0 +1,19 @@
+package org.miv.pherd.ntree;
+
+import org.miv.pherd.*;
+
+/**
+ * Callback receiving the particles found by a spatial query on a n-tree.
+ *
+ * @see NTree#withinRadius(double, double, double, double, ParticleVisitor)
+ * @see NTree#kNearest(double, double, double, int, ParticleVisitor)
+ */
+public interface ParticleVisitor
+{
+	/**
+	 * A particle matched the query. The tree must not be modified from this
+	 * method.
+	 * @param particle The particle.
+	 */
+	void visit( Particle particle );
+}
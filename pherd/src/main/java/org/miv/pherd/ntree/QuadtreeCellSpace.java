@@ -15,13 +15,16 @@ import org.miv.pherd.geom.*;
  */
 public class QuadtreeCellSpace extends CellSpace
 {
-	protected Anchor C;
-	
 	public QuadtreeCellSpace( Anchor lo, Anchor hi )
 	{
 		super( lo, hi );
 	}
 	
+	public QuadtreeCellSpace( double lox, double loy, double loz, double hix, double hiy, double hiz )
+	{
+		super( lox, loy, loz, hix, hiy, hiz );
+	}
+	
 	@Override
 	public int getDivisions()
 	{
@@ -36,90 +39,136 @@ public class QuadtreeCellSpace extends CellSpace
 	@Override
 	public boolean contains( Particle particle )
 	{
-		Point3 pos = particle.getPosition();
-		
-		return contains( pos.x, pos.y );
+		return contains( particle.getX(), particle.getY() );
 	}
 
 	@Override
 	public boolean contains( double x, double y, double z )
 	{
-		if( x < lo.x || x >= hi.x ) return false;
-		if( y < lo.y || y >= hi.y ) return false;
+		if( x < lox || x >= hix ) return false;
+		if( y < loy || y >= hiy ) return false;
 	
 		return true;
 	}
 	
 	public boolean contains( double x, double y )
 	{
-		if( x < lo.x || x >= hi.x ) return false;
-		if( y < lo.y || y >= hi.y ) return false;
+		if( x < lox || x >= hix ) return false;
+		if( y < loy || y >= hiy ) return false;
 	
 		return true;
 	}
 	
+	/**
+	 * The distance to a quadtree cell ignores the depth axis.
+	 */
 	@Override
-	public CellSpace newSubCellSpace( int i )
+	public double squaredDistanceFrom( double x, double y, double z )
 	{
-		if( C == null )
-		{
-			double cx = lo.x + ( hi.x - lo.x ) / 2;
-			double cy = lo.y + ( hi.y - lo.y ) / 2;
-
-			C = new Anchor( cx, cy, hi.z );
-		}
+		double dx = Math.max( 0, Math.max( lox - x, x - hix ) );
+		double dy = Math.max( 0, Math.max( loy - y, y - hiy ) );
 		
-		Anchor BL = lo;
-		Anchor TR = hi;
+		return dx*dx + dy*dy;
+	}
+	
+	/**
+	 * The depth axis is ignored, a quadtree cell intersects the box as soon
+	 * as its projection on the XY plane does.
+	 */
+	@Override
+	public boolean intersects( double lx, double ly, double lz, double hx, double hy, double hz )
+	{
+		return( lox <= hx && hix >= lx && loy <= hy && hiy >= ly );
+	}
+	
+	/**
+	 * A quadtree cell does not bound the depth of its particles, therefore
+	 * it is inside the box only if the box has no depth bounds.
+	 */
+	@Override
+	public boolean isInside( double lx, double ly, double lz, double hx, double hy, double hz )
+	{
+		return( lox >= lx && hix <= hx && loy >= ly && hiy <= hy
+		     && lz == Double.NEGATIVE_INFINITY && hz == Double.POSITIVE_INFINITY );
+	}
+	
+	@Override
+	public CellSpace newSubCellSpace( int i )
+	{
+		// All the sub-cells keep the depth of this cell.
 		
 		switch( i )
 		{
-			case 0:
-				C.z = hi.z;
-				return new QuadtreeCellSpace( BL, C );
-			case 1:
-				Anchor BR1 = new Anchor( C.x, BL.y, lo.z );
-				Anchor BR2 = new Anchor( TR.x, C.y, hi.z );
-				return new QuadtreeCellSpace( BR1, BR2 );
-			case 2:
-				Anchor TL1 = new Anchor( BL.x, C.y, lo.z );
-				Anchor TL2 = new Anchor( C.x, TR.y, hi.z );
-				return new QuadtreeCellSpace( TL1, TL2 );
-			case 3:
-				C.z = lo.z;
-				return new QuadtreeCellSpace( C, TR );
+			case 0:	// BL
+				return new QuadtreeCellSpace( lox, loy, loz, cx, cy, hiz );
+			case 1:	// BR
+				return new QuadtreeCellSpace( cx, loy, loz, hix, cy, hiz );
+			case 2:	// TL
+				return new QuadtreeCellSpace( lox, cy, loz, cx, hiy, hiz );
+			case 3:	// TR
+				return new QuadtreeCellSpace( cx, cy, loz, hix, hiy, hiz );
 			default:
 				throw new RuntimeException( "invalid subcell space index '"+i+"' for quad tree" );
 		}
 	}
 	
+	/**
+	 * The depth of the new space is the one of this space.
+	 */
+	@Override
+	public CellSpace newSuperCellSpace( double x, double y, double z )
+	{
+		double dx = hix - lox;
+		double dy = hiy - loy;
+		
+		boolean nx = x < lox;
+		boolean ny = y < loy;
+		
+		QuadtreeCellSpace space = new QuadtreeCellSpace(
+				nx ? lox - dx : lox, ny ? loy - dy : loy, loz,
+				nx ? hix : hix + dx, ny ? hiy : hiy + dy, hiz );
+		
+		space.cx = nx ? lox : hix;
+		space.cy = ny ? loy : hiy;
+		
+		return space;
+	}
+	
+	@Override
+	public int getSubCellIndex( double x, double y, double z )
+	{
+		return ( x >= cx ? 1 : 0 ) + ( y >= cy ? 2 : 0 );
+	}
+	
+	/**
+	 * The size of a quadtree cell ignores the depth axis.
+	 */
+	@Override
+	protected void setBounds( double lox, double loy, double loz, double hix, double hiy, double hiz )
+	{
+		super.setBounds( lox, loy, loz, hix, hiy, hiz );
+		
+		double dx = hix - lox;
+		double dy = hiy - loy;
+		
+		diag = Math.sqrt( dx*dx + dy*dy );
+	}
+	
 	@Override
 	public String toString()
 	{
 		StringBuilder sb = new StringBuilder();
 		
 		sb.append( "[" );
-		sb.append( lo.x );
+		sb.append( lox );
 		sb.append( ", " );
-		sb.append( lo.y );
+		sb.append( loy );
 		sb.append( " -> " );
-		sb.append( hi.x );
+		sb.append( hix );
 		sb.append( ", " );
-		sb.append( hi.y );
+		sb.append( hiy );
 		sb.append( "]" );
 		
 		return sb.toString();
 	}
-	
-	@Override
-	public void resize( Point3 min, Point3 max )
-	{
-		super.resize( min, max );
-		
-		double cx = lo.x + ( hi.x - lo.x ) / 2;
-		double cy = lo.y + ( hi.y - lo.y ) / 2;
-		double cz = lo.z + ( hi.z - lo.z ) / 2;
-		
-		C = new Anchor( cx, cy, cz );
-	}
 }
\ No newline at end of file
@@ -0,0 +1,22 @@
+package org.miv.pherd.ntree;
+
+/**
+ * Cell data that can be reused for another cell.
+ * 
+ * <p>
+ * When the n-tree keeps a pool of cells (see {@link NTree#setCellPoolSize(int)}),
+ * the cells that disappear by fusion are kept to be reused at the next
+ * subdivision instead of allocating new ones. The data of these cells is
+ * kept with them only if it implements this interface, else new data is
+ * created with {@link CellData#newCellData()}. When reused, the data is
+ * given its new cell with {@link CellData#setCell(Cell)}.
+ * </p>
+ */
+public interface RecyclableCellData extends CellData
+{
+	/**
+	 * The cell of this data disappeared, forget it and all the values
+	 * computed for it.
+	 */
+	void reset();
+}